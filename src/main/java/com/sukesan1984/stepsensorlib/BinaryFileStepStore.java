@@ -0,0 +1,392 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * Store which keeps hours as fixed size records in one file, read and written through a memory
+ * mapping. Reads are binary searches over an in-memory order of the records and cost no query parsing.
+ * <p>
+ * A batch is first written to a small redo log and synced, then applied in place: rows of known hours
+ * are updated where they are, rows of new hours are appended, and the header with its commit number
+ * is written last. The log carries the values rows end up with, so replaying it after a crash is
+ * harmless, and it is only replayed if the header has not reached its commit: a journal fold is never
+ * applied twice. Rows before {@code sortedSize} are in order of hour; once more rows are appended
+ * after them than are sorted, the file is rewritten in order, so rewrites get rarer as the file grows.
+ * <p>
+ * A file which can not be parsed is renamed aside rather than overwritten, and the store starts over.
+ */
+class BinaryFileStepStore extends SortedStepStore {
+    private static final String TAG = "BinaryFileStepStore";
+    static final String FILE_NAME = "steps.bin";
+    private static final int MAGIC = 0x53544231;
+    private static final int LOG_MAGIC = 0x53544c31;
+    // magic, row count, journal generation, change sequence, sorted row count, commit.
+    private static final int HEADER_SIZE = 32;
+    // hour, steps, sync state.
+    static final int ROW_SIZE = 20;
+    // magic, commit, row count, journal generation, change sequence.
+    private static final int LOG_HEADER_SIZE = 28;
+    // Rows appended after the sorted ones before the file is rewritten in order, at least.
+    private static final int MIN_UNSORTED_ROWS = 256;
+
+    private final File file;
+    private final File tempFile;
+    private final File logFile;
+    @Nullable
+    private MappedByteBuffer buffer;
+    private int size;
+    private int sortedSize;
+    private int commit;
+    // Record numbers in order of hour.
+    private int[] order = new int[0];
+    private long journalGeneration;
+    private long changeSequence;
+
+    BinaryFileStepStore(@NonNull File file) {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+        this.logFile = new File(file.getPath() + ".log");
+        map();
+    }
+
+    /**
+     * Map the file and replay a batch its header has not reached.
+     */
+    private void map() {
+        buffer = null;
+        size = 0;
+        sortedSize = 0;
+        order = new int[0];
+        if (!file.exists()) {
+            // Only a batch written after the file can be in the log.
+            logFile.delete();
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            long length = raf.length();
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            int rowCount = length < HEADER_SIZE ? -1 : mapped.getInt(4);
+            int sortedCount = length < HEADER_SIZE ? -1 : mapped.getInt(24);
+            if (length < HEADER_SIZE || mapped.getInt(0) != MAGIC || rowCount < 0
+                    || length < HEADER_SIZE + (long) rowCount * ROW_SIZE
+                    || sortedCount < 0 || sortedCount > rowCount) {
+                closeQuietly(raf);
+                raf = null;
+                setAside();
+                return;
+            }
+            buffer = mapped;
+            size = rowCount;
+            sortedSize = sortedCount;
+            journalGeneration = mapped.getLong(8);
+            changeSequence = mapped.getLong(16);
+            commit = mapped.getInt(28);
+            buildOrder();
+        } catch (IOException e) {
+            // Left unmapped, writes fail rather than replace the file.
+            e.printStackTrace();
+            buffer = null;
+            size = 0;
+            return;
+        } finally {
+            // The mapping stays valid after the file is closed.
+            closeQuietly(raf);
+        }
+        replayLog();
+    }
+
+    /**
+     * Keep a file which can not be parsed for inspection, and start over without it.
+     */
+    private void setAside() {
+        File aside = new File(file.getPath() + ".broken-" + System.currentTimeMillis());
+        Log.e(TAG, "Broken step file, moved to " + aside);
+        if (!file.renameTo(aside)) {
+            Log.e(TAG, "Failed to move broken step file.");
+        }
+        logFile.delete();
+    }
+
+    private void buildOrder() {
+        order = new int[size];
+        // Sorted rows are checked on the way, a file out of order is sorted as a whole.
+        int sorted = 0;
+        while (sorted < sortedSize && (sorted == 0 || hourOf(sorted) > hourOf(sorted - 1))) {
+            order[sorted] = sorted;
+            sorted++;
+        }
+        Integer[] rest = new Integer[size - sorted];
+        for (int i = 0; i < rest.length; i++) {
+            rest[i] = sorted + i;
+        }
+        Arrays.sort(rest, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long l = hourOf(lhs);
+                long r = hourOf(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        // Merge the two runs.
+        int[] sortedRun = Arrays.copyOf(order, sorted);
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < size; k++) {
+            if (j == rest.length || (i < sorted && hourOf(sortedRun[i]) < hourOf(rest[j]))) {
+                order[k] = sortedRun[i++];
+            } else {
+                order[k] = rest[j++];
+            }
+        }
+        sortedSize = sorted;
+    }
+
+    private long hourOf(int record) {
+        return buffer.getLong(HEADER_SIZE + record * ROW_SIZE);
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    long hourAt(int index) {
+        return hourOf(order[index]);
+    }
+
+    @Override
+    int stepsAt(int index) {
+        return buffer.getInt(HEADER_SIZE + order[index] * ROW_SIZE + 8);
+    }
+
+    @Override
+    long syncAt(int index) {
+        return buffer.getLong(HEADER_SIZE + order[index] * ROW_SIZE + 12);
+    }
+
+    @Override
+    long getChangeSequence() {
+        return changeSequence;
+    }
+
+    @Override
+    public synchronized long getFoldedJournalGeneration() {
+        return journalGeneration;
+    }
+
+    @Override
+    synchronized boolean apply(Rows rows, long journalGeneration, long changeSequence) {
+        if (buffer == null) {
+            if (file.exists()) {
+                // Could not be read, try again rather than replace it.
+                map();
+                if (buffer == null) return false;
+            } else if (!rewrite(false, this.journalGeneration, this.changeSequence)) {
+                return false;
+            }
+        }
+        if (!writeLog(rows, commit + 1, journalGeneration, changeSequence)) {
+            return false;
+        }
+        try {
+            applyInPlace(rows, commit + 1, journalGeneration, changeSequence);
+        } catch (IOException e) {
+            // Committed by the log, which the next open replays.
+            e.printStackTrace();
+            map();
+            return buffer != null;
+        }
+        logFile.delete();
+        if (size - sortedSize > Math.max(MIN_UNSORTED_ROWS, sortedSize)) {
+            // Not needed for this batch, which is already committed.
+            rewrite(true, journalGeneration, changeSequence);
+        }
+        return true;
+    }
+
+    private void applyInPlace(Rows rows, int newCommit, long journalGeneration, long changeSequence)
+            throws IOException {
+        int appended = 0;
+        for (int i = 0; i < rows.size; i++) {
+            if (indexOf(rows.hours[i]) < 0) appended++;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (appended > 0) {
+                long length = HEADER_SIZE + (long) (size + appended) * ROW_SIZE;
+                raf.setLength(length);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+                order = Arrays.copyOf(order, size + appended);
+            }
+        } finally {
+            closeQuietly(raf);
+        }
+        for (int i = 0; i < rows.size; i++) {
+            int index = indexOf(rows.hours[i]);
+            int record;
+            if (index >= 0) {
+                record = order[index];
+            } else {
+                index = -index - 1;
+                record = size;
+                System.arraycopy(order, index, order, index + 1, size - index);
+                order[index] = record;
+                size++;
+                buffer.putLong(HEADER_SIZE + record * ROW_SIZE, rows.hours[i]);
+            }
+            buffer.putInt(HEADER_SIZE + record * ROW_SIZE + 8, rows.steps[i]);
+            buffer.putLong(HEADER_SIZE + record * ROW_SIZE + 12, rows.syncs[i]);
+        }
+        buffer.force();
+        // The header last, it commits the batch.
+        buffer.putInt(4, size);
+        buffer.putLong(8, journalGeneration);
+        buffer.putLong(16, changeSequence);
+        buffer.putInt(28, newCommit);
+        buffer.force();
+        this.commit = newCommit;
+        this.journalGeneration = journalGeneration;
+        this.changeSequence = changeSequence;
+    }
+
+    private boolean writeLog(Rows rows, int newCommit, long journalGeneration, long changeSequence) {
+        ByteBuffer out = ByteBuffer.allocate(LOG_HEADER_SIZE + rows.size * ROW_SIZE + 8);
+        out.putInt(LOG_MAGIC);
+        out.putInt(newCommit);
+        out.putInt(rows.size);
+        out.putLong(journalGeneration);
+        out.putLong(changeSequence);
+        for (int i = 0; i < rows.size; i++) {
+            putRow(out, rows.hours[i], rows.steps[i], rows.syncs[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 0, out.position());
+        out.putLong(crc.getValue());
+        return writeSynced(logFile, out);
+    }
+
+    /**
+     * Apply the batch of the log if it is complete and the header has not reached its commit.
+     */
+    private void replayLog() {
+        if (!logFile.exists()) {
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(logFile, "r");
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if (bytes.length < LOG_HEADER_SIZE + 8 || in.getInt(0) != LOG_MAGIC) {
+                return;
+            }
+            int rowCount = in.getInt(8);
+            int end = LOG_HEADER_SIZE + rowCount * ROW_SIZE;
+            if (rowCount < 0 || bytes.length != end + 8) {
+                return;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, end);
+            int logCommit = in.getInt(4);
+            if (in.getLong(end) != crc.getValue() || logCommit <= commit) {
+                // Torn, so never committed, or already applied.
+                return;
+            }
+            Rows rows = new Rows();
+            for (int i = 0; i < rowCount; i++) {
+                int offset = LOG_HEADER_SIZE + i * ROW_SIZE;
+                rows.put(in.getLong(offset), in.getInt(offset + 8), in.getLong(offset + 12));
+            }
+            Log.d(TAG, "replayLog: applying " + rowCount + " rows.");
+            applyInPlace(rows, logCommit, in.getLong(12), in.getLong(20));
+        } catch (IOException e) {
+            // Kept for the next open.
+            e.printStackTrace();
+            return;
+        } finally {
+            closeQuietly(raf);
+        }
+        logFile.delete();
+    }
+
+    @Override
+    synchronized boolean clear(long journalGeneration, long changeSequence) {
+        return rewrite(false, journalGeneration, changeSequence);
+    }
+
+    /**
+     * Write the file anew, with its rows in order of hour or with none, and map it.
+     */
+    private boolean rewrite(boolean keepRows, long journalGeneration, long changeSequence) {
+        int rowCount = keepRows ? size : 0;
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + rowCount * ROW_SIZE);
+        out.putInt(MAGIC);
+        out.putInt(rowCount);
+        out.putLong(journalGeneration);
+        out.putLong(changeSequence);
+        out.putInt(rowCount);
+        // A later commit, so that a log left behind is not replayed over it.
+        out.putInt(commit + 1);
+        for (int i = 0; i < rowCount; i++) {
+            putRow(out, hourAt(i), stepsAt(i), syncAt(i));
+        }
+        if (!writeSynced(tempFile, out) || !tempFile.renameTo(file)) {
+            return false;
+        }
+        logFile.delete();
+        map();
+        return buffer != null;
+    }
+
+    private static void putRow(ByteBuffer out, long dateAndHour, int steps, long sync) {
+        out.putLong(dateAndHour);
+        out.putInt(steps);
+        out.putLong(sync);
+    }
+
+    private static boolean writeSynced(File target, ByteBuffer out) {
+        out.flip();
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(target);
+            FileChannel channel = stream.getChannel();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -7,6 +7,22 @@ import android.content.Intent;
 public class BootReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
-        context.startService(new Intent(context, SensorListener.class));
+        final Context applicationContext = context.getApplicationContext();
+        // Reading the checkpoint touches the disk, keep it off the main thread.
+        StepWriter.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                // The counter started from zero at boot, steps not saved before shutdown come from the checkpoint.
+                if (StepCountProvider.isInThisProcess()) {
+                    StepCountCoordinator.getInstance().recover(applicationContext, true);
+                } else {
+                    // Into the state of the process counting steps, not of this one.
+                    StepSensorFacade.callCountingProcess(applicationContext,
+                            StepCountProvider.METHOD_RECOVER_AFTER_BOOT, null, null);
+                }
+                // Started after, so that its own recovery does not take the checkpoint as if not rebooted.
+                applicationContext.startService(new Intent(applicationContext, SensorListener.class));
+            }
+        });
     }
 }
@@ -1,30 +1,161 @@
 package com.sukesan1984.stepsensorlib;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.model.ChunkStepCountPage;
 import com.sukesan1984.stepsensorlib.util.DateUtils;
 import com.sukesan1984.stepsensorlib.util.Logger;
+import com.sukesan1984.stepsensorlib.util.LongIntMap;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-class Database extends SQLiteOpenHelper {
-    private final static String TABLE_NAME = "steps";
-    private final static String COLUMN_DATE_AND_HOUR = "date_and_hour";
+class Database extends SQLiteOpenHelper implements StepStore {
+    final static String DATABASE_NAME = "steps";
     private final static String COLUMN_STEPS = "steps";
     private final static String COLUMN_IS_RECORDED_ON_SERVER = "is_recorded_on_server";
-    private final static String COLUMN_LAST_UPDATED = "last_updated";
-    private final static int DB_VERSION = 2;
+    private final static String COLUMN_CHANGE_SEQ = "change_seq";
+    private final static String DAILY_TABLE_NAME = "daily_steps";
+    private final static String COLUMN_DAY = "day";
+    private final static String WEEKLY_TABLE_NAME = "weekly_steps";
+    private final static String COLUMN_WEEK = "week";
+    private final static String COMPACTED_TABLE_NAME = "compacted_steps";
+    private final static String COLUMN_UTC_DAY = "utc_day";
+    private final static String COLUMN_QUARTERS = "quarters";
+    private final static String META_TABLE_NAME = "meta";
+    private final static String COLUMN_META_KEY = "key";
+    private final static String COLUMN_META_VALUE = "value";
+    private final static String META_KEY_JOURNAL_GENERATION = "journal_generation";
+    // Highest change sequence handed out before all rows were deleted.
+    private final static String META_KEY_CHANGE_SEQ_FLOOR = "change_seq_floor";
+    // Hours before this were compacted away, their steps are only in the rollups.
+    private final static String META_KEY_COMPACTED_BEFORE = "compacted_before";
+    // Hours before this were compacted by a version which did not keep their steps by hour.
+    private final static String META_KEY_COMPACTED_UNKNOWN_BEFORE = "compacted_unknown_before";
+    // Change sequence up to which rows of LEGACY_HOURS are copied to HOURS. Only set while copying.
+    private final static String META_KEY_HOURS_COPIED_THROUGH = "hours_copied_through";
+    private final static int DB_VERSION = 7;
+
+    // Hourly rows up to version 5: a rowid table keyed by milliseconds through a unique index.
+    final static HourTable LEGACY_HOURS = new HourTable("steps", "date_and_hour", 1);
+    // Hourly rows keyed by quarter hours since epoch: every time zone offset in use is a multiple of
+    // 15 minutes, so each local hour starts on a whole quarter. The key takes 3 bytes where
+    // milliseconds take 6, and is the primary key of a table without rowid.
+    final static HourTable HOURS = new HourTable("hourly_steps", "quarter", 15 * 60 * 1000);
+
+    final static String SQL_CREATE_META_TABLE = "CREATE TABLE " + META_TABLE_NAME + " (" +
+            COLUMN_META_KEY + " TEXT PRIMARY KEY, " +
+            COLUMN_META_VALUE + " INTEGER);";
+    final static String SQL_CREATE_DAILY_TABLE = "CREATE TABLE " + DAILY_TABLE_NAME + " (" +
+            COLUMN_DAY + " INTEGER PRIMARY KEY, " +
+            COLUMN_STEPS + " INTEGER NOT NULL);";
+    final static String SQL_CREATE_WEEKLY_TABLE = "CREATE TABLE " + WEEKLY_TABLE_NAME + " (" +
+            COLUMN_WEEK + " INTEGER PRIMARY KEY, " +
+            COLUMN_STEPS + " INTEGER NOT NULL);";
+    // Steps of compacted hours by UTC day, packed as in QuarterSteps. A day of walking takes a few
+    // dozen bytes, where its hourly rows took several hundred.
+    private final static String SQL_CREATE_COMPACTED_TABLE = "CREATE TABLE " + COMPACTED_TABLE_NAME + " (" +
+            COLUMN_UTC_DAY + " INTEGER PRIMARY KEY, " +
+            COLUMN_QUARTERS + " BLOB NOT NULL);";
+    // Lists smaller than this are merged row by row, without pre-reading the range.
+    private final static int BULK_MERGE_THRESHOLD = 32;
+    private final static int SERVER_MERGE_CHUNK_SIZE = 500;
+    private final static int DEFAULT_PAGE_SIZE = 500;
+    private final static int AUTO_VACUUM_INCREMENTAL = 2;
+    // Free pages given back to the file system per compaction, so it never blocks writes for long.
+    private final static int INCREMENTAL_VACUUM_PAGES = 256;
+    // Databases up to this many pages are rebuilt for incremental auto vacuum when opened, which
+    // takes a few milliseconds.
+    private final static int MAX_VACUUM_PAGES = 64;
+    // Pages in the write-ahead log before a commit folds them back into the database file. Flushes
+    // write a few pages each, so the log stays a few hundred KB.
+    private final static int WAL_AUTOCHECKPOINT_PAGES = 64;
+    // The log is truncated to this after a checkpoint, instead of keeping its largest size.
+    private final static long WAL_SIZE_LIMIT_BYTES = 256 * 1024;
+    // Page cache of the writing connection. The hot part of the table is the last few hours.
+    private final static int CACHE_SIZE_PAGES = 128;
+    // Rows copied per step of the migration to HOURS, and pause between steps for other writes.
+    private final static int MIGRATION_CHUNK_SIZE = 500;
+    private final static long MIGRATION_STEP_DELAY_MILLIS = 100;
 
     private static Database instance;
 
-    private Database(final Context context) {
-        super(context, TABLE_NAME, null, DB_VERSION);
+    // Database handed to readers, so that reads do not wait for the lock of the helper.
+    @Nullable
+    private volatile SQLiteDatabase readDatabase;
+    // Table of hourly rows read and written, LEGACY_HOURS until its rows are copied to HOURS.
+    private volatile HourTable hours = HOURS;
+    private final Executor migrationExecutor;
+    private final AtomicBoolean migrationScheduled = new AtomicBoolean();
+    private final Runnable migrationStep = new Runnable() {
+        @Override
+        public void run() {
+            if (migrateStep()) {
+                migrationExecutor.execute(this);
+            } else {
+                migrationScheduled.set(false);
+            }
+        }
+    };
+
+    // Write statements compiled for the current connection. Guarded by this.
+    @Nullable
+    private SQLiteDatabase compiledFor;
+    private SQLiteStatement addStepsStatement;
+    private SQLiteStatement selectStepsStatement;
+    private SQLiteStatement updateServerStepsStatement;
+    private SQLiteStatement insertStepsStatement;
+    private SQLiteStatement markRecordedStatement;
+    // Marks rows already copied to HOURS too, only while copying.
+    @Nullable
+    private SQLiteStatement markCopiedStatement;
+    // Add to rollup rows. The insert statements are only used without UPSERT.
+    private SQLiteStatement addDailyStatement;
+    private SQLiteStatement insertDailyStatement;
+    private SQLiteStatement addWeeklyStatement;
+    private SQLiteStatement insertWeeklyStatement;
+    private boolean useUpsert;
+    // Last change sequence written to a row. Guarded by this.
+    private long changeSequence;
+    // Guarded by this.
+    private long compactedBefore;
+    // Guarded by this.
+    private long compactedUnknownBefore;
+
+    Database(final Context context) {
+        this(context, new Executor() {
+            @Override
+            public void execute(@NonNull Runnable task) {
+                StepWriter.getInstance().schedule(task, MIGRATION_STEP_DELAY_MILLIS);
+            }
+        });
+    }
+
+    /**
+     * @param migrationExecutor Runs steps of the migration to {@link #HOURS} in the background.
+     */
+    Database(final Context context, Executor migrationExecutor) {
+        super(context, DATABASE_NAME, null, DB_VERSION);
+        this.migrationExecutor = migrationExecutor;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     public static synchronized Database getInstance(final Context c) {
@@ -39,23 +170,136 @@ class Database extends SQLiteOpenHelper {
         if (db == null) {
             return;
         }
-        db.execSQL("CREATE TABLE " + TABLE_NAME + " (" +
-                COLUMN_DATE_AND_HOUR + " INTEGER UNIQUE, " +
-                COLUMN_STEPS + " INTEGER, " +
-                COLUMN_IS_RECORDED_ON_SERVER + " INTEGER default 0, " +
-                COLUMN_LAST_UPDATED + " INTEGER);");
+        createHourTable(db);
+        createMetaTable(db);
+        createRollupTables(db);
+        db.execSQL(SQL_CREATE_COMPACTED_TABLE);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        configure(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            // Journal mode can not change within the transaction of onCreate and onUpgrade.
+            db.enableWriteAheadLogging();
+            configure(db);
+        }
+        if (!db.isReadOnly()) {
+            enableIncrementalVacuum(db);
+        }
+        hours = getMetaValue(db, META_KEY_HOURS_COPIED_THROUGH, Long.MIN_VALUE) == Long.MIN_VALUE
+                ? HOURS : LEGACY_HOURS;
+        if (!db.isReadOnly() && tableExists(db, LEGACY_HOURS.name)
+                && migrationScheduled.compareAndSet(false, true)) {
+            migrationExecutor.execute(migrationStep);
+        }
+    }
+
+    /**
+     * Switch a small database to incremental auto vacuum, which takes effect only through a VACUUM
+     * rebuilding the file. Android creates a table of its own before {@link #onCreate}, so this is
+     * how new databases get it too. Larger ones are left as they are, see {@link #reclaimFreePages}.
+     */
+    private void enableIncrementalVacuum(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL
+                || DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) > MAX_VACUUM_PAGES) {
+            return;
+        }
+        try {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        } catch (Exception e) {
+            // Tried again on the next open.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Tune the writing connection for write-ahead logging. A commit is synced at checkpoints only:
+     * the last commits can be lost on power loss, but never corrupt the file, and steps of lost
+     * commits are still in the journal, whose generation is committed with them.
+     */
+    private void configure(SQLiteDatabase db) {
+        if (db.isReadOnly()) {
+            return;
+        }
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        db.execSQL("PRAGMA cache_size = " + CACHE_SIZE_PAGES);
+        // Both return the new value, which execSQL does not accept.
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+        DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT_BYTES, null);
+    }
+
+    /**
+     * Tables without rowid need SQLite 3.8.2 (API 21). Older versions get a rowid table, whose
+     * integer primary key is the rowid itself, so lookups still walk one B-tree.
+     */
+    private void createHourTable(SQLiteDatabase db) {
+        db.execSQL(HOURS.createSql(sqliteVersionAtLeast(db, 3, 8, 2)));
+        createSyncIndexes(db, HOURS);
+    }
+
+    private void createMetaTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_META_TABLE);
+    }
+
+    /**
+     * Index rows not recorded on server, so a sync does not scan the whole table. Partial indexes
+     * need SQLite 3.8.0 (API 21), older versions get a plain index led by the flag.
+     */
+    private void createSyncIndexes(SQLiteDatabase db, HourTable table) {
+        if (sqliteVersionAtLeast(db, 3, 8, 0)) {
+            db.execSQL(table.notRecordedPartialIndexSql());
+        } else {
+            db.execSQL(table.notRecordedIndexSql());
+        }
+        db.execSQL(table.changeSeqIndexSql());
+    }
+
+    /**
+     * Steps summed by local day and week, kept up to date in the transaction which changes hourly rows.
+     */
+    private void createRollupTables(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_DAILY_TABLE);
+        db.execSQL(SQL_CREATE_WEEKLY_TABLE);
     }
 
     /**
      * delete all
      */
-    public void deleteAll() {
+    @Override
+    public synchronized void deleteAll() {
         SQLiteDatabase db = null;
         try {
             db = getWritableDatabase();
-            db.delete(TABLE_NAME, "", new String[]{});
+            compileStatements(db);
+            db.beginTransaction();
+            db.delete(hours.name, "", new String[]{});
+            if (hours != HOURS) {
+                // Rows copied so far.
+                db.delete(HOURS.name, "", new String[]{});
+            }
+            db.delete(DAILY_TABLE_NAME, "", new String[]{});
+            db.delete(WEEKLY_TABLE_NAME, "", new String[]{});
+            db.delete(COMPACTED_TABLE_NAME, "", new String[]{});
+            // Keep sync tokens handed out so far valid.
+            putMetaValue(db, META_KEY_CHANGE_SEQ_FLOOR, changeSequence);
+            db.delete(META_TABLE_NAME, COLUMN_META_KEY + " IN (?, ?)",
+                    new String[]{META_KEY_COMPACTED_BEFORE, META_KEY_COMPACTED_UNKNOWN_BEFORE});
+            compactedBefore = Long.MIN_VALUE;
+            compactedUnknownBefore = Long.MIN_VALUE;
+            db.setTransactionSuccessful();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
         }
     }
 
@@ -64,58 +308,719 @@ class Database extends SQLiteOpenHelper {
         if (oldVersion < 2) {
             db.delete("steps", "date_and_hour = ?", new String[]{"-1"});
         }
+        if (oldVersion < 3) {
+            createMetaTable(db);
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + LEGACY_HOURS.name + " ADD COLUMN " + COLUMN_CHANGE_SEQ +
+                    " INTEGER NOT NULL DEFAULT 0");
+            // Existing rows count as changed, so the first sync by token sees all of them.
+            db.execSQL("UPDATE " + LEGACY_HOURS.name + " SET " + COLUMN_CHANGE_SEQ + " = rowid");
+            createSyncIndexes(db, LEGACY_HOURS);
+        }
+        if (oldVersion < 5) {
+            createRollupTables(db);
+            rebuildRollups(db, LEGACY_HOURS);
+        }
+        if (oldVersion < 6) {
+            // Rows are copied later by migrateStep(), a chunk at a time.
+            createHourTable(db);
+            putMetaValue(db, META_KEY_HOURS_COPIED_THROUGH, -1);
+        }
+        if (oldVersion < 7) {
+            db.execSQL(SQL_CREATE_COMPACTED_TABLE);
+            putMetaValue(db, META_KEY_COMPACTED_UNKNOWN_BEFORE,
+                    getMetaValue(db, META_KEY_COMPACTED_BEFORE, Long.MIN_VALUE));
+        }
+    }
+
+    /**
+     * Copy the rows of {@link #LEGACY_HOURS} to {@link #HOURS} a chunk per call, so that upgrading
+     * holds up neither opening the database nor other writes. The old table stays the one read and
+     * written until every row is copied: rows written meanwhile get a later change sequence and are
+     * copied again, marks are applied to both tables, and compaction waits. Once switched, the old
+     * table is dropped and its pages are given back to the file system.
+     *
+     * @return true if there is more to do.
+     */
+    synchronized boolean migrateStep() {
+        SQLiteDatabase db = null;
+        try {
+            db = getWritableDatabase();
+            long copiedThrough = getMetaValue(db, META_KEY_HOURS_COPIED_THROUGH, Long.MIN_VALUE);
+            if (copiedThrough == Long.MIN_VALUE) {
+                return finishMigration(db);
+            }
+            String[] from = new String[]{String.valueOf(copiedThrough)};
+            long through = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + COLUMN_CHANGE_SEQ + "), ?1) FROM " +
+                    "(SELECT " + COLUMN_CHANGE_SEQ + " FROM " + LEGACY_HOURS.name + " WHERE " + COLUMN_CHANGE_SEQ +
+                    " > ?1 ORDER BY " + COLUMN_CHANGE_SEQ + " LIMIT " + MIGRATION_CHUNK_SIZE + ")", from);
+            db.beginTransaction();
+            if (through == copiedThrough) {
+                db.delete(META_TABLE_NAME, COLUMN_META_KEY + " = ?", new String[]{META_KEY_HOURS_COPIED_THROUGH});
+                db.setTransactionSuccessful();
+                db.endTransaction();
+                // Readers which picked the old table just before still find it until the next step.
+                hours = HOURS;
+                releaseStatements();
+                return true;
+            }
+            db.execSQL("INSERT OR REPLACE INTO " + HOURS.name + " (" + HOURS.keyColumn + ", " + COLUMN_STEPS + ", " +
+                    COLUMN_IS_RECORDED_ON_SERVER + ", " + COLUMN_CHANGE_SEQ + ") SELECT " +
+                    LEGACY_HOURS.keyColumn + " / " + HOURS.keyUnitMillis + ", IFNULL(" + COLUMN_STEPS + ", 0), " +
+                    COLUMN_IS_RECORDED_ON_SERVER + ", " + COLUMN_CHANGE_SEQ + " FROM " + LEGACY_HOURS.name +
+                    " WHERE " + COLUMN_CHANGE_SEQ + " > ? AND " + COLUMN_CHANGE_SEQ + " <= ? AND " +
+                    LEGACY_HOURS.keyColumn + " != -1", new Object[]{copiedThrough, through});
+            putMetaValue(db, META_KEY_HOURS_COPIED_THROUGH, through);
+            db.setTransactionSuccessful();
+            return true;
+        } catch (Exception e) {
+            // Tried again from the last chunk on the next open.
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Drop the old table, then give its pages back a chunk per call.
+     */
+    private boolean finishMigration(SQLiteDatabase db) {
+        if (tableExists(db, LEGACY_HOURS.name)) {
+            db.execSQL("DROP TABLE " + LEGACY_HOURS.name);
+            return true;
+        }
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            // Free pages are reused by later writes.
+            return false;
+        }
+        reclaimFreePages(db);
+        return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0;
+    }
+
+    private static boolean tableExists(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{table}) > 0;
     }
 
     /**
      * Add step count in table. If no row matching to targetDateAndHour is exist, it will be created.
+     * The row is marked as not recorded on server, since it now has steps the server has not seen.
      *
      * @param targetDateAndHour Key for table.
      * @param stepsToAdd        Count to be added.
-     * @return Total count after add, or negative value when failed.
+     * @return true if steps are added, false when failed.
      * @throws IllegalArgumentException if stepsToAdd is negative value.
      */
-    public int addSteps(long targetDateAndHour, int stepsToAdd) {
+    @Override
+    public synchronized boolean addSteps(long targetDateAndHour, int stepsToAdd) {
         if (stepsToAdd < 0) throw new IllegalArgumentException("stepsToAdd should not be negative value.");
         SQLiteDatabase db = null;
         try {
             db = getWritableDatabase();
+            compileStatements(db);
+            // The hourly row and its rollups change together.
             db.beginTransaction();
-            int currentSteps = getStepsImpl(db, targetDateAndHour);
-            int newSteps = currentSteps + stepsToAdd;
-            insertOrReplaceStepRow(db, targetDateAndHour, newSteps, false);
+            addStepsImpl(targetDateAndHour, stepsToAdd);
+            db.setTransactionSuccessful();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private void addStepsImpl(long targetDateAndHour, int stepsToAdd) {
+        long key = hours.keyOf(targetDateAndHour);
+        if (useUpsert) {
+            addStepsStatement.bindLong(1, key);
+            addStepsStatement.bindLong(2, stepsToAdd);
+            addStepsStatement.bindLong(3, ++changeSequence);
+            addStepsStatement.executeInsert();
+        } else {
+            addStepsStatement.bindLong(1, stepsToAdd);
+            addStepsStatement.bindLong(2, ++changeSequence);
+            addStepsStatement.bindLong(3, key);
+            if (addStepsStatement.executeUpdateDelete() == 0) {
+                insertStepRow(targetDateAndHour, stepsToAdd, false);
+            }
+        }
+        addToRollups(targetDateAndHour, stepsToAdd);
+    }
+
+    /**
+     * Overwrite steps of the row by server value, unless the row already has more steps.
+     */
+    private void mergeServerStepsImpl(SQLiteDatabase db, long targetDateAndHour, int serverSteps) {
+        int currentSteps;
+        try {
+            selectStepsStatement.bindLong(1, hours.keyOf(targetDateAndHour));
+            currentSteps = (int) selectStepsStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            currentSteps = -1;
+        }
+        mergeServerSteps(db, targetDateAndHour, serverSteps, currentSteps);
+    }
+
+    /**
+     * @param currentSteps Steps of the row, or -1 if there is no row.
+     * @return true if the row was written.
+     */
+    private boolean mergeServerSteps(SQLiteDatabase db, long dateAndHour, int serverSteps, int currentSteps) {
+        if (currentSteps < 0 && dateAndHour < compactedBefore) {
+            if (dateAndHour >= compactedUnknownBefore) {
+                mergeCompactedSteps(db, dateAndHour, serverSteps);
+            }
+            // Otherwise compacted by an older version: the rollups hold its steps, but not how many.
+            return false;
+        }
+        if (currentSteps < 0) {
+            insertStepRow(dateAndHour, serverSteps, true);
+            addToRollups(dateAndHour, serverSteps);
+            return true;
+        }
+        if (serverSteps < currentSteps) {
+            return false;
+        }
+        updateServerStepsStatement.bindLong(1, serverSteps);
+        updateServerStepsStatement.bindLong(2, ++changeSequence);
+        updateServerStepsStatement.bindLong(3, hours.keyOf(dateAndHour));
+        updateServerStepsStatement.executeUpdateDelete();
+        addToRollups(dateAndHour, serverSteps - currentSteps);
+        return true;
+    }
+
+    /**
+     * Merge server steps into a compacted hour, which is no longer a row: only what the server has
+     * beyond the steps compacted is added to the rollups.
+     */
+    private void mergeCompactedSteps(SQLiteDatabase db, long dateAndHour, int serverSteps) {
+        long utcDay = QuarterSteps.utcDayOf(dateAndHour);
+        byte[] quarters = getCompactedQuarters(db, utcDay);
+        int quarter = QuarterSteps.quarterOf(dateAndHour);
+        int compactedSteps = QuarterSteps.get(quarters, quarter);
+        if (serverSteps <= compactedSteps) {
+            return;
+        }
+        putCompactedQuarters(db, utcDay, QuarterSteps.put(quarters, quarter, serverSteps));
+        addToRollups(dateAndHour, serverSteps - compactedSteps);
+    }
+
+    @Nullable
+    private byte[] getCompactedQuarters(SQLiteDatabase db, long utcDay) {
+        Cursor c = db.query(COMPACTED_TABLE_NAME, new String[]{COLUMN_QUARTERS},
+                COLUMN_UTC_DAY + " = ?", new String[]{String.valueOf(utcDay)}, null, null, null);
+        try {
+            return c != null && c.moveToFirst() ? c.getBlob(0) : null;
+        } finally {
+            closeCursor(c);
+        }
+    }
+
+    private void putCompactedQuarters(SQLiteDatabase db, long utcDay, byte[] quarters) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_UTC_DAY, utcDay);
+        values.put(COLUMN_QUARTERS, quarters);
+        db.replaceOrThrow(COMPACTED_TABLE_NAME, null, values);
+    }
+
+    private void addToRollups(long dateAndHour, long steps) {
+        if (steps == 0) {
+            return;
+        }
+        TimeBuckets timeBuckets = TimeBuckets.getDefault();
+        addToRollup(addDailyStatement, insertDailyStatement, timeBuckets.dayOf(dateAndHour), steps);
+        addToRollup(addWeeklyStatement, insertWeeklyStatement, timeBuckets.weekOf(dateAndHour), steps);
+    }
+
+    private void addToRollup(SQLiteStatement addStatement, @Nullable SQLiteStatement insertStatement,
+                             long key, long steps) {
+        addStatement.bindLong(1, steps);
+        addStatement.bindLong(2, key);
+        if (useUpsert) {
+            addStatement.executeInsert();
+        } else if (addStatement.executeUpdateDelete() == 0) {
+            insertStatement.bindLong(1, key);
+            insertStatement.bindLong(2, steps);
+            insertStatement.executeInsert();
+        }
+    }
+
+    /**
+     * Recompute rollups from hourly rows, e.g. after the time zone changed day boundaries.
+     */
+    public synchronized void rebuildRollups() {
+        SQLiteDatabase db = null;
+        try {
+            db = getWritableDatabase();
+            db.beginTransaction();
+            rebuildRollups(db, hours);
             db.setTransactionSuccessful();
-            return newSteps;
         } catch (Exception e) {
             e.printStackTrace();
-            return -1;
         } finally {
-            if (db != null) {
+            if (db != null && db.inTransaction()) {
                 db.endTransaction();
             }
         }
     }
 
-    private void insertOrReplaceStepRow(SQLiteDatabase db, long dateAndHour, int steps, @Nullable Boolean markAsRecorded) {
+    @Override
+    public void onTimeZoneChanged() {
+        rebuildRollups();
+    }
+
+    private void rebuildRollups(SQLiteDatabase db, HourTable table) {
+        // Rollups of compacted hours are all that is left of them, keep those as they are.
+        long compacted = getMetaValue(db, META_KEY_COMPACTED_BEFORE, Long.MIN_VALUE);
+        String before = String.valueOf(compacted);
+        db.delete(DAILY_TABLE_NAME, COLUMN_DAY + " >= ?", new String[]{before});
+        db.delete(WEEKLY_TABLE_NAME, COLUMN_WEEK + " >= ?", new String[]{before});
+        TimeBuckets timeBuckets = TimeBuckets.getDefault();
+        // Rows are read in order of hour, so each day and each week is one run of rows.
+        long day = Long.MIN_VALUE;
+        long daySteps = 0;
+        long week = Long.MIN_VALUE;
+        long weekSteps = 0;
+        Cursor c = db.query(table.name, new String[]{table.keyColumn, COLUMN_STEPS},
+                table.keyColumn + " != ? AND " + table.keyColumn + " >= ?",
+                new String[]{"-1", String.valueOf(table.firstKeyFrom(compacted))}, null, null, table.keyColumn);
+        try {
+            while (c != null && c.moveToNext()) {
+                long rowDay = timeBuckets.dayOf(table.dateAndHourOf(c.getLong(0)));
+                if (rowDay != day) {
+                    putRollup(db, DAILY_TABLE_NAME, COLUMN_DAY, day, daySteps);
+                    day = rowDay;
+                    daySteps = 0;
+                    long rowWeek = timeBuckets.weekOf(rowDay);
+                    if (rowWeek != week) {
+                        putRollup(db, WEEKLY_TABLE_NAME, COLUMN_WEEK, week, weekSteps);
+                        week = rowWeek;
+                        weekSteps = 0;
+                    }
+                }
+                daySteps += c.getInt(1);
+                weekSteps += c.getInt(1);
+            }
+            putRollup(db, DAILY_TABLE_NAME, COLUMN_DAY, day, daySteps);
+            putRollup(db, WEEKLY_TABLE_NAME, COLUMN_WEEK, week, weekSteps);
+        } finally {
+            closeCursor(c);
+        }
+    }
+
+    private void putRollup(SQLiteDatabase db, String table, String keyColumn, long key, long steps) {
+        if (key == Long.MIN_VALUE) {
+            return;
+        }
         ContentValues values = new ContentValues();
-        values.put(COLUMN_DATE_AND_HOUR, dateAndHour);
+        values.put(keyColumn, key);
         values.put(COLUMN_STEPS, steps);
-        values.put(COLUMN_LAST_UPDATED, DateUtils.getCurrentTimeMllis());
-        if (markAsRecorded != null) {
-            values.put(COLUMN_IS_RECORDED_ON_SERVER, markAsRecorded ? 1 : 0);
+        db.insertOrThrow(table, null, values);
+    }
+
+    private void insertStepRow(long dateAndHour, int steps, boolean markAsRecorded) {
+        insertStepsStatement.bindLong(1, hours.keyOf(dateAndHour));
+        insertStepsStatement.bindLong(2, steps);
+        insertStepsStatement.bindLong(3, markAsRecorded ? 1 : 0);
+        insertStepsStatement.bindLong(4, ++changeSequence);
+        insertStepsStatement.executeInsert();
+    }
+
+    /**
+     * Compile write statements once per connection. UPSERT is used when SQLite supports it (3.24.0+),
+     * otherwise UPDATE and INSERT OR IGNORE are combined. Every row write stamps the next change
+     * sequence.
+     */
+    private void compileStatements(SQLiteDatabase db) {
+        if (compiledFor == db) {
+            return;
+        }
+        releaseStatements();
+        HourTable table = hours;
+        useUpsert = sqliteVersionAtLeast(db, 3, 24, 0);
+        if (useUpsert) {
+            addStepsStatement = db.compileStatement(table.addStepsUpsertSql());
+            addDailyStatement = compileRollupUpsert(db, DAILY_TABLE_NAME, COLUMN_DAY);
+            addWeeklyStatement = compileRollupUpsert(db, WEEKLY_TABLE_NAME, COLUMN_WEEK);
+        } else {
+            addStepsStatement = db.compileStatement(table.addStepsUpdateSql());
+            addDailyStatement = compileRollupUpdate(db, DAILY_TABLE_NAME, COLUMN_DAY);
+            insertDailyStatement = compileRollupInsert(db, DAILY_TABLE_NAME, COLUMN_DAY);
+            addWeeklyStatement = compileRollupUpdate(db, WEEKLY_TABLE_NAME, COLUMN_WEEK);
+            insertWeeklyStatement = compileRollupInsert(db, WEEKLY_TABLE_NAME, COLUMN_WEEK);
+        }
+        selectStepsStatement = db.compileStatement(table.selectStepsSql());
+        updateServerStepsStatement = db.compileStatement(table.updateServerStepsSql());
+        insertStepsStatement = db.compileStatement(table.insertStepsSql());
+        markRecordedStatement = db.compileStatement(table.markRecordedSql());
+        if (table != HOURS) {
+            markCopiedStatement = db.compileStatement(HOURS.markRecordedSql());
         }
-        db.replaceOrThrow(TABLE_NAME, null, values);
+        changeSequence = Math.max(
+                DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + COLUMN_CHANGE_SEQ + "), 0) FROM " +
+                        table.name, null),
+                getMetaValue(db, META_KEY_CHANGE_SEQ_FLOOR, 0));
+        compactedBefore = getMetaValue(db, META_KEY_COMPACTED_BEFORE, Long.MIN_VALUE);
+        compactedUnknownBefore = getMetaValue(db, META_KEY_COMPACTED_UNKNOWN_BEFORE, Long.MIN_VALUE);
+        compiledFor = db;
     }
 
+    private static SQLiteStatement compileRollupUpsert(SQLiteDatabase db, String table, String keyColumn) {
+        return db.compileStatement("INSERT INTO " + table + " (" + COLUMN_STEPS + ", " + keyColumn + ")" +
+                " VALUES (?1, ?2) ON CONFLICT(" + keyColumn + ") DO UPDATE SET " +
+                COLUMN_STEPS + " = " + COLUMN_STEPS + " + excluded." + COLUMN_STEPS);
+    }
+
+    private static SQLiteStatement compileRollupUpdate(SQLiteDatabase db, String table, String keyColumn) {
+        return db.compileStatement("UPDATE " + table + " SET " +
+                COLUMN_STEPS + " = " + COLUMN_STEPS + " + ?1 WHERE " + keyColumn + " = ?2");
+    }
+
+    private static SQLiteStatement compileRollupInsert(SQLiteDatabase db, String table, String keyColumn) {
+        return db.compileStatement("INSERT INTO " + table + " (" + keyColumn + ", " + COLUMN_STEPS + ")" +
+                " VALUES (?, ?)");
+    }
+
+    private static boolean sqliteVersionAtLeast(SQLiteDatabase db, int requiredMajor, int requiredMinor,
+                                                int requiredPatch) {
+        try {
+            String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null).split("\\.");
+            int major = Integer.parseInt(version[0]);
+            int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+            int patch = version.length > 2 ? Integer.parseInt(version[2]) : 0;
+            if (major != requiredMajor) return major > requiredMajor;
+            if (minor != requiredMinor) return minor > requiredMinor;
+            return patch >= requiredPatch;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void releaseStatements() {
+        closeStatement(addStepsStatement);
+        closeStatement(selectStepsStatement);
+        closeStatement(updateServerStepsStatement);
+        closeStatement(insertStepsStatement);
+        closeStatement(markRecordedStatement);
+        closeStatement(markCopiedStatement);
+        closeStatement(addDailyStatement);
+        closeStatement(insertDailyStatement);
+        closeStatement(addWeeklyStatement);
+        closeStatement(insertWeeklyStatement);
+        addStepsStatement = null;
+        selectStepsStatement = null;
+        updateServerStepsStatement = null;
+        insertStepsStatement = null;
+        markRecordedStatement = null;
+        markCopiedStatement = null;
+        addDailyStatement = null;
+        insertDailyStatement = null;
+        addWeeklyStatement = null;
+        insertWeeklyStatement = null;
+        compiledFor = null;
+    }
+
+    @Override
+    public synchronized void close() {
+        releaseStatements();
+        readDatabase = null;
+        super.close();
+    }
+
+    @Override
+    public long getFoldedJournalGeneration() {
+        try {
+            return getMetaValue(getReadDatabase(), META_KEY_JOURNAL_GENERATION, 0);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Add journaled steps in one transaction, together with the generation of the journal.
+     */
+    @Override
+    public synchronized boolean foldJournal(long generation, long[] dateAndHours, int[] steps, int size) {
+        SQLiteDatabase db = null;
+        try {
+            db = getWritableDatabase();
+            compileStatements(db);
+            db.beginTransaction();
+            for (int i = 0; i < size; i++) {
+                addStepsImpl(dateAndHours[i], steps[i]);
+            }
+            putMetaValue(db, META_KEY_JOURNAL_GENERATION, generation);
+            db.setTransactionSuccessful();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * @return Change sequence of the last committed row write. Rows written later get a greater one.
+     */
+    @Override
+    public synchronized long getSyncToken() {
+        try {
+            SQLiteDatabase db = getReadDatabase();
+            return Math.max(
+                    DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + COLUMN_CHANGE_SEQ + "), 0) FROM " +
+                            hours.name, null),
+                    getMetaValue(db, META_KEY_CHANGE_SEQ_FLOOR, 0));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Mark rows as recorded on server in one transaction. A row is left unrecorded if it changed
+     * after syncToken, since the server has not seen its latest steps.
+     *
+     * @param syncToken Token taken by {@link #getSyncToken()} before the rows were read.
+     * @return Number of rows marked, or -1 when failed.
+     */
+    @Override
+    public synchronized int markRecorded(long[] dateAndHours, long syncToken) {
+        SQLiteDatabase db = null;
+        try {
+            db = getWritableDatabase();
+            compileStatements(db);
+            db.beginTransaction();
+            int marked = 0;
+            for (long dateAndHour : dateAndHours) {
+                markRecordedStatement.bindLong(1, hours.keyOf(dateAndHour));
+                markRecordedStatement.bindLong(2, syncToken);
+                marked += markRecordedStatement.executeUpdateDelete();
+                if (markCopiedStatement != null) {
+                    markCopiedStatement.bindLong(1, HOURS.keyOf(dateAndHour));
+                    markCopiedStatement.bindLong(2, syncToken);
+                    markCopiedStatement.executeUpdateDelete();
+                }
+            }
+            db.setTransactionSuccessful();
+            return marked;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Compact hours older than retentionMillis which are recorded on server: they are deleted, and
+     * their steps stay in the daily and weekly rollups. Compaction goes by whole weeks, so rollups are
+     * never left half compacted, and goes on with later weeks while the database uses more than
+     * maxBytes. Hours not recorded on server are never deleted. Freed pages are then given back to the
+     * file system a few at a time, or only reused if the database predates incremental auto vacuum.
+     * <p>
+     * Compacted hours are no longer read by hour, and ranges starting or ending within a compacted
+     * day only count the hours left of it. Their steps are kept packed by day, so that server steps
+     * merged into them later only add what the server has beyond them.
+     *
+     * @return Number of hours deleted, or -1 when failed.
+     */
+    @Override
+    public synchronized int compact(long now, long retentionMillis, long maxBytes) {
+        SQLiteDatabase db = null;
+        int deleted = 0;
+        long before;
+        try {
+            db = getWritableDatabase();
+            compileStatements(db);
+            if (hours != HOURS) {
+                // Deletes would have to reach rows being copied, wait for the copy to finish.
+                return 0;
+            }
+            TimeBuckets timeBuckets = TimeBuckets.getDefault();
+            long currentWeek = timeBuckets.weekOf(now);
+            before = Math.max(timeBuckets.weekOf(now - retentionMillis), compactedBefore);
+            db.beginTransaction();
+            // Deleted rows might hold the highest change sequence.
+            putMetaValue(db, META_KEY_CHANGE_SEQ_FLOOR, changeSequence);
+            deleted += deleteRecordedBefore(db, before);
+            while (before < currentWeek && getUsedBytes(db) > maxBytes) {
+                before = timeBuckets.weekOf(before + 8 * TimeBuckets.DAY_IN_MILLIS);
+                deleted += deleteRecordedBefore(db, before);
+            }
+            putMetaValue(db, META_KEY_COMPACTED_BEFORE, before);
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+        }
+        compactedBefore = before;
+        try {
+            reclaimFreePages(db);
+            truncateLog(db);
+        } catch (Exception e) {
+            // Pages stay free in the file and are reused by later writes.
+            e.printStackTrace();
+        }
+        return deleted;
+    }
+
+    private int deleteRecordedBefore(SQLiteDatabase db, long before) {
+        HourTable table = hours;
+        keepCompactedSteps(db, table, before);
+        return db.delete(table.name, table.keyColumn + " < ? AND " + COLUMN_IS_RECORDED_ON_SERVER + " = 1",
+                new String[]{String.valueOf(table.firstKeyFrom(before))});
+    }
+
+    /**
+     * Add steps of the rows deleteRecordedBefore is about to delete to their days in
+     * {@link #COMPACTED_TABLE_NAME}, so that server steps merged later are compared to them.
+     */
+    private void keepCompactedSteps(SQLiteDatabase db, HourTable table, long before) {
+        Cursor c = db.query(table.name, new String[]{table.keyColumn, COLUMN_STEPS},
+                table.keyColumn + " < ? AND " + COLUMN_IS_RECORDED_ON_SERVER + " = 1",
+                new String[]{String.valueOf(table.firstKeyFrom(before))}, null, null, table.keyColumn);
+        // Rows are read in order of hour, so each day is one run of rows.
+        long utcDay = Long.MIN_VALUE;
+        byte[] quarters = null;
+        try {
+            while (c != null && c.moveToNext()) {
+                long dateAndHour = table.dateAndHourOf(c.getLong(0));
+                long rowDay = QuarterSteps.utcDayOf(dateAndHour);
+                if (rowDay != utcDay) {
+                    if (quarters != null) {
+                        putCompactedQuarters(db, utcDay, quarters);
+                    }
+                    utcDay = rowDay;
+                    quarters = getCompactedQuarters(db, rowDay);
+                }
+                int quarter = QuarterSteps.quarterOf(dateAndHour);
+                quarters = QuarterSteps.put(quarters, quarter, QuarterSteps.get(quarters, quarter) + c.getInt(1));
+            }
+        } finally {
+            closeCursor(c);
+        }
+        if (quarters != null) {
+            putCompactedQuarters(db, utcDay, quarters);
+        }
+    }
+
+    /**
+     * @return Bytes of pages in use, free pages not included.
+     */
+    private static long getUsedBytes(SQLiteDatabase db) {
+        return (DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null))
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    /**
+     * Give up to {@link #INCREMENTAL_VACUUM_PAGES} free pages back to the file system. Databases
+     * created without incremental auto vacuum keep their free pages for later writes: switching
+     * them takes a VACUUM, which rebuilds the whole file while holding off every write.
+     */
+    private void reclaimFreePages(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            return;
+        }
+        // Each step frees one page, so read the pragma to its end.
+        Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + INCREMENTAL_VACUUM_PAGES + ")", null);
+        try {
+            while (c != null && c.moveToNext()) {
+                // Nothing to read.
+            }
+        } finally {
+            closeCursor(c);
+        }
+    }
+
+    /**
+     * Fold the write-ahead log back into the database file and empty it, so that space freed by
+     * compaction is not held by the log. SQLite before 3.8.8 runs a passive checkpoint instead.
+     */
+    private void truncateLog(SQLiteDatabase db) {
+        if (!"wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null))) {
+            return;
+        }
+        Cursor c = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        try {
+            while (c != null && c.moveToNext()) {
+                // Nothing to read.
+            }
+        } finally {
+            closeCursor(c);
+        }
+    }
+
+    /**
+     * Database for reads. Writers hold the lock of the helper for whole transactions, which
+     * {@link #getReadableDatabase()} takes, so the database is taken from it once. With write-ahead
+     * logging, reads outside a transaction then run on a connection of their own, next to the writer,
+     * and see the last commit.
+     */
+    private SQLiteDatabase getReadDatabase() {
+        SQLiteDatabase db = readDatabase;
+        if (db == null || !db.isOpen()) {
+            db = getReadableDatabase();
+            readDatabase = db;
+        }
+        return db;
+    }
+
+    private long getMetaValue(SQLiteDatabase db, String key, long defaultValue) {
+        Cursor c = db.query(META_TABLE_NAME, new String[]{COLUMN_META_VALUE},
+                COLUMN_META_KEY + " = ?", new String[]{key}, null, null, null);
+        try {
+            if (c == null || !c.moveToFirst()) {
+                return defaultValue;
+            }
+            return c.getLong(0);
+        } finally {
+            closeCursor(c);
+        }
+    }
+
+    private void putMetaValue(SQLiteDatabase db, String key, long value) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_META_KEY, key);
+        values.put(COLUMN_META_VALUE, value);
+        db.replaceOrThrow(META_TABLE_NAME, null, values);
+    }
+
+    @Override
     public int getSteps(final long dateAndHour) {
-        Logger.log("getStep dateAndHour" + dateAndHour);
-        SQLiteDatabase db = getReadableDatabase();
-        return getStepsImpl(db, dateAndHour);
+        Logger.log("getStep dateAndHour {}", dateAndHour);
+        long startedAt = System.nanoTime();
+        try {
+            return getStepsImpl(getReadDatabase(), dateAndHour);
+        } finally {
+            StepMetrics.getInstance().recordSince(StepMetrics.QUERY_LATENCY, startedAt);
+        }
     }
 
     private int getStepsImpl(SQLiteDatabase db, long dateAndHour) {
-        Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_STEPS},
-                COLUMN_DATE_AND_HOUR + " = ?",
-                new String[]{String.valueOf(dateAndHour)}, null, null, null);
+        HourTable table = hours;
+        Cursor c = db.query(table.name, new String[]{COLUMN_STEPS},
+                table.keyColumn + " = ?",
+                new String[]{String.valueOf(table.keyOf(dateAndHour))}, null, null, null);
         try {
             if (c == null) {
                 return 0;
@@ -130,14 +1035,42 @@ class Database extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Sum of hours from start to end, both inclusive. Whole days in between are read from the daily
+     * rollup, so long ranges cost one row per day instead of one per hour.
+     */
+    @Override
     public int getSteps(final long start, final long end) {
+        TimeBuckets timeBuckets = TimeBuckets.getDefault();
+        long firstDay = timeBuckets.dayOf(start);
+        long firstWholeDay = firstDay == start ? start : timeBuckets.nextDay(firstDay);
+        // Days ending at or before the hour after end are whole.
+        long endOfWholeDays = timeBuckets.dayOf(end + TimeBuckets.HOUR_IN_MILLIS);
+        long startedAt = System.nanoTime();
         Cursor c = null;
         try {
-            c = getReadableDatabase()
-                    .query(TABLE_NAME, new String[]{"SUM(" + COLUMN_STEPS + ")"},
-                            COLUMN_DATE_AND_HOUR + " >= ? AND " +
-                                    COLUMN_DATE_AND_HOUR + " <= ?",
-                            new String[]{String.valueOf(start), String.valueOf(end)}, null, null, null);
+            SQLiteDatabase db = getReadDatabase();
+            HourTable table = hours;
+            if (firstWholeDay < endOfWholeDays) {
+                // Hours are bound as keys ?1 to ?4, days as times ?5 and ?6.
+                c = db.rawQuery("SELECT " +
+                        "(SELECT IFNULL(SUM(" + COLUMN_STEPS + "), 0) FROM " + table.name +
+                        " WHERE " + table.keyColumn + " >= ?1 AND " + table.keyColumn + " < ?2) + " +
+                        "(SELECT IFNULL(SUM(" + COLUMN_STEPS + "), 0) FROM " + DAILY_TABLE_NAME +
+                        " WHERE " + COLUMN_DAY + " >= ?5 AND " + COLUMN_DAY + " < ?6) + " +
+                        "(SELECT IFNULL(SUM(" + COLUMN_STEPS + "), 0) FROM " + table.name +
+                        " WHERE " + table.keyColumn + " >= ?3 AND " + table.keyColumn + " <= ?4)",
+                        new String[]{String.valueOf(table.firstKeyFrom(start)),
+                                String.valueOf(table.firstKeyFrom(firstWholeDay)),
+                                String.valueOf(table.firstKeyFrom(endOfWholeDays)),
+                                String.valueOf(table.keyOf(end)),
+                                String.valueOf(firstWholeDay), String.valueOf(endOfWholeDays)});
+            } else {
+                c = db.query(table.name, new String[]{"SUM(" + COLUMN_STEPS + ")"},
+                        table.keyColumn + " >= ? AND " + table.keyColumn + " <= ?",
+                        new String[]{String.valueOf(table.firstKeyFrom(start)), String.valueOf(table.keyOf(end))},
+                        null, null, null);
+            }
             if (c == null) {
                 return 0;
             }
@@ -154,30 +1087,59 @@ class Database extends SQLiteOpenHelper {
             return 0;
         } finally {
             closeCursor(c);
+            StepMetrics.getInstance().recordSince(StepMetrics.QUERY_LATENCY, startedAt);
         }
     }
 
+    /**
+     * @return Steps of each day which has steps, from the day of start to the day of end, in order of
+     * day. {@link ChunkStepCount#unixTimeMillis} is the start of the day.
+     */
     @NonNull
-    public List<ChunkStepCount> getChunkStepsSince(final long start) {
+    @Override
+    public List<ChunkStepCount> getDailySteps(long start, long end) {
+        TimeBuckets timeBuckets = TimeBuckets.getDefault();
+        return getRollupSeries(DAILY_TABLE_NAME, COLUMN_DAY, timeBuckets.dayOf(start), timeBuckets.dayOf(end));
+    }
+
+    /**
+     * @return Steps of each week which has steps, from the week of start to the week of end, in order
+     * of week. {@link ChunkStepCount#unixTimeMillis} is the start of the week.
+     */
+    @NonNull
+    @Override
+    public List<ChunkStepCount> getWeeklySteps(long start, long end) {
+        TimeBuckets timeBuckets = TimeBuckets.getDefault();
+        return getRollupSeries(WEEKLY_TABLE_NAME, COLUMN_WEEK, timeBuckets.weekOf(start), timeBuckets.weekOf(end));
+    }
+
+    private List<ChunkStepCount> getRollupSeries(String table, String keyColumn, long first, long last) {
+        List<ChunkStepCount> series = new ArrayList<>();
+        long startedAt = System.nanoTime();
         Cursor c = null;
         try {
-            c = getReadableDatabase()
-                    .query(TABLE_NAME, new String[]{COLUMN_DATE_AND_HOUR, COLUMN_STEPS},
-                            COLUMN_DATE_AND_HOUR + " >= ?", new String[]{String.valueOf(start)}, null, null, null);
-
-            if (c == null) {
-                return new ArrayList<>();
+            c = getReadDatabase().query(table, new String[]{keyColumn, COLUMN_STEPS},
+                    keyColumn + " >= ? AND " + keyColumn + " <= ?",
+                    new String[]{String.valueOf(first), String.valueOf(last)}, null, null, keyColumn);
+            while (c != null && c.moveToNext()) {
+                series.add(new ChunkStepCount(c.getLong(0), c.getInt(1)));
             }
-
-            return createChunkedStepCounts(c);
+            return series;
         } catch (Exception e) {
             e.printStackTrace();
             return new ArrayList<>();
         } finally {
             closeCursor(c);
+            StepMetrics.getInstance().recordSince(StepMetrics.QUERY_LATENCY, startedAt);
         }
     }
 
+    @NonNull
+    @Override
+    public List<ChunkStepCount> getChunkStepsSince(final long start) {
+        return getChunkStepCounts(start, false);
+    }
+
     public int getTodayStep() {
         Logger.log("getTodayStep");
         return getSteps(DateUtils.getStartOfToday(), DateUtils.getCurrentTimeMllis());
@@ -185,63 +1147,362 @@ class Database extends SQLiteOpenHelper {
 
     @NonNull
     public List<ChunkStepCount> getNotRecordedChunkStepCounts() {
+        List<ChunkStepCount> lists = getChunkStepCounts(Long.MIN_VALUE, true);
+        Logger.log("Not recoreded Chunk Size: {}", lists.size());
+        return lists;
+    }
+
+    private List<ChunkStepCount> getChunkStepCounts(long start, boolean notRecordedOnly) {
+        List<ChunkStepCount> lists = new ArrayList<>();
+        ChunkStepCountPage page = new ChunkStepCountPage(DEFAULT_PAGE_SIZE);
+        while (true) {
+            if (!getChunkStepCountPage(start, notRecordedOnly, page)) {
+                return new ArrayList<>();
+            }
+            for (int i = 0; i < page.size; i++) {
+                lists.add(new ChunkStepCount(page.unixTimeMillis[i], page.steps[i]));
+            }
+            if (!page.isFull()) {
+                return lists;
+            }
+            start = page.nextStart();
+        }
+    }
+
+    /**
+     * Read rows from start in order of hour, as many as page can hold. Pages are keyset paginated:
+     * pass {@link ChunkStepCountPage#nextStart()} to read the next one.
+     *
+     * @param notRecordedOnly true to read only rows not recorded on server.
+     * @return true if succeeded.
+     */
+    @Override
+    public boolean getChunkStepCountPage(long start, boolean notRecordedOnly, ChunkStepCountPage page) {
+        HourTable table = hours;
+        String selection = table.keyColumn + " >= ?";
+        String first = String.valueOf(table.firstKeyFrom(start));
+        String[] selectionArgs;
+        if (notRecordedOnly) {
+            // The flag is a literal, so SQLite can use the partial index of rows not recorded.
+            selection += " AND " + table.keyColumn + " != ? AND " + COLUMN_IS_RECORDED_ON_SERVER + " = 0";
+            selectionArgs = new String[]{first, "-1"};
+        } else {
+            selectionArgs = new String[]{first};
+        }
+        return readPage(table, selection, selectionArgs, table.keyColumn, page);
+    }
+
+    /**
+     * Read rows changed after syncToken in order of change, as many as page can hold. Pass the
+     * last {@link ChunkStepCountPage#changeSequence} of a page to read the next one.
+     *
+     * @return true if succeeded.
+     */
+    @Override
+    public boolean getChangedChunkStepCountPage(long syncToken, ChunkStepCountPage page) {
+        HourTable table = hours;
+        return readPage(table, COLUMN_CHANGE_SEQ + " > ? AND " + table.keyColumn + " != ?",
+                new String[]{String.valueOf(syncToken), "-1"}, COLUMN_CHANGE_SEQ, page);
+    }
+
+    private boolean readPage(HourTable table, String selection, String[] selectionArgs, String orderBy,
+                             ChunkStepCountPage page) {
+        page.size = 0;
+        long startedAt = System.nanoTime();
         Cursor c = null;
         try {
-            c = getReadableDatabase()
-                    .query(TABLE_NAME, new String[]{COLUMN_DATE_AND_HOUR, COLUMN_STEPS},
-                            COLUMN_DATE_AND_HOUR + " != ? and " +
-                                    COLUMN_IS_RECORDED_ON_SERVER + " = ?", new String[]{"-1", "0"}, null, null, null);
-            Logger.log("Not recoreded Chunk Size: " + c.getCount());
-            // cursor close is in method
-            return createChunkedStepCounts(c);
+            c = getReadDatabase()
+                    .query(table.name, new String[]{table.keyColumn, COLUMN_STEPS, COLUMN_CHANGE_SEQ},
+                            selection, selectionArgs, null, null, orderBy, String.valueOf(page.capacity()));
+            while (c != null && c.moveToNext()) {
+                page.unixTimeMillis[page.size] = table.dateAndHourOf(c.getLong(0));
+                page.steps[page.size] = c.getInt(1);
+                page.changeSequence[page.size] = c.getLong(2);
+                page.size++;
+            }
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
-            if (c != null) {
-                c.close();
-            }
-            return new ArrayList<>();
+            page.size = 0;
+            return false;
+        } finally {
+            closeCursor(c);
+            StepMetrics.getInstance().recordSince(StepMetrics.QUERY_LATENCY, startedAt);
         }
     }
 
-    private List<ChunkStepCount> createChunkedStepCounts(Cursor c) {
-        if (c == null) {
-            return null;
+    /**
+     * Merge step counts from server. Rows are overwritten by server value unless they already have
+     * more steps, and marked as recorded on server.
+     * <p>
+     * Large lists are merged in chunks of {@link #SERVER_MERGE_CHUNK_SIZE}, each in its own
+     * transaction, so other writers can get in between. Merging is idempotent, so a restore that
+     * is interrupted in the middle can simply be retried.
+     */
+    @Override
+    public void increaseByServerChunkStepCounts(List<ChunkStepCount> chunkStepCounts,
+                                                @Nullable StepSensorFacade.ProgressListener listener) {
+        int total = chunkStepCounts.size();
+        if (total < BULK_MERGE_THRESHOLD) {
+            mergeServerStepsOneByOne(chunkStepCounts);
+            if (listener != null) listener.onProgress(total, total);
+            return;
         }
-        List<ChunkStepCount> lists = new ArrayList<>();
 
-        if (c.getCount() == 0) {
-            return lists;
-        }
-        while (c.moveToNext()) {
-            lists.add(new ChunkStepCount(c.getLong(0), c.getInt(1)));
+        ChunkStepCount[] sorted = chunkStepCounts.toArray(new ChunkStepCount[total]);
+        Arrays.sort(sorted, new Comparator<ChunkStepCount>() {
+            @Override
+            public int compare(ChunkStepCount lhs, ChunkStepCount rhs) {
+                return lhs.unixTimeMillis < rhs.unixTimeMillis ? -1
+                        : (lhs.unixTimeMillis == rhs.unixTimeMillis ? 0 : 1);
+            }
+        });
+        LongIntMap existingSteps = new LongIntMap(SERVER_MERGE_CHUNK_SIZE);
+        for (int from = 0; from < total; from += SERVER_MERGE_CHUNK_SIZE) {
+            int to = Math.min(from + SERVER_MERGE_CHUNK_SIZE, total);
+            mergeServerStepsChunk(sorted, from, to, existingSteps);
+            if (listener != null) listener.onProgress(to, total);
         }
-        return lists;
     }
 
-    public void increaseByServerChunkStepCounts(List<ChunkStepCount> chunkStepCounts) {
+    private synchronized void mergeServerStepsOneByOne(List<ChunkStepCount> chunkStepCounts) {
         SQLiteDatabase db = null;
         try {
             db = getWritableDatabase();
+            compileStatements(db);
             db.beginTransaction();
             for (ChunkStepCount chunkStepCount : chunkStepCounts) {
-                increaseBySeverChunkStepCount(db, chunkStepCount);
+                mergeServerStepsImpl(db, chunkStepCount.unixTimeMillis, chunkStepCount.steps);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (db != null && db.inTransaction()) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Merge sorted[from, to) with one range query for existing rows and reused write statements.
+     */
+    private synchronized void mergeServerStepsChunk(ChunkStepCount[] sorted, int from, int to,
+                                                    LongIntMap existingSteps) {
+        SQLiteDatabase db = null;
+        try {
+            db = getWritableDatabase();
+            compileStatements(db);
+            db.beginTransaction();
+            readStepsInRange(db, sorted[from].unixTimeMillis, sorted[to - 1].unixTimeMillis, existingSteps);
+            for (int i = from; i < to; i++) {
+                long dateAndHour = sorted[i].unixTimeMillis;
+                int serverSteps = sorted[i].steps;
+                if (mergeServerSteps(db, dateAndHour, serverSteps, existingSteps.get(dateAndHour, -1))) {
+                    // The same hour can appear more than once in the list.
+                    existingSteps.put(dateAndHour, serverSteps);
+                }
             }
             db.setTransactionSuccessful();
         } finally {
-            if (db != null) {
+            if (db != null && db.inTransaction()) {
                 db.endTransaction();
             }
         }
     }
 
-    private void increaseBySeverChunkStepCount(SQLiteDatabase db, ChunkStepCount chunkStepCount) {
-        int currentSteps = getStepsImpl(db, chunkStepCount.unixTimeMillis);
-        if (chunkStepCount.steps >= currentSteps) {
-            insertOrReplaceStepRow(db, chunkStepCount.unixTimeMillis, chunkStepCount.steps, true);
+    private void readStepsInRange(SQLiteDatabase db, long start, long end, LongIntMap into) {
+        into.clear();
+        HourTable table = hours;
+        Cursor c = db.query(table.name, new String[]{table.keyColumn, COLUMN_STEPS},
+                table.keyColumn + " >= ? AND " + table.keyColumn + " <= ?",
+                new String[]{String.valueOf(table.firstKeyFrom(start)), String.valueOf(table.keyOf(end))},
+                null, null, null);
+        try {
+            while (c != null && c.moveToNext()) {
+                into.put(table.dateAndHourOf(c.getLong(0)), c.getInt(1));
+            }
+        } finally {
+            closeCursor(c);
         }
     }
 
     private void closeCursor(@Nullable Cursor cursor) {
         if (cursor != null) cursor.close();
     }
+
+    private static void closeStatement(@Nullable SQLiteStatement statement) {
+        if (statement != null) statement.close();
+    }
+
+    /**
+     * Steps of the quarter hours of one UTC day, packed as a byte of the quarter and four bytes of its
+     * steps per quarter with steps, in order of quarter.
+     */
+    static final class QuarterSteps {
+        private static final long QUARTER_IN_MILLIS = 15 * 60 * 1000;
+        private static final int ENTRY_SIZE = 5;
+
+        private QuarterSteps() {
+            throw new AssertionError();
+        }
+
+        static long utcDayOf(long dateAndHour) {
+            return dateAndHour / TimeBuckets.DAY_IN_MILLIS;
+        }
+
+        static int quarterOf(long dateAndHour) {
+            return (int) (dateAndHour % TimeBuckets.DAY_IN_MILLIS / QUARTER_IN_MILLIS);
+        }
+
+        /**
+         * @return Steps of the quarter, 0 if it has none.
+         */
+        static int get(@Nullable byte[] quarters, int quarter) {
+            if (quarters == null) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(quarters);
+            for (int offset = 0; offset < quarters.length; offset += ENTRY_SIZE) {
+                if ((quarters[offset] & 0xff) == quarter) {
+                    return buffer.getInt(offset + 1);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return Copy of quarters with steps of the quarter set.
+         */
+        static byte[] put(@Nullable byte[] quarters, int quarter, int steps) {
+            int length = quarters == null ? 0 : quarters.length;
+            int offset = 0;
+            while (offset < length && (quarters[offset] & 0xff) < quarter) {
+                offset += ENTRY_SIZE;
+            }
+            boolean exists = offset < length && (quarters[offset] & 0xff) == quarter;
+            ByteBuffer buffer = ByteBuffer.allocate(exists ? length : length + ENTRY_SIZE);
+            if (offset > 0) {
+                buffer.put(quarters, 0, offset);
+            }
+            buffer.put((byte) quarter).putInt(steps);
+            int rest = exists ? offset + ENTRY_SIZE : offset;
+            if (rest < length) {
+                buffer.put(quarters, rest, length - rest);
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Table of hourly rows and how it keys hours. Keys count units of keyUnitMillis since epoch, a
+     * time within a unit maps to the key of its start. Besides the key, both tables have the same
+     * columns.
+     */
+    static final class HourTable {
+        final String name;
+        final String keyColumn;
+        final long keyUnitMillis;
+
+        HourTable(String name, String keyColumn, long keyUnitMillis) {
+            this.name = name;
+            this.keyColumn = keyColumn;
+            this.keyUnitMillis = keyUnitMillis;
+        }
+
+        long keyOf(long dateAndHour) {
+            long key = dateAndHour / keyUnitMillis;
+            return key * keyUnitMillis > dateAndHour ? key - 1 : key;
+        }
+
+        /**
+         * @return First key starting at or after time, for ranges starting at time.
+         */
+        long firstKeyFrom(long time) {
+            long key = time / keyUnitMillis;
+            return key * keyUnitMillis < time ? key + 1 : key;
+        }
+
+        long dateAndHourOf(long key) {
+            return key * keyUnitMillis;
+        }
+
+        /**
+         * The recorded flag is 0 or 1, which SQLite keeps in the record header without a byte of
+         * its own.
+         */
+        String createSql(boolean withoutRowid) {
+            return "CREATE TABLE " + name + " (" +
+                    keyColumn + " INTEGER PRIMARY KEY, " +
+                    COLUMN_STEPS + " INTEGER NOT NULL, " +
+                    COLUMN_IS_RECORDED_ON_SERVER + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_CHANGE_SEQ + " INTEGER NOT NULL DEFAULT 0)" +
+                    (withoutRowid ? " WITHOUT ROWID" : "");
+        }
+
+        String notRecordedPartialIndexSql() {
+            return "CREATE INDEX " + name + "_not_recorded ON " + name + " (" + keyColumn + ") WHERE " +
+                    COLUMN_IS_RECORDED_ON_SERVER + " = 0";
+        }
+
+        String notRecordedIndexSql() {
+            return "CREATE INDEX " + name + "_not_recorded ON " + name + " (" +
+                    COLUMN_IS_RECORDED_ON_SERVER + ", " + keyColumn + ")";
+        }
+
+        String changeSeqIndexSql() {
+            return "CREATE INDEX " + name + "_change_seq ON " + name + " (" + COLUMN_CHANGE_SEQ + ")";
+        }
+
+        /**
+         * ?1 key, ?2 steps, ?3 change sequence.
+         */
+        String addStepsUpsertSql() {
+            return "INSERT INTO " + name + " (" + keyColumn + ", " + COLUMN_STEPS + ", " +
+                    COLUMN_IS_RECORDED_ON_SERVER + ", " + COLUMN_CHANGE_SEQ + ") VALUES (?1, ?2, 0, ?3)" +
+                    " ON CONFLICT(" + keyColumn + ") DO UPDATE SET " +
+                    COLUMN_STEPS + " = " + COLUMN_STEPS + " + excluded." + COLUMN_STEPS + ", " +
+                    COLUMN_IS_RECORDED_ON_SERVER + " = 0, " +
+                    COLUMN_CHANGE_SEQ + " = excluded." + COLUMN_CHANGE_SEQ;
+        }
+
+        /**
+         * ?1 steps, ?2 change sequence, ?3 key.
+         */
+        String addStepsUpdateSql() {
+            return "UPDATE " + name + " SET " +
+                    COLUMN_STEPS + " = " + COLUMN_STEPS + " + ?1, " +
+                    COLUMN_IS_RECORDED_ON_SERVER + " = 0, " +
+                    COLUMN_CHANGE_SEQ + " = ?2 WHERE " + keyColumn + " = ?3";
+        }
+
+        /**
+         * ?1 steps, ?2 change sequence, ?3 key.
+         */
+        String updateServerStepsSql() {
+            return "UPDATE " + name + " SET " +
+                    COLUMN_STEPS + " = ?1, " +
+                    COLUMN_IS_RECORDED_ON_SERVER + " = 1, " +
+                    COLUMN_CHANGE_SEQ + " = ?2 WHERE " + keyColumn + " = ?3";
+        }
+
+        /**
+         * key, steps, recorded flag, change sequence.
+         */
+        String insertStepsSql() {
+            return "INSERT OR IGNORE INTO " + name + " (" + keyColumn + ", " + COLUMN_STEPS + ", " +
+                    COLUMN_IS_RECORDED_ON_SERVER + ", " + COLUMN_CHANGE_SEQ + ") VALUES (?, ?, ?, ?)";
+        }
+
+        String selectStepsSql() {
+            return "SELECT " + COLUMN_STEPS + " FROM " + name + " WHERE " + keyColumn + " = ?";
+        }
+
+        /**
+         * key, sync token. Marking does not stamp a new sequence: the row has not changed, only its
+         * sync state.
+         */
+        String markRecordedSql() {
+            return "UPDATE " + name + " SET " + COLUMN_IS_RECORDED_ON_SERVER + " = 1 WHERE " + keyColumn +
+                    " = ? AND " + COLUMN_CHANGE_SEQ + " <= ? AND " + COLUMN_IS_RECORDED_ON_SERVER + " = 0";
+        }
+    }
 }
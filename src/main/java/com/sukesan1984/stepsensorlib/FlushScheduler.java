@@ -0,0 +1,123 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.support.annotation.Nullable;
+
+import com.sukesan1984.stepsensorlib.model.FlushDecision;
+import com.sukesan1984.stepsensorlib.util.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides when unsaved steps are saved and when the save alarm has to fire next.
+ * <p>
+ * The interval doubles up to {@link #MAX_INTERVAL_MILLIS} on every wake up without steps, and drops
+ * to {@link #MIN_INTERVAL_MILLIS} as soon as walking is seen. While walking, saves ride on the
+ * sensor's batch deliveries, which wake the CPU anyway, and the alarm is only re-armed when the
+ * armed one is too late. Recent decisions are kept for {@link #getRecentDecisions()}.
+ */
+class FlushScheduler {
+    // Sensor deliveries are batched for at least this long in background, saving more often gains nothing.
+    static final long MIN_INTERVAL_MILLIS = 60 * 1000;
+    static final long MAX_INTERVAL_MILLIS = 60 * 60 * 1000;
+    static final int WALKING_STEPS_PER_MINUTE = 20;
+    static final int HISTORY_SIZE = 32;
+    private static final long NOT_ARMED = Long.MIN_VALUE;
+    private static final FlushScheduler instance = new FlushScheduler();
+
+    private long intervalMillis = MIN_INTERVAL_MILLIS;
+    private long lastFlushAt = NOT_ARMED;
+    private long armedAt = NOT_ARMED;
+    private final FlushDecision[] history = new FlushDecision[HISTORY_SIZE];
+    private int historyCount;
+
+    public static FlushScheduler getInstance() {
+        return instance;
+    }
+
+    /**
+     * Called when the save alarm fires or the service is started.
+     */
+    public synchronized FlushDecision onWakeUp(long now, int unsavedSteps) {
+        String reason;
+        if (unsavedSteps == 0) {
+            intervalMillis = Math.min(intervalMillis * 2, MAX_INTERVAL_MILLIS);
+            reason = "idle";
+        } else if (isWalking(now, unsavedSteps)) {
+            intervalMillis = MIN_INTERVAL_MILLIS;
+            reason = "walking";
+        } else {
+            intervalMillis = Math.max(intervalMillis / 2, MIN_INTERVAL_MILLIS);
+            reason = "few steps";
+        }
+        lastFlushAt = now;
+        long next = now + intervalMillis;
+        // A start by the app can find an alarm still pending, which is fine unless it is too late.
+        if (armedAt > now && armedAt <= next) {
+            return record(now, reason, unsavedSteps, unsavedSteps > 0, FlushDecision.KEEP_ALARM);
+        }
+        armedAt = next;
+        return record(now, reason, unsavedSteps, unsavedSteps > 0, next);
+    }
+
+    /**
+     * Called on each sensor delivery, so keep it cheap.
+     *
+     * @return The decision, or null if there is nothing to do.
+     */
+    @Nullable
+    public synchronized FlushDecision onSensorDelivery(long now, int unsavedSteps) {
+        if (unsavedSteps == 0) {
+            return null;
+        }
+        boolean walking = isWalking(now, unsavedSteps);
+        if (walking) {
+            intervalMillis = MIN_INTERVAL_MILLIS;
+        }
+        boolean saveNow = lastFlushAt == NOT_ARMED || now - lastFlushAt >= intervalMillis;
+        if (saveNow) {
+            lastFlushAt = now;
+        }
+        long next = FlushDecision.KEEP_ALARM;
+        // Walking started while the alarm is armed for an idle interval: bring it forward so the last
+        // steps of the walk do not wait for it.
+        if (walking && (armedAt == NOT_ARMED || armedAt > now + 2 * MIN_INTERVAL_MILLIS)) {
+            next = now + MIN_INTERVAL_MILLIS;
+            armedAt = next;
+        }
+        if (!saveNow && next == FlushDecision.KEEP_ALARM) {
+            return null;
+        }
+        return record(now, walking ? "walking" : "delivery", unsavedSteps, saveNow, next);
+    }
+
+    /**
+     * @return Recent decisions, oldest first.
+     */
+    public synchronized List<FlushDecision> getRecentDecisions() {
+        int size = Math.min(historyCount, HISTORY_SIZE);
+        List<FlushDecision> decisions = new ArrayList<>(size);
+        for (int i = historyCount - size; i < historyCount; i++) {
+            decisions.add(history[i % HISTORY_SIZE]);
+        }
+        return decisions;
+    }
+
+    synchronized long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    private boolean isWalking(long now, int unsavedSteps) {
+        long elapsed = lastFlushAt == NOT_ARMED ? MIN_INTERVAL_MILLIS
+                : Math.max(now - lastFlushAt, MIN_INTERVAL_MILLIS);
+        return unsavedSteps * MIN_INTERVAL_MILLIS >= WALKING_STEPS_PER_MINUTE * elapsed;
+    }
+
+    private FlushDecision record(long now, String reason, int unsavedSteps, boolean saveNow, long next) {
+        FlushDecision decision = new FlushDecision(now, reason, unsavedSteps, intervalMillis, saveNow, next);
+        history[historyCount % HISTORY_SIZE] = decision;
+        historyCount++;
+        Logger.log("{}", decision);
+        return decision;
+    }
+}
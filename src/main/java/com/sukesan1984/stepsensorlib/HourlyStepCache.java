@@ -0,0 +1,133 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import java.util.List;
+
+/**
+ * Saved steps of recent hours, kept in a ring of primitive arrays.
+ * <p>
+ * The cache covers a window of consecutive hours ending at the latest hour written or loaded.
+ * Inside the window it is authoritative: an hour without steps is 0, not a miss. Reads outside
+ * the window return {@link #MISS}, and the caller has to load the window from the database.
+ * It holds the same values as the steps table plus the journal, so writes have to be mirrored
+ * here by whoever writes there.
+ */
+class HourlyStepCache {
+    static final int MISS = -1;
+    static final int DAYS = 8;
+    // One extra hour for days that are 25 hours long.
+    private static final int CAPACITY = DAYS * 24 + 1;
+
+    private final int[] steps = new int[CAPACITY];
+    private boolean loaded;
+    private long windowStart;
+    private long latest;
+
+    /**
+     * Replace the whole cache with saved rows and journaled steps. Steps outside of [start, end]
+     * are ignored.
+     *
+     * @param start First dateAndHour to cover.
+     * @param end   Last dateAndHour to cover.
+     */
+    public synchronized void load(long start, long end, List<ChunkStepCount> savedRows,
+                                  long[] journaledDateAndHours, int[] journaledSteps, int journaledSize) {
+        latest = hourIndex(end);
+        windowStart = Math.max(hourIndex(start), latest - CAPACITY + 1);
+        for (long index = windowStart; index <= latest; index++) {
+            steps[slot(index)] = 0;
+        }
+        loaded = true;
+        for (ChunkStepCount row : savedRows) {
+            addIfInWindow(row.unixTimeMillis, row.steps);
+        }
+        for (int i = 0; i < journaledSize; i++) {
+            addIfInWindow(journaledDateAndHours[i], journaledSteps[i]);
+        }
+    }
+
+    private void addIfInWindow(long dateAndHour, int stepsToAdd) {
+        long index = hourIndex(dateAndHour);
+        if (index >= windowStart && index <= latest) {
+            steps[slot(index)] += stepsToAdd;
+        }
+    }
+
+    public synchronized void add(long dateAndHour, int stepsToAdd) {
+        long index = hourIndex(dateAndHour);
+        if (!loaded || index < windowStart) {
+            return;
+        }
+        advanceTo(index);
+        steps[slot(index)] += stepsToAdd;
+    }
+
+    /**
+     * Mirror of the server merge: overwrite unless the hour already has more steps.
+     */
+    public synchronized void mergeMax(long dateAndHour, int serverSteps) {
+        long index = hourIndex(dateAndHour);
+        if (!loaded || index < windowStart) {
+            return;
+        }
+        advanceTo(index);
+        int slot = slot(index);
+        if (serverSteps > steps[slot]) {
+            steps[slot] = serverSteps;
+        }
+    }
+
+    /**
+     * @return Steps of the hour, or {@link #MISS} if the hour is not covered.
+     */
+    public synchronized int getSteps(long dateAndHour) {
+        long index = hourIndex(dateAndHour);
+        if (!loaded || index < windowStart) {
+            return MISS;
+        }
+        return index > latest ? 0 : steps[slot(index)];
+    }
+
+    /**
+     * @return Sum of steps between start and end inclusive, or {@link #MISS} if start is not covered.
+     */
+    public synchronized int getSteps(long start, long end) {
+        long startIndex = hourIndex(start);
+        if (!loaded || startIndex < windowStart) {
+            return MISS;
+        }
+        long endIndex = Math.min(hourIndex(end), latest);
+        int sum = 0;
+        for (long index = startIndex; index <= endIndex; index++) {
+            sum += steps[slot(index)];
+        }
+        return sum;
+    }
+
+    public synchronized void invalidate() {
+        loaded = false;
+    }
+
+    private void advanceTo(long index) {
+        if (index <= latest) {
+            return;
+        }
+        for (long i = Math.max(latest + 1, index - CAPACITY + 1); i <= index; i++) {
+            steps[slot(i)] = 0;
+        }
+        latest = index;
+        windowStart = Math.max(windowStart, index - CAPACITY + 1);
+    }
+
+    private static int slot(long hourIndex) {
+        long slot = hourIndex % CAPACITY;
+        return (int) (slot < 0 ? slot + CAPACITY : slot);
+    }
+
+    private static long hourIndex(long dateAndHour) {
+        long index = dateAndHour / TimeBuckets.HOUR_IN_MILLIS;
+        return dateAndHour < 0 && index * TimeBuckets.HOUR_IN_MILLIS != dateAndHour ? index - 1 : index;
+    }
+}
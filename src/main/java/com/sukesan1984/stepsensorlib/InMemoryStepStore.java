@@ -0,0 +1,80 @@
+package com.sukesan1984.stepsensorlib;
+
+import java.util.Arrays;
+
+/**
+ * Store which keeps hours in sorted arrays only, and forgets them with the process. Useful for
+ * tests and for apps which keep history on their server.
+ */
+class InMemoryStepStore extends SortedStepStore {
+    private long[] hours = new long[64];
+    private int[] steps = new int[64];
+    private long[] syncs = new long[64];
+    private int size;
+    private long journalGeneration;
+    private long changeSequence;
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    long hourAt(int index) {
+        return hours[index];
+    }
+
+    @Override
+    int stepsAt(int index) {
+        return steps[index];
+    }
+
+    @Override
+    long syncAt(int index) {
+        return syncs[index];
+    }
+
+    @Override
+    long getChangeSequence() {
+        return changeSequence;
+    }
+
+    @Override
+    public synchronized long getFoldedJournalGeneration() {
+        return journalGeneration;
+    }
+
+    @Override
+    synchronized boolean apply(Rows rows, long journalGeneration, long changeSequence) {
+        for (int i = 0; i < rows.size; i++) {
+            int index = indexOf(rows.hours[i]);
+            if (index < 0) {
+                // New hours are mostly the latest, so the shift is short.
+                index = -index - 1;
+                if (size == hours.length) {
+                    hours = Arrays.copyOf(hours, size * 2);
+                    steps = Arrays.copyOf(steps, size * 2);
+                    syncs = Arrays.copyOf(syncs, size * 2);
+                }
+                System.arraycopy(hours, index, hours, index + 1, size - index);
+                System.arraycopy(steps, index, steps, index + 1, size - index);
+                System.arraycopy(syncs, index, syncs, index + 1, size - index);
+                size++;
+            }
+            hours[index] = rows.hours[i];
+            steps[index] = rows.steps[i];
+            syncs[index] = rows.syncs[i];
+        }
+        this.journalGeneration = journalGeneration;
+        this.changeSequence = changeSequence;
+        return true;
+    }
+
+    @Override
+    synchronized boolean clear(long journalGeneration, long changeSequence) {
+        size = 0;
+        this.journalGeneration = journalGeneration;
+        this.changeSequence = changeSequence;
+        return true;
+    }
+}
@@ -0,0 +1,95 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Steps by minute not saved yet, filled on the sensor thread without locks.
+ * <p>
+ * Each slot of a ring of one day of minutes packs the minute and its steps into one long, so that
+ * adding and draining are single compare-and-sets. Saves drain the ring far more often than once a
+ * day; a minute still unsaved when its slot comes around again is dropped, hourly steps keep it.
+ */
+class MinuteStepBuffer {
+    private static final String TAG = "MinuteStepBuffer";
+    static final long MINUTE_IN_MILLIS = 60 * 1000;
+    static final int SLOTS = 24 * 60;
+    private static final int STEPS_BITS = 20;
+    private static final long STEPS_MASK = (1L << STEPS_BITS) - 1;
+
+    private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+    void add(long timeMillis, int steps) {
+        long minute = timeMillis / MINUTE_IN_MILLIS;
+        int index = (int) (minute % SLOTS);
+        while (true) {
+            long slot = slots.get(index);
+            long next;
+            if (slot >>> STEPS_BITS == minute) {
+                next = slot + Math.min(steps, STEPS_MASK - (slot & STEPS_MASK));
+            } else {
+                if ((slot & STEPS_MASK) != 0) {
+                    Log.d(TAG, "add: dropping unsaved steps of a day ago.");
+                }
+                next = minute << STEPS_BITS | Math.min(steps, STEPS_MASK);
+            }
+            if (slots.compareAndSet(index, slot, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Take all steps out of the buffer.
+     *
+     * @param minuteStarts Receives the start of each minute with steps, in no particular order.
+     * @param steps        Receives the steps of each minute.
+     * @return Number of minutes taken.
+     */
+    int drain(long[] minuteStarts, int[] steps) {
+        int size = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            while (true) {
+                long slot = slots.get(i);
+                int stepCount = (int) (slot & STEPS_MASK);
+                if (stepCount == 0) {
+                    break;
+                }
+                if (slots.compareAndSet(i, slot, slot & ~STEPS_MASK)) {
+                    minuteStarts[size] = (slot >>> STEPS_BITS) * MINUTE_IN_MILLIS;
+                    steps[size] = stepCount;
+                    size++;
+                    break;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copy steps of the buffer, leaving them in it.
+     *
+     * @return Number of minutes copied.
+     * @see #drain(long[], int[])
+     */
+    int copy(long[] minuteStarts, int[] steps) {
+        int size = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long slot = slots.get(i);
+            int stepCount = (int) (slot & STEPS_MASK);
+            if (stepCount != 0) {
+                minuteStarts[size] = (slot >>> STEPS_BITS) * MINUTE_IN_MILLIS;
+                steps[size] = stepCount;
+                size++;
+            }
+        }
+        return size;
+    }
+
+    void clear() {
+        for (int i = 0; i < SLOTS; i++) {
+            slots.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.util.LongIntMap;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Steps by minute, kept as one fixed size record per hour with steps: the hour followed by the
+ * steps of its 60 minutes packed as shorts. A record is 128 bytes, a few times an hourly row of
+ * the database, where 60 rows would cost far more.
+ * <p>
+ * Hours are UTC hours, so records do not move when the time zone changes. Records are appended in
+ * the order hours are first saved and updated in place; an index from hour to record is read once.
+ * Minutes only add detail to hourly steps, which stay the source of every total, so writes are not
+ * synced: a crash may lose the minutes of the last save.
+ */
+class MinuteStepFile {
+    static final String FILE_NAME = "steps_by_minute.bin";
+    static final int MINUTES = 60;
+    static final int RECORD_SIZE = 8 + 2 * MINUTES;
+
+    private static MinuteStepFile instance;
+
+    private final File file;
+    private final File tempFile;
+    // Record number by hour, null until read.
+    @Nullable
+    private LongIntMap index;
+    private int recordCount;
+    // Range of hours in the index, so that reads of open ranges stop early.
+    private long firstHour = Long.MAX_VALUE;
+    private long lastHour = Long.MIN_VALUE;
+
+    static synchronized MinuteStepFile getInstance(final Context c) {
+        if (instance == null) {
+            instance = new MinuteStepFile(new File(c.getFilesDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    MinuteStepFile(@NonNull File file) {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Add steps to their minutes.
+     *
+     * @param minuteStarts Start of each minute, in any order.
+     * @return true if written.
+     */
+    synchronized boolean add(long[] minuteStarts, int[] steps, int size) {
+        if (size == 0) {
+            return true;
+        }
+        // Group by hour first, so each record is read and written once.
+        long[] hours = new long[size];
+        short[][] minutes = new short[size][];
+        int hourCount = 0;
+        for (int i = 0; i < size; i++) {
+            long hour = utcHourOf(minuteStarts[i]);
+            int j = 0;
+            while (j < hourCount && hours[j] != hour) j++;
+            if (j == hourCount) {
+                hours[hourCount] = hour;
+                minutes[hourCount] = new short[MINUTES];
+                hourCount++;
+            }
+            int minute = (int) ((minuteStarts[i] - hour) / MinuteStepBuffer.MINUTE_IN_MILLIS);
+            minutes[j][minute] = saturate(minutes[j][minute] + steps[i]);
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            LongIntMap index = getIndex();
+            raf = new RandomAccessFile(file, "rw");
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            for (int i = 0; i < hourCount; i++) {
+                int recordNumber = index.get(hours[i], -1);
+                record.clear();
+                if (recordNumber >= 0) {
+                    raf.seek((long) recordNumber * RECORD_SIZE);
+                    raf.readFully(record.array());
+                    for (int minute = 0; minute < MINUTES; minute++) {
+                        int offset = 8 + 2 * minute;
+                        record.putShort(offset, saturate(record.getShort(offset) + minutes[i][minute]));
+                    }
+                } else {
+                    recordNumber = recordCount;
+                    record.putLong(0, hours[i]);
+                    for (int minute = 0; minute < MINUTES; minute++) {
+                        record.putShort(8 + 2 * minute, minutes[i][minute]);
+                    }
+                }
+                raf.seek((long) recordNumber * RECORD_SIZE);
+                raf.write(record.array());
+                if (recordNumber == recordCount) {
+                    index.put(hours[i], recordNumber);
+                    recordCount++;
+                    firstHour = Math.min(firstHour, hours[i]);
+                    lastHour = Math.max(lastHour, hours[i]);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Read the index again, the file might be partly written.
+            this.index = null;
+            return false;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * @return Minutes with steps from start to end, both inclusive, in order of time.
+     * {@link ChunkStepCount#unixTimeMillis} is the start of the minute.
+     */
+    @NonNull
+    synchronized List<ChunkStepCount> getMinuteSteps(long start, long end) {
+        List<ChunkStepCount> list = new ArrayList<>();
+        if (!file.exists()) {
+            return list;
+        }
+        RandomAccessFile raf = null;
+        try {
+            LongIntMap index = getIndex();
+            raf = new RandomAccessFile(file, "r");
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            long last = Math.min(end, lastHour);
+            for (long hour = Math.max(utcHourOf(start), firstHour); hour <= last; hour += TimeBuckets.HOUR_IN_MILLIS) {
+                int recordNumber = index.get(hour, -1);
+                if (recordNumber < 0) {
+                    continue;
+                }
+                raf.seek((long) recordNumber * RECORD_SIZE);
+                raf.readFully(record.array());
+                for (int minute = 0; minute < MINUTES; minute++) {
+                    long minuteStart = hour + minute * MinuteStepBuffer.MINUTE_IN_MILLIS;
+                    int steps = record.getShort(8 + 2 * minute);
+                    if (steps > 0 && minuteStart >= start && minuteStart <= end) {
+                        list.add(new ChunkStepCount(minuteStart, steps));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(raf);
+        }
+        return list;
+    }
+
+    /**
+     * Remove hours ending at or before time.
+     *
+     * @return Number of hours removed, or -1 on failure.
+     */
+    synchronized int deleteBefore(long time) {
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = null;
+        FileOutputStream out = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            int count = (int) (raf.length() / RECORD_SIZE);
+            byte[] records = new byte[count * RECORD_SIZE];
+            raf.readFully(records);
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (buffer.getLong(i * RECORD_SIZE) + TimeBuckets.HOUR_IN_MILLIS > time) {
+                    System.arraycopy(records, i * RECORD_SIZE, records, kept * RECORD_SIZE, RECORD_SIZE);
+                    kept++;
+                }
+            }
+            if (kept == count) {
+                return 0;
+            }
+            out = new FileOutputStream(tempFile);
+            out.write(records, 0, kept * RECORD_SIZE);
+            out.getFD().sync();
+            closeQuietly(out);
+            out = null;
+            closeQuietly(raf);
+            raf = null;
+            index = null;
+            return tempFile.renameTo(file) ? count - kept : -1;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            closeQuietly(out);
+            closeQuietly(raf);
+        }
+    }
+
+    synchronized void deleteAll() {
+        if (file.exists() && !file.delete()) {
+            return;
+        }
+        index = new LongIntMap(16);
+        recordCount = 0;
+        firstHour = Long.MAX_VALUE;
+        lastHour = Long.MIN_VALUE;
+    }
+
+    private LongIntMap getIndex() throws IOException {
+        if (index != null) {
+            return index;
+        }
+        LongIntMap loaded = new LongIntMap(64);
+        int count = 0;
+        firstHour = Long.MAX_VALUE;
+        lastHour = Long.MIN_VALUE;
+        if (file.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // A record cut short by a crash is overwritten by the next one.
+                count = (int) (raf.length() / RECORD_SIZE);
+                for (int i = 0; i < count; i++) {
+                    raf.seek((long) i * RECORD_SIZE);
+                    long hour = raf.readLong();
+                    loaded.put(hour, i);
+                    firstHour = Math.min(firstHour, hour);
+                    lastHour = Math.max(lastHour, hour);
+                }
+            } finally {
+                closeQuietly(raf);
+            }
+        }
+        index = loaded;
+        recordCount = count;
+        return loaded;
+    }
+
+    private static long utcHourOf(long timeMillis) {
+        return timeMillis - timeMillis % TimeBuckets.HOUR_IN_MILLIS;
+    }
+
+    private static short saturate(int steps) {
+        return (short) Math.min(steps, Short.MAX_VALUE);
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -4,11 +4,18 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
 
-// TODO: use this for service restart
+/**
+ * Small values of the library which have to survive the process, see {@link StepCheckpoint}.
+ */
 class PreferenceManager {
     private static String PEDOMETER = "pedometer";
     private static String CORRECT_SHUTDOWN = "corretctShutdown";
     private static String STEPS_SINCE_BOOT = "stepsSinceBoot";
+    private static String CHECKPOINT_DATE_AND_HOUR = "checkpointDateAndHour";
+    private static String CHECKPOINT_UNSAVED = "checkpointUnsaved";
+    private static String RETENTION_DAYS = "retentionDays";
+    private static String MAX_STORAGE_BYTES = "maxStorageBytes";
+    private static String LAST_COMPACTED_AT = "lastCompactedAt";
 
     public static void writeCorrectShutDown(@NonNull Context context, boolean isCorrectShutdown) {
         SharedPreferences prefs = context.getSharedPreferences(PEDOMETER, Context.MODE_PRIVATE);
@@ -43,4 +50,61 @@ class PreferenceManager {
                 .apply();
 
     }
+
+    /**
+     * Write the checkpoint in one commit, which replaces the file atomically.
+     */
+    public static void writeCheckpoint(@NonNull Context context, long dateAndHour, int stepsSinceBoot,
+                                       @NonNull String unsaved) {
+        context.getSharedPreferences(PEDOMETER, Context.MODE_PRIVATE).edit()
+                .putLong(CHECKPOINT_DATE_AND_HOUR, dateAndHour)
+                .putInt(STEPS_SINCE_BOOT, stepsSinceBoot)
+                .putString(CHECKPOINT_UNSAVED, unsaved)
+                .commit();
+    }
+
+    public static long readCheckpointDateAndHour(@NonNull Context context, long defaultDateAndHour) {
+        return context.getSharedPreferences(PEDOMETER, Context.MODE_PRIVATE)
+                .getLong(CHECKPOINT_DATE_AND_HOUR, defaultDateAndHour);
+    }
+
+    public static String readCheckpointUnsaved(@NonNull Context context, String defaultUnsaved) {
+        return context.getSharedPreferences(PEDOMETER, Context.MODE_PRIVATE)
+                .getString(CHECKPOINT_UNSAVED, defaultUnsaved);
+    }
+
+    public static void deleteCheckpoint(@NonNull Context context) {
+        context.getSharedPreferences(PEDOMETER, Context.MODE_PRIVATE).edit()
+                .remove(CHECKPOINT_DATE_AND_HOUR)
+                .remove(STEPS_SINCE_BOOT)
+                .remove(CHECKPOINT_UNSAVED)
+                .commit();
+    }
+
+    public static void writeRetentionPolicy(@NonNull Context context, int retentionDays, long maxStorageBytes) {
+        context.getSharedPreferences(PEDOMETER, Context.MODE_PRIVATE).edit()
+                .putInt(RETENTION_DAYS, retentionDays)
+                .putLong(MAX_STORAGE_BYTES, maxStorageBytes)
+                .apply();
+    }
+
+    public static int readRetentionDays(@NonNull Context context, int defaultDays) {
+        return context.getSharedPreferences(PEDOMETER, Context.MODE_PRIVATE)
+                .getInt(RETENTION_DAYS, defaultDays);
+    }
+
+    public static long readMaxStorageBytes(@NonNull Context context, long defaultBytes) {
+        return context.getSharedPreferences(PEDOMETER, Context.MODE_PRIVATE)
+                .getLong(MAX_STORAGE_BYTES, defaultBytes);
+    }
+
+    public static long readLastCompactedAt(@NonNull Context context) {
+        return context.getSharedPreferences(PEDOMETER, Context.MODE_PRIVATE)
+                .getLong(LAST_COMPACTED_AT, 0);
+    }
+
+    public static void writeLastCompactedAt(@NonNull Context context, long timeMillis) {
+        context.getSharedPreferences(PEDOMETER, Context.MODE_PRIVATE).edit()
+                .putLong(LAST_COMPACTED_AT, timeMillis).apply();
+    }
 }
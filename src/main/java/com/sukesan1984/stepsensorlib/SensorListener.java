@@ -7,21 +7,26 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Build;
 import android.os.IBinder;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.sukesan1984.stepsensorlib.model.FlushDecision;
 import com.sukesan1984.stepsensorlib.util.Logger;
 
-public class SensorListener extends Service implements SensorEventListener {
+public class SensorListener extends Service {
 
-    private final static int MICROSECONDS_IN_ONE_MINUTE = 60 * 1000 * 1000;
     private final static String EXTRA_RESET_DATA = BuildConfig.APPLICATION_ID + ".ResetData";
-    private static final int MAX_DELAY_MINUTES = 1;
+    private final static String EXTRA_BATCHING_MODE = BuildConfig.APPLICATION_ID + ".BatchingMode";
+    private final static long COMPACTION_INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+
+    // Lives as long as the process, a new process starts in background mode. Written by the service only.
+    private static volatile StepSensorFacade.BatchingMode batchingMode = StepSensorFacade.BatchingMode.BACKGROUND;
+
+    @Nullable
+    private StepCounterListener stepCounterListener;
 
     /**
      * Start service, and write unsaved data to DB.
@@ -34,17 +39,34 @@ public class SensorListener extends Service implements SensorEventListener {
         return new Intent(context, SensorListener.class).putExtra(EXTRA_RESET_DATA, true);
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        // nobody knows what happens here: step value might magically decrease
-        // when this method is called...
-        Logger.log(sensor.getName() + " accuracy changed: " + accuracy);
+    /**
+     * Start service, and move the sensor to the batching mode.
+     */
+    static Intent createIntentForBatchingMode(Context context, StepSensorFacade.BatchingMode mode) {
+        return new Intent(context, SensorListener.class).putExtra(EXTRA_BATCHING_MODE, mode.name());
     }
 
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        int stepsSinceBoot = (int) event.values[0];
-        StepCountCoordinator.getInstance().onStepCounterEvent(this, stepsSinceBoot);
+    /**
+     * @return Batching mode of the service, if it runs in this process.
+     */
+    static StepSensorFacade.BatchingMode getBatchingMode() {
+        return batchingMode;
+    }
+
+    /**
+     * Count samples delivered together by the sensor, then checkpoint and schedule a save if due.
+     */
+    static void onStepCounterEvents(Context context, long[] timeMillis, int[] counts, int n) {
+        StepCountCoordinator coordinator = StepCountCoordinator.getInstance();
+        coordinator.onStepCounterEvents(context, timeMillis, counts, n);
+        if (coordinator.isCheckpointDue()) {
+            StepWriter.getInstance().requestCheckpoint(context);
+        }
+        FlushDecision decision = FlushScheduler.getInstance()
+                .onSensorDelivery(System.currentTimeMillis(), coordinator.peekUnsavedSteps());
+        if (decision != null) {
+            apply(context, decision);
+        }
     }
 
     @Nullable
@@ -59,24 +81,84 @@ public class SensorListener extends Service implements SensorEventListener {
         if (intent != null && intent.getBooleanExtra(EXTRA_RESET_DATA, false)) {
             Logger.log("Deleting all data and stopping service.");
             unregisterSensor();
-            StepCountCoordinator.getInstance().reset();
-            Database.getInstance(this).deleteAll();
+            final Context context = getApplicationContext();
+            StepWriter.getInstance().execute(new Runnable() {
+                @Override
+                public void run() {
+                    StepCountCoordinator.getInstance().reset(context);
+                    StepJournal.getInstance(context).clear();
+                    StepStores.get(context).deleteAll();
+                    MinuteStepFile.getInstance(context).deleteAll();
+                }
+            });
             stopSelf();
             return START_NOT_STICKY;
         }
+        String mode = intent != null ? intent.getStringExtra(EXTRA_BATCHING_MODE) : null;
+        if (mode != null) {
+            try {
+                batchingMode = StepSensorFacade.BatchingMode.valueOf(mode);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+            registerSensor();
+            // Go on scheduling: this may be the first start, with no save alarm armed yet. An alarm
+            // already pending is kept.
+        }
 
-        // restart service every minutes get the current step count
-        ((AlarmManager) getApplicationContext().getSystemService(Context.ALARM_SERVICE))
-                .set(AlarmManager.RTC, System.currentTimeMillis() + MAX_DELAY_MINUTES * 60 * 1000,
-                        PendingIntent.getService(this, 2, createIntent(this), PendingIntent.FLAG_UPDATE_CURRENT));
-        StepCountCoordinator.getInstance().saveSteps(this);
+        // restart service when the scheduler wants the next save
+        apply(this, FlushScheduler.getInstance()
+                .onWakeUp(System.currentTimeMillis(), StepCountCoordinator.getInstance().peekUnsavedSteps()));
+        compactIfDue(this);
         return START_STICKY;
     }
 
+    /**
+     * Compact storage about once a day. Runs on a save wake up, so it needs no wake up of its own.
+     */
+    private static void compactIfDue(Context context) {
+        final Context applicationContext = context.getApplicationContext();
+        final long now = System.currentTimeMillis();
+        long lastCompactedAt = PreferenceManager.readLastCompactedAt(applicationContext);
+        if (now >= lastCompactedAt && now - lastCompactedAt < COMPACTION_INTERVAL_MILLIS) {
+            return;
+        }
+        PreferenceManager.writeLastCompactedAt(applicationContext, now);
+        StepWriter.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                long retentionMillis = PreferenceManager.readRetentionDays(applicationContext,
+                        StepSensorFacade.DEFAULT_RETENTION_DAYS) * 24L * 60 * 60 * 1000;
+                long maxBytes = PreferenceManager.readMaxStorageBytes(applicationContext,
+                        StepSensorFacade.DEFAULT_MAX_STORAGE_BYTES);
+                int compacted = StepCountCoordinator.getInstance()
+                        .compact(applicationContext, now, retentionMillis, maxBytes);
+                Logger.log("compacted hours: {}", compacted);
+                MinuteStepFile.getInstance(applicationContext).deleteBefore(now - retentionMillis);
+            }
+        });
+    }
+
+    private static void apply(Context context, FlushDecision decision) {
+        if (decision.saveNow) {
+            StepWriter.getInstance().requestSave(context);
+        }
+        if (decision.rearmsAlarm()) {
+            // Replaces the pending alarm, if any.
+            ((AlarmManager) context.getApplicationContext().getSystemService(Context.ALARM_SERVICE))
+                    .set(AlarmManager.RTC, decision.nextFlushAt,
+                            PendingIntent.getService(context, 2, createIntent(context), PendingIntent.FLAG_UPDATE_CURRENT));
+        }
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
         Logger.log("SensorListener onCreate");
+        // Restore before the first event, which would otherwise become the new baseline.
+        if (StepCountCoordinator.getInstance().recover(this, false)) {
+            Logger.log("recovered steps from checkpoint");
+        }
         registerSensor();
     }
 
@@ -100,8 +182,10 @@ public class SensorListener extends Service implements SensorEventListener {
 
     private void unregisterSensor() {
         try {
-            SensorManager sm = (SensorManager) getSystemService(SENSOR_SERVICE);
-            sm.unregisterListener(this);
+            if (stepCounterListener != null) {
+                stepCounterListener.unregister();
+                stepCounterListener = null;
+            }
         } catch (Exception e) {
             if (BuildConfig.DEBUG) {
                 Logger.log(e);
@@ -110,20 +194,25 @@ public class SensorListener extends Service implements SensorEventListener {
         }
     }
 
+    /**
+     * Register the step counter, or move the registration to the current batching mode.
+     */
     @TargetApi(Build.VERSION_CODES.KITKAT)
     private void registerSensor() {
-        Logger.log("register sensor listener");
-        SensorManager sm = (SensorManager) getSystemService(SENSOR_SERVICE);
-        Logger.log("step sensors: " + sm.getSensorList(Sensor.TYPE_STEP_COUNTER).size());
-        if (sm.getSensorList(Sensor.TYPE_STEP_COUNTER).size() < 1) {
+        if (!StepSensorFacade.isValidStepSensorDevice(this)) {
             return;
         }
-        Logger.log("default: " + sm.getDefaultSensor(Sensor.TYPE_STEP_COUNTER).getName());
-
-        // enable batching with delay of max 5min
-        if (StepSensorFacade.isValidStepSensorDevice(this)) {
-            sm.registerListener(this, sm.getDefaultSensor(Sensor.TYPE_STEP_COUNTER),
-                    SensorManager.SENSOR_DELAY_NORMAL, MAX_DELAY_MINUTES * MICROSECONDS_IN_ONE_MINUTE);
+        if (stepCounterListener == null) {
+            Logger.log("register sensor listener");
+            SensorManager sm = (SensorManager) getSystemService(SENSOR_SERVICE);
+            Logger.log("step sensors: {}", sm.getSensorList(Sensor.TYPE_STEP_COUNTER).size());
+            if (sm.getSensorList(Sensor.TYPE_STEP_COUNTER).size() < 1) {
+                return;
+            }
+            Sensor sensor = sm.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
+            Logger.log("default: {}, fifo: {}", sensor.getName(), sensor.getFifoMaxEventCount());
+            stepCounterListener = new StepCounterListener(this, sm, sensor);
         }
+        stepCounterListener.register(stepCounterListener.latencyUs(batchingMode));
     }
 }
@@ -8,8 +8,11 @@ import com.sukesan1984.stepsensorlib.util.Logger;
 
 public class ShutdownReceiver extends BroadcastReceiver {
     @Override
-    public void onReceive(Context context, Intent intent) {
-        if (BuildConfig.DEBUG) Logger.log("shutting down");
-        StepCountCoordinator.getInstance().saveSteps(context);
+    public void onReceive(final Context context, Intent intent) {
+        Logger.log("shutting down");
+        // Waits for the save, the process may be gone right after this returns. Goes through the
+        // provider when the receiver runs in another process than the one counting steps.
+        StepSensorFacade.saveNow(context);
+        Logger.flush();
     }
 }
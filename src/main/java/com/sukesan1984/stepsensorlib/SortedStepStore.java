@@ -0,0 +1,322 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.model.ChunkStepCountPage;
+import com.sukesan1984.stepsensorlib.util.LongIntMap;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Store keeping hours as rows sorted by hour, which are found by binary search.
+ * <p>
+ * The sync state of a row is its change sequence, negated once the row is recorded on server.
+ * Writes collect the rows they change into a batch, which subclasses apply all or nothing together
+ * with the journal generation and the last change sequence. Rollups are summed on read.
+ */
+abstract class SortedStepStore implements StepStore {
+    private static final int SERVER_MERGE_CHUNK_SIZE = 500;
+
+    abstract int size();
+
+    abstract long hourAt(int index);
+
+    abstract int stepsAt(int index);
+
+    abstract long syncAt(int index);
+
+    abstract long getChangeSequence();
+
+    /**
+     * Insert or replace rows, and store journal generation and change sequence, all or nothing.
+     *
+     * @return true when committed.
+     */
+    abstract boolean apply(Rows rows, long journalGeneration, long changeSequence);
+
+    /**
+     * Remove all rows, and store journal generation and change sequence.
+     *
+     * @return true when committed.
+     */
+    abstract boolean clear(long journalGeneration, long changeSequence);
+
+    @Override
+    public synchronized boolean addSteps(long dateAndHour, int steps) {
+        if (steps < 0) throw new IllegalArgumentException("stepsToAdd should not be negative value.");
+        Rows rows = new Rows();
+        long sequence = getChangeSequence();
+        rows.put(dateAndHour, Math.max(currentSteps(rows, dateAndHour), 0) + steps, ++sequence);
+        return apply(rows, getFoldedJournalGeneration(), sequence);
+    }
+
+    @Override
+    public synchronized boolean foldJournal(long generation, long[] dateAndHours, int[] steps, int size) {
+        Rows rows = new Rows();
+        long sequence = getChangeSequence();
+        for (int i = 0; i < size; i++) {
+            rows.put(dateAndHours[i], Math.max(currentSteps(rows, dateAndHours[i]), 0) + steps[i], ++sequence);
+        }
+        return apply(rows, generation, sequence);
+    }
+
+    @Override
+    public synchronized int getSteps(long dateAndHour) {
+        int index = indexOf(dateAndHour);
+        return index >= 0 ? stepsAt(index) : 0;
+    }
+
+    @Override
+    public synchronized int getSteps(long start, long end) {
+        int sum = 0;
+        for (int i = lowerBound(start); i < size() && hourAt(i) <= end; i++) {
+            sum += stepsAt(i);
+        }
+        return sum;
+    }
+
+    @NonNull
+    @Override
+    public synchronized List<ChunkStepCount> getDailySteps(long start, long end) {
+        return getRollupSeries(start, end, false);
+    }
+
+    @NonNull
+    @Override
+    public synchronized List<ChunkStepCount> getWeeklySteps(long start, long end) {
+        return getRollupSeries(start, end, true);
+    }
+
+    private List<ChunkStepCount> getRollupSeries(long start, long end, boolean weekly) {
+        TimeBuckets timeBuckets = TimeBuckets.getDefault();
+        long first = weekly ? timeBuckets.weekOf(start) : timeBuckets.dayOf(start);
+        long last = weekly ? timeBuckets.weekOf(end) : timeBuckets.dayOf(end);
+        List<ChunkStepCount> series = new ArrayList<>();
+        ChunkStepCount current = null;
+        for (int i = lowerBound(first); i < size(); i++) {
+            int steps = stepsAt(i);
+            if (steps == 0) {
+                continue;
+            }
+            long hour = hourAt(i);
+            long bucket = weekly ? timeBuckets.weekOf(hour) : timeBuckets.dayOf(hour);
+            if (bucket > last) {
+                break;
+            }
+            if (current == null || current.unixTimeMillis != bucket) {
+                current = new ChunkStepCount(bucket, 0);
+                series.add(current);
+            }
+            current.steps += steps;
+        }
+        return series;
+    }
+
+    @NonNull
+    @Override
+    public synchronized List<ChunkStepCount> getChunkStepsSince(long start) {
+        List<ChunkStepCount> list = new ArrayList<>();
+        for (int i = lowerBound(start); i < size(); i++) {
+            list.add(new ChunkStepCount(hourAt(i), stepsAt(i)));
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized boolean getChunkStepCountPage(long start, boolean notRecordedOnly, ChunkStepCountPage page) {
+        page.size = 0;
+        for (int i = lowerBound(start); i < size() && !page.isFull(); i++) {
+            long sync = syncAt(i);
+            if (notRecordedOnly && sync < 0) {
+                continue;
+            }
+            page.unixTimeMillis[page.size] = hourAt(i);
+            page.steps[page.size] = stepsAt(i);
+            page.changeSequence[page.size] = Math.abs(sync);
+            page.size++;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean getChangedChunkStepCountPage(long syncToken, ChunkStepCountPage page) {
+        page.size = 0;
+        // Rows are not ordered by change, pick the oldest changes after the token.
+        long[] sequences = new long[size()];
+        int count = 0;
+        LongIntMap indexBySequence = new LongIntMap(16);
+        for (int i = 0; i < size(); i++) {
+            long sequence = Math.abs(syncAt(i));
+            if (sequence > syncToken) {
+                sequences[count++] = sequence;
+                indexBySequence.put(sequence, i);
+            }
+        }
+        Arrays.sort(sequences, 0, count);
+        for (int i = 0; i < count && !page.isFull(); i++) {
+            int index = indexBySequence.get(sequences[i], -1);
+            page.unixTimeMillis[page.size] = hourAt(index);
+            page.steps[page.size] = stepsAt(index);
+            page.changeSequence[page.size] = sequences[i];
+            page.size++;
+        }
+        return true;
+    }
+
+    @Override
+    public void increaseByServerChunkStepCounts(List<ChunkStepCount> chunkStepCounts,
+                                                @Nullable StepSensorFacade.ProgressListener listener) {
+        int total = chunkStepCounts.size();
+        ChunkStepCount[] sorted = chunkStepCounts.toArray(new ChunkStepCount[total]);
+        Arrays.sort(sorted, new Comparator<ChunkStepCount>() {
+            @Override
+            public int compare(ChunkStepCount lhs, ChunkStepCount rhs) {
+                return lhs.unixTimeMillis < rhs.unixTimeMillis ? -1
+                        : (lhs.unixTimeMillis == rhs.unixTimeMillis ? 0 : 1);
+            }
+        });
+        if (total == 0 && listener != null) {
+            listener.onProgress(0, 0);
+        }
+        for (int from = 0; from < total; from += SERVER_MERGE_CHUNK_SIZE) {
+            int to = Math.min(from + SERVER_MERGE_CHUNK_SIZE, total);
+            if (!mergeServerStepsChunk(sorted, from, to)) {
+                throw new IllegalStateException("Failed to merge steps from server.");
+            }
+            if (listener != null) listener.onProgress(to, total);
+        }
+    }
+
+    private synchronized boolean mergeServerStepsChunk(ChunkStepCount[] sorted, int from, int to) {
+        Rows rows = new Rows();
+        long sequence = getChangeSequence();
+        for (int i = from; i < to; i++) {
+            long dateAndHour = sorted[i].unixTimeMillis;
+            int serverSteps = sorted[i].steps;
+            if (serverSteps >= currentSteps(rows, dateAndHour)) {
+                rows.put(dateAndHour, serverSteps, -(++sequence));
+            }
+        }
+        return rows.size == 0 || apply(rows, getFoldedJournalGeneration(), sequence);
+    }
+
+    @Override
+    public synchronized long getSyncToken() {
+        return getChangeSequence();
+    }
+
+    @Override
+    public synchronized int markRecorded(long[] dateAndHours, long syncToken) {
+        Rows rows = new Rows();
+        for (long dateAndHour : dateAndHours) {
+            int index = indexOf(dateAndHour);
+            if (index < 0 || rows.indexOf(dateAndHour) >= 0) {
+                continue;
+            }
+            long sync = syncAt(index);
+            if (sync > 0 && sync <= syncToken) {
+                rows.put(dateAndHour, stepsAt(index), -sync);
+            }
+        }
+        if (rows.size == 0) {
+            return 0;
+        }
+        return apply(rows, getFoldedJournalGeneration(), getChangeSequence()) ? rows.size : -1;
+    }
+
+    @Override
+    public synchronized void deleteAll() {
+        clear(getFoldedJournalGeneration(), getChangeSequence());
+    }
+
+    @Override
+    public int compact(long now, long retentionMillis, long maxBytes) {
+        // Rollups are summed from hours, so hours are kept. Rows are a few bytes and found by binary
+        // search, so neither size nor read cost grows much with history.
+        return 0;
+    }
+
+    @Override
+    public void onTimeZoneChanged() {
+        // Rollups are summed on read.
+    }
+
+    /**
+     * @return Steps of the hour in rows, or else in the store, or -1 if there is no such hour.
+     */
+    private int currentSteps(Rows rows, long dateAndHour) {
+        int index = rows.indexOf(dateAndHour);
+        if (index >= 0) {
+            return rows.steps[index];
+        }
+        index = indexOf(dateAndHour);
+        return index >= 0 ? stepsAt(index) : -1;
+    }
+
+    /**
+     * @return Index of the hour, or -(insertion point) - 1 if there is no such hour.
+     */
+    int indexOf(long dateAndHour) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long hour = hourAt(mid);
+            if (hour < dateAndHour) {
+                low = mid + 1;
+            } else if (hour > dateAndHour) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return Index of the first hour at or after dateAndHour.
+     */
+    private int lowerBound(long dateAndHour) {
+        int index = indexOf(dateAndHour);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Rows sorted by hour, one per hour.
+     */
+    static final class Rows {
+        long[] hours = new long[16];
+        int[] steps = new int[16];
+        long[] syncs = new long[16];
+        int size;
+
+        int indexOf(long dateAndHour) {
+            return Arrays.binarySearch(hours, 0, size, dateAndHour);
+        }
+
+        void put(long dateAndHour, int stepCount, long sync) {
+            int index = indexOf(dateAndHour);
+            if (index < 0) {
+                index = -index - 1;
+                if (size == hours.length) {
+                    hours = Arrays.copyOf(hours, size * 2);
+                    steps = Arrays.copyOf(steps, size * 2);
+                    syncs = Arrays.copyOf(syncs, size * 2);
+                }
+                System.arraycopy(hours, index, hours, index + 1, size - index);
+                System.arraycopy(steps, index, steps, index + 1, size - index);
+                System.arraycopy(syncs, index, syncs, index + 1, size - index);
+                size++;
+            }
+            hours[index] = dateAndHour;
+            steps[index] = stepCount;
+            syncs[index] = sync;
+        }
+    }
+}
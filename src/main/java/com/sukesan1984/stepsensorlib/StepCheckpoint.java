@@ -0,0 +1,105 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Ingestion state of {@link StepCountCoordinator}, kept so that steps not saved yet survive the
+ * process being killed.
+ * <p>
+ * The step counter keeps counting while the process is gone, so only the counter value of the last
+ * event and the steps not saved by then are needed: steps after it are the difference to the first
+ * event after restart. A checkpoint is written whenever a save takes steps out of the state, before
+ * they are journaled, so steps are never counted twice.
+ */
+class StepCheckpoint {
+    /**
+     * Where checkpoints are kept.
+     */
+    interface Store {
+        void write(@NonNull StepCheckpoint checkpoint);
+
+        /**
+         * @return The last checkpoint written, or null if there is none.
+         */
+        @Nullable
+        StepCheckpoint read();
+
+        void clear();
+    }
+
+    final long dateAndHourOfLastEvent;
+    final int lastSteps;
+    final long[] unsavedDateAndHours;
+    final int[] unsavedSteps;
+
+    StepCheckpoint(long dateAndHourOfLastEvent, int lastSteps, long[] unsavedDateAndHours, int[] unsavedSteps) {
+        this.dateAndHourOfLastEvent = dateAndHourOfLastEvent;
+        this.lastSteps = lastSteps;
+        this.unsavedDateAndHours = unsavedDateAndHours;
+        this.unsavedSteps = unsavedSteps;
+    }
+
+    /**
+     * @return Store in the preferences of the library, which are written atomically.
+     */
+    static Store preferences(final Context context) {
+        return new Store() {
+            @Override
+            public void write(@NonNull StepCheckpoint checkpoint) {
+                PreferenceManager.writeCheckpoint(context, checkpoint.dateAndHourOfLastEvent, checkpoint.lastSteps,
+                        encodeUnsaved(checkpoint));
+            }
+
+            @Nullable
+            @Override
+            public StepCheckpoint read() {
+                long dateAndHour = PreferenceManager.readCheckpointDateAndHour(context, Long.MIN_VALUE);
+                int lastSteps = PreferenceManager.readStepsSinceBoot(context, -1);
+                if (dateAndHour == Long.MIN_VALUE || lastSteps < 0) {
+                    return null;
+                }
+                return decode(dateAndHour, lastSteps, PreferenceManager.readCheckpointUnsaved(context, ""));
+            }
+
+            @Override
+            public void clear() {
+                PreferenceManager.deleteCheckpoint(context);
+            }
+        };
+    }
+
+    /**
+     * @return Unsaved steps as "hour:steps" pairs separated by commas.
+     */
+    static String encodeUnsaved(StepCheckpoint checkpoint) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < checkpoint.unsavedDateAndHours.length; i++) {
+            if (i > 0) builder.append(',');
+            builder.append(checkpoint.unsavedDateAndHours[i]).append(':').append(checkpoint.unsavedSteps[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return Checkpoint, or null if unsaved is broken.
+     */
+    @Nullable
+    static StepCheckpoint decode(long dateAndHourOfLastEvent, int lastSteps, String unsaved) {
+        String[] pairs = unsaved.isEmpty() ? new String[0] : unsaved.split(",");
+        long[] dateAndHours = new long[pairs.length];
+        int[] steps = new int[pairs.length];
+        try {
+            for (int i = 0; i < pairs.length; i++) {
+                int colon = pairs[i].indexOf(':');
+                dateAndHours[i] = Long.parseLong(pairs[i].substring(0, colon));
+                steps[i] = Integer.parseInt(pairs[i].substring(colon + 1));
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return new StepCheckpoint(dateAndHourOfLastEvent, lastSteps, dateAndHours, steps);
+    }
+}
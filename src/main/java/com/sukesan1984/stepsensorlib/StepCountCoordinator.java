@@ -1,96 +1,973 @@
 package com.sukesan1984.stepsensorlib;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
-import com.sukesan1984.stepsensorlib.util.DateUtils;
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.model.ChunkStepCountPage;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Turns step counter events into hourly steps.
+ * <p>
+ * Sensor events only swap an immutable {@link State} with compare-and-set, so they never wait for
+ * saves or reads. Saves are serialized by {@link #saveLock}, and move steps from the state to the
+ * cache inside a sequence-locked section. Readers retry while such a section is running, so they
+ * see every step exactly once without taking any lock.
+ * <p>
+ * Reads of the store run on the calling thread, next to saves on the writer thread rather than
+ * after them. Saves and folds move steps out of the state and the journal inside another
+ * sequence-locked section, and such reads retry when one ran meanwhile.
+ * <p>
+ * The state is checkpointed by {@link StepCheckpoint}, so that a restarted process goes on counting
+ * from the last event instead of losing steps not saved yet.
+ * <p>
+ * Steps are attributed to the time the sensor took them, not the time they were delivered, so that
+ * batching does not move them into a later hour. An increment is spread evenly over the time it
+ * took, and split between hours when that crosses the end of an hour.
+ */
 class StepCountCoordinator {
     private static final String TAG = "StepCountCoordinator";
-    private static final StepCountCoordinator singleton = new StepCountCoordinator();
+    private static final StepCountCoordinator singleton =
+            new StepCountCoordinator(TimeBuckets.getDefault(), null, new HourlyStepCache(), null);
     // https://finc.slack.com/archives/C3552EVFV/p1497343956278850
     // https://finc.slack.com/archives/C2AFVMQ5V/p1495508346662505
     private static final long MAX_STEPS_PER_HOUR = 18000;
+    // Increments over a short time are allowed this much above the hourly rate.
+    private static final long RATE_TOLERANCE_STEPS = 50;
+    // An increment is taken to have been walked within this per step before its sample.
+    private static final long SLOWEST_STEP_MILLIS = 1000;
+    // Samples older than this have a broken timestamp, and are taken as delivered now.
+    private static final long MAX_SAMPLE_AGE_MILLIS = 24 * 60 * 60 * 1000;
+    private static final long NO_EVENT = Long.MIN_VALUE;
+    private static final long NO_TIME = Long.MIN_VALUE;
+    // Checkpoints between saves only keep steps in the right hour, the counter keeps the count itself.
+    static final int CHECKPOINT_STEPS = 100;
+    static final long CHECKPOINT_INTERVAL_MILLIS = 60 * 1000;
 
+    private final TimeBuckets timeBuckets;
+    @Nullable
+    private final StepJournal journal;
+    private final HourlyStepCache cache;
+    @Nullable
+    private final StepCheckpoint.Store checkpointStore;
+    private final StepCountPublisher publisher;
+    private final StepMetrics metrics = StepMetrics.getInstance();
+    // Null unless minute resolution is enabled.
     @Nullable
-    private Long dateAndHourOfLastEvent;
-    private int lastSteps;
-    private int unsavedSteps = 0;
+    private volatile MinuteStepBuffer minuteBuffer;
+    @Nullable
+    private volatile MinuteStepFile minuteFile;
+    // Reused by saves, under saveLock.
+    private long[] drainedMinuteStarts;
+    private int[] drainedMinuteSteps;
+    private final AtomicReference<State> state = new AtomicReference<>(State.EMPTY);
+    private final Object saveLock = new Object();
+    // Odd while steps are moved between state and cache.
+    private final AtomicInteger saveSequence = new AtomicInteger();
+    // Odd while steps are moved from state to the journal or the store, or from the journal to the store.
+    private final AtomicInteger storeSequence = new AtomicInteger();
+    // Last checkpointed state, read by the sensor thread to tell if the next checkpoint is due.
+    private volatile long checkpointedDateAndHour = NO_EVENT;
+    private volatile int checkpointedSteps;
+    private volatile long checkpointedAt;
 
     public static StepCountCoordinator getInstance() {
         return singleton;
     }
 
-    private StepCountCoordinator() {
+    /**
+     * @param journal         Journal to save to, or null to use the one of the context given to each call.
+     * @param checkpointStore Store of checkpoints, or null to use the preferences of the context given to
+     *                        each call.
+     */
+    StepCountCoordinator(@NonNull TimeBuckets timeBuckets, @Nullable StepJournal journal,
+                         @NonNull HourlyStepCache cache, @Nullable StepCheckpoint.Store checkpointStore) {
+        this.timeBuckets = timeBuckets;
+        this.journal = journal;
+        this.cache = cache;
+        this.checkpointStore = checkpointStore;
+        this.publisher = new StepCountPublisher(this, timeBuckets);
     }
 
-    public synchronized void onStepCounterEvent(Context context, int stepsSinceBoot) {
-        if (stepsSinceBoot < 0) {
-            Log.d(TAG, "onStepCounterEvent: Oops... stepsSinceBoot is negative... This SHOULD NOT happen...");
-            return;
+    StepCountPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * @return Start of the current hour, by the clock counting steps.
+     */
+    long currentHour() {
+        return timeBuckets.currentHour();
+    }
+
+    /**
+     * Also count steps by minute into file, or stop it with null. Steps of minutes not saved yet
+     * are dropped on stop.
+     */
+    void setMinuteStepFile(@Nullable MinuteStepFile file) {
+        synchronized (saveLock) {
+            minuteFile = file;
+            minuteBuffer = file != null ? new MinuteStepBuffer() : null;
+            drainedMinuteStarts = file != null ? new long[MinuteStepBuffer.SLOTS] : null;
+            drainedMinuteSteps = file != null ? new int[MinuteStepBuffer.SLOTS] : null;
         }
+    }
 
-        long dateAndHour = DateUtils.getCurrentDateAndHour();
-        if (dateAndHourOfLastEvent == null) {
-            dateAndHourOfLastEvent = dateAndHour;
-            lastSteps = stepsSinceBoot;
-            Log.v(TAG, "onStepCounterEvent: lastSteps is set to " + lastSteps);
-            return;
+    public void onStepCounterEvent(Context context, int stepsSinceBoot) {
+        metrics.increment(StepMetrics.EVENTS_RECEIVED);
+        long now = timeBuckets.currentTimeMillis();
+        while (true) {
+            State current = state.get();
+            Fold fold = new Fold(current, now);
+            fold.sample(now, stepsSinceBoot);
+            if (fold.apply()) {
+                return;
+            }
         }
+    }
 
-        if (dateAndHour != dateAndHourOfLastEvent) {
-            Log.d(TAG, "Save by hour change.");
-            saveSteps(context);
+    /**
+     * Same as calling {@link #onStepCounterEvent} for each sample at its time, but swaps the state
+     * once. Use for samples delivered together by the sensor.
+     *
+     * @param timeMillis Wall clock time each sample was taken, see {@link StepEventBatch#toWallClock}.
+     *                   Times before the last sample or after now are moved to the nearer of both.
+     * @param counts     Counter value of each sample, in order of delivery.
+     */
+    public void onStepCounterEvents(Context context, long[] timeMillis, int[] counts, int n) {
+        if (n == 0) return;
+        metrics.add(StepMetrics.EVENTS_RECEIVED, n);
+        long now = timeBuckets.currentTimeMillis();
+        while (true) {
+            State current = state.get();
+            Fold fold = new Fold(current, now);
+            for (int i = 0; i < n; i++) {
+                fold.sample(timeMillis[i], counts[i]);
+            }
+            if (fold.apply()) {
+                return;
+            }
         }
+    }
 
-        int increment = stepsSinceBoot - lastSteps;
-        if (increment > MAX_STEPS_PER_HOUR) {
-            Log.d(TAG, "onStepCounterEvent: Skipping steps, increment " + increment + " exceeds limit of " + MAX_STEPS_PER_HOUR + ".");
-            lastSteps = stepsSinceBoot;
+    public void saveSteps(Context context) {
+        synchronized (saveLock) {
+            saveMinuteSteps();
+            State snapshot = state.get();
+            int size = snapshot.unsavedDateAndHours.length;
+            if (BuildConfig.DEBUG) Log.v(TAG, "saveSteps: " + size + " hours");
+            if (size == 0) return;
+
+            long startedAt = System.nanoTime();
+
+            storeSequence.incrementAndGet();
+            try {
+                moveToCache(snapshot.unsavedDateAndHours, snapshot.unsavedSteps, true);
+                // Before saving: if the process dies in between, steps are lost rather than counted twice.
+                writeCheckpoint(context, state.get());
+                boolean failed = false;
+                for (int i = 0; i < size; i++) {
+                    long dateAndHour = snapshot.unsavedDateAndHours[i];
+                    int steps = snapshot.unsavedSteps[i];
+                    if (getJournal(context).append(dateAndHour, steps)) {
+                        continue;
+                    }
+                    // Journal is not available, write through to the table.
+                    if (!StepStores.get(context).addSteps(dateAndHour, steps)) {
+                        Log.e(TAG, "Failed to save steps.");
+                        moveToCache(new long[]{dateAndHour}, new int[]{steps}, false);
+                        failed = true;
+                    }
+                }
+                if (failed) {
+                    writeCheckpoint(context, state.get());
+                }
+            } finally {
+                storeSequence.incrementAndGet();
+            }
+            metrics.increment(StepMetrics.FLUSHES);
+            metrics.recordSince(StepMetrics.FLUSH_LATENCY, startedAt);
+        }
+        // Counts are the same, but the current hour might have changed since the last event.
+        publisher.onChanged();
+    }
+
+    private void saveMinuteSteps() {
+        MinuteStepBuffer minutes = minuteBuffer;
+        if (minutes == null) {
             return;
         }
-        if (increment < 0) {
-            Log.d(TAG, "onStepCounterEvent: Discarding steps event, negative increment "
-                    + increment + " happened! (stepsSinceBoot: " + stepsSinceBoot + ")");
-            // XXX: Resetting can cause extra steps to be added if the problem is order of event is randomized.
-            // But it can be sudden decrease of internal counter of sensor, then no step recorded
-            // until restarting the app or counter reaches lastSteps value. Counting extra steps is
-            // far more better than no steps, so I choose to reset here!
-            lastSteps = stepsSinceBoot;
+        int size = minutes.drain(drainedMinuteStarts, drainedMinuteSteps);
+        if (size > 0 && !minuteFile.add(drainedMinuteStarts, drainedMinuteSteps, size)) {
+            Log.e(TAG, "Failed to save steps by minute.");
+        }
+    }
+
+    /**
+     * @return Minutes with steps from start to end, both inclusive, including steps not saved yet.
+     * Empty unless minute resolution is enabled.
+     */
+    public List<ChunkStepCount> getMinuteSteps(long start, long end) {
+        // Under saveLock so that no save drains the buffer into the file in between.
+        synchronized (saveLock) {
+            MinuteStepFile file = minuteFile;
+            if (file == null) {
+                return new ArrayList<>();
+            }
+            List<ChunkStepCount> saved = file.getMinuteSteps(start, end);
+            MinuteStepBuffer minutes = minuteBuffer;
+            if (minutes == null) {
+                return saved;
+            }
+            long[] minuteStarts = new long[MinuteStepBuffer.SLOTS];
+            int[] minuteSteps = new int[MinuteStepBuffer.SLOTS];
+            int size = minutes.copy(minuteStarts, minuteSteps);
+            if (size == 0) {
+                return saved;
+            }
+            TreeMap<Long, Integer> series = toSeries(saved);
+            for (int i = 0; i < size; i++) {
+                if (minuteStarts[i] >= start && minuteStarts[i] <= end) {
+                    addToSeries(series, minuteStarts[i], minuteSteps[i]);
+                }
+            }
+            return toList(series);
+        }
+    }
+
+    /**
+     * @return true if the state moved far enough from the last checkpoint to write another.
+     */
+    public boolean isCheckpointDue() {
+        State current = state.get();
+        if (current.dateAndHourOfLastEvent == NO_EVENT) {
+            return false;
+        }
+        int lastSteps = current.lastSteps;
+        return current.dateAndHourOfLastEvent != checkpointedDateAndHour
+                || lastSteps < checkpointedSteps
+                || lastSteps - checkpointedSteps >= CHECKPOINT_STEPS
+                || (lastSteps != checkpointedSteps
+                && timeBuckets.currentTimeMillis() - checkpointedAt >= CHECKPOINT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Write the current state as checkpoint.
+     */
+    public void checkpoint(Context context) {
+        synchronized (saveLock) {
+            writeCheckpoint(context, state.get());
+        }
+    }
+
+    private void writeCheckpoint(Context context, State current) {
+        if (current.dateAndHourOfLastEvent == NO_EVENT) {
             return;
         }
+        getCheckpointStore(context).write(new StepCheckpoint(current.dateAndHourOfLastEvent, current.lastSteps,
+                current.unsavedDateAndHours, current.unsavedSteps));
+        checkpointedDateAndHour = current.dateAndHourOfLastEvent;
+        checkpointedSteps = current.lastSteps;
+        checkpointedAt = timeBuckets.currentTimeMillis();
+    }
 
-        unsavedSteps += increment;
-        Log.v(TAG, "onStepCounterEvent: " + unsavedSteps);
-        dateAndHourOfLastEvent = dateAndHour;
-        lastSteps = stepsSinceBoot;
+    /**
+     * Restore the state from the last checkpoint, unless an event was counted already. Call before the
+     * sensor is registered.
+     *
+     * @param rebooted true if the device booted since the checkpoint, so the counter started from zero.
+     * @return true if the state is restored.
+     */
+    public boolean recover(Context context, boolean rebooted) {
+        // Under saveLock so that no save writes the checkpoint while it is read and swapped in.
+        synchronized (saveLock) {
+            State current = state.get();
+            if (current.dateAndHourOfLastEvent != NO_EVENT) {
+                return false;
+            }
+            StepCheckpoint checkpoint = getCheckpointStore(context).read();
+            State recovered;
+            if (checkpoint != null) {
+                // Without a boot seen, a drop of the counter at the next event tells the reboot.
+                recovered = new State(checkpoint.dateAndHourOfLastEvent, NO_TIME, rebooted ? 0 : checkpoint.lastSteps,
+                        checkpoint.unsavedDateAndHours, checkpoint.unsavedSteps, !rebooted);
+            } else if (rebooted) {
+                // Nothing to restore, but steps since boot are all new.
+                recovered = new State(timeBuckets.currentHour(), NO_TIME, 0, new long[0], new int[0], false);
+            } else {
+                return false;
+            }
+            return state.compareAndSet(current, recovered);
+        }
     }
 
-    public synchronized void saveSteps(Context context) {
-        if (dateAndHourOfLastEvent == null) return;
-        Log.v(TAG, "saveSteps: " + unsavedSteps);
-        if (unsavedSteps == 0) return;
-        Database database = Database.getInstance(context);
-        int newSteps = database.addSteps(dateAndHourOfLastEvent, unsavedSteps);
-        if (newSteps < 0) {
-            Log.e(TAG, "Failed to save steps.");
-        } else {
-            unsavedSteps = 0;
+    /**
+     * Move steps between state and cache, so that readers never see them in both or neither.
+     *
+     * @param toCache true to move from state to cache, false to give failed steps back to state.
+     */
+    private void moveToCache(long[] dateAndHours, int[] steps, boolean toCache) {
+        saveSequence.incrementAndGet();
+        try {
+            for (int i = 0; i < dateAndHours.length; i++) {
+                cache.add(dateAndHours[i], toCache ? steps[i] : -steps[i]);
+            }
+            while (true) {
+                State current = state.get();
+                State next = toCache ? current.without(dateAndHours, steps) : current.with(dateAndHours, steps);
+                if (state.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+        } finally {
+            saveSequence.incrementAndGet();
         }
     }
 
-    public synchronized int getTodaySteps(Context context) {
-        long dateAndHour = DateUtils.getCurrentDateAndHour();
-        if (dateAndHourOfLastEvent != null && dateAndHour != dateAndHourOfLastEvent) {
-            // Save and flush step count before fetch.
+    /**
+     * Save steps and fold the journal, so that the table is up to date.
+     */
+    public void flush(Context context) {
+        synchronized (saveLock) {
             saveSteps(context);
+            storeSequence.incrementAndGet();
+            try {
+                if (!getJournal(context).fold()) {
+                    Log.e(TAG, "Failed to fold journal.");
+                }
+            } finally {
+                storeSequence.incrementAndGet();
+            }
+        }
+    }
+
+    public int getTodaySteps(Context context) {
+        while (true) {
+            int steps = peekTodaySteps();
+            if (steps != HourlyStepCache.MISS) {
+                return steps;
+            }
+            long startOfToday = timeBuckets.startOfToday();
+            long dateAndHour = timeBuckets.currentHour();
+            if (!loadCache(context, startOfToday, dateAndHour)) {
+                // Left unloaded, so that the next call reads again.
+                return readSteps(context, startOfToday, dateAndHour);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #getTodaySteps(Context)}, but only from memory.
+     *
+     * @return Today's steps, or {@link HourlyStepCache#MISS} if the cache has to be loaded first.
+     */
+    public int peekTodaySteps() {
+        return peekSteps(timeBuckets.startOfToday(), timeBuckets.currentHour());
+    }
+
+    /**
+     * Steps of hours from start to end, both inclusive, only from memory.
+     *
+     * @return Steps including steps not saved yet, or {@link HourlyStepCache#MISS} if any of the
+     * hours is not cached.
+     */
+    public int peekSteps(long start, long end) {
+        while (true) {
+            int sequence = saveSequence.get();
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            int savedSteps = cache.getSteps(start, end);
+            if (savedSteps == HourlyStepCache.MISS) {
+                return HourlyStepCache.MISS;
+            }
+            int unsavedSteps = state.get().getUnsavedSteps(start, end);
+            if (saveSequence.get() == sequence) {
+                return savedSteps + unsavedSteps;
+            }
+        }
+    }
+
+    /**
+     * @return Steps of the hour, including steps not saved yet.
+     */
+    public int getSteps(Context context, final long dateAndHour) {
+        int steps = peekSteps(dateAndHour);
+        if (steps != HourlyStepCache.MISS) {
+            return steps;
+        }
+        // Too old for the cache, read from the table.
+        return readStore(context, new StoreRead<Integer>() {
+            @Override
+            Integer read(StepStore store, StepJournal journal, State current) {
+                return store.getSteps(dateAndHour) + journal.getPendingSteps(dateAndHour, dateAndHour)
+                        + current.getUnsavedSteps(dateAndHour);
+            }
+        });
+    }
+
+    /**
+     * Steps of hours from start to end, both inclusive, from the store and memory, without waiting for
+     * the writer.
+     *
+     * @return Steps including steps not saved yet.
+     */
+    public int readSteps(Context context, final long start, final long end) {
+        return readStore(context, new StoreRead<Integer>() {
+            @Override
+            Integer read(StepStore store, StepJournal journal, State current) {
+                return store.getSteps(start, end) + journal.getPendingSteps(start, end)
+                        + current.getUnsavedSteps(start, end);
+            }
+        });
+    }
+
+    /**
+     * Steps per day or week, as {@link StepStore#getDailySteps} and {@link StepStore#getWeeklySteps},
+     * including steps not saved yet, without waiting for the writer.
+     */
+    public List<ChunkStepCount> readRollupSeries(Context context, final long start, final long end,
+                                                 final boolean weekly) {
+        final long[] journaledDateAndHours = new long[StepJournal.CAPACITY];
+        final int[] journaledSteps = new int[StepJournal.CAPACITY];
+        return readStore(context, new StoreRead<List<ChunkStepCount>>() {
+            @Override
+            List<ChunkStepCount> read(StepStore store, StepJournal journal, State current) {
+                List<ChunkStepCount> saved = weekly
+                        ? store.getWeeklySteps(start, end) : store.getDailySteps(start, end);
+                int journaledSize = journal.copyPending(journaledDateAndHours, journaledSteps);
+                if (journaledSize == 0 && current.unsavedDateAndHours.length == 0) {
+                    return saved;
+                }
+                TreeMap<Long, Integer> series = toSeries(saved);
+                addHours(series, journaledDateAndHours, journaledSteps, journaledSize, start, end, weekly);
+                addHours(series, current.unsavedDateAndHours, current.unsavedSteps,
+                        current.unsavedDateAndHours.length, start, end, weekly);
+                return toList(series);
+            }
+        });
+    }
+
+    /**
+     * Add steps of hours to the days or weeks of series from the one of start to the one of end.
+     */
+    private void addHours(TreeMap<Long, Integer> series, long[] dateAndHours, int[] steps, int size,
+                          long start, long end, boolean weekly) {
+        long first = bucketOf(start, weekly);
+        long last = bucketOf(end, weekly);
+        for (int i = 0; i < size; i++) {
+            long bucket = bucketOf(dateAndHours[i], weekly);
+            if (bucket >= first && bucket <= last) {
+                addToSeries(series, bucket, steps[i]);
+            }
+        }
+    }
+
+    private long bucketOf(long timeMillis, boolean weekly) {
+        return weekly ? timeBuckets.weekOf(timeMillis) : timeBuckets.dayOf(timeMillis);
+    }
+
+    private static TreeMap<Long, Integer> toSeries(List<ChunkStepCount> list) {
+        TreeMap<Long, Integer> series = new TreeMap<>();
+        for (ChunkStepCount chunkStepCount : list) {
+            series.put(chunkStepCount.unixTimeMillis, chunkStepCount.steps);
+        }
+        return series;
+    }
+
+    private static void addToSeries(TreeMap<Long, Integer> series, long key, int steps) {
+        Integer saved = series.get(key);
+        series.put(key, saved != null ? saved + steps : steps);
+    }
+
+    private static List<ChunkStepCount> toList(TreeMap<Long, Integer> series) {
+        List<ChunkStepCount> list = new ArrayList<>(series.size());
+        for (Map.Entry<Long, Integer> entry : series.entrySet()) {
+            list.add(new ChunkStepCount(entry.getKey(), entry.getValue()));
+        }
+        return list;
+    }
+
+    /**
+     * Run read on the calling thread. Retries if a save or fold moved steps meanwhile, and waits for
+     * one which is running rather than spin through it.
+     */
+    private <T> T readStore(Context context, StoreRead<T> read) {
+        StepStore store = StepStores.get(context);
+        StepJournal journal = getJournal(context);
+        while (true) {
+            int sequence = storeSequence.get();
+            if ((sequence & 1) != 0) {
+                synchronized (saveLock) {
+                    return read.read(store, journal, state.get());
+                }
+            }
+            T result = read.read(store, journal, state.get());
+            if (storeSequence.get() == sequence) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Read of the store together with steps which are not in it yet.
+     */
+    private abstract static class StoreRead<T> {
+        abstract T read(StepStore store, StepJournal journal, State current);
+    }
+
+    /**
+     * Same as {@link #getSteps(Context, long)}, but only from memory.
+     *
+     * @return Steps of the hour, or {@link HourlyStepCache#MISS} if the hour is not cached.
+     */
+    public int peekSteps(long dateAndHour) {
+        while (true) {
+            int sequence = saveSequence.get();
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            int savedSteps = cache.getSteps(dateAndHour);
+            if (savedSteps == HourlyStepCache.MISS) {
+                return HourlyStepCache.MISS;
+            }
+            int unsavedSteps = state.get().getUnsavedSteps(dateAndHour);
+            if (saveSequence.get() == sequence) {
+                return savedSteps + unsavedSteps;
+            }
+        }
+    }
+
+    /**
+     * @return Steps counted but not saved yet, of all hours.
+     */
+    public int peekUnsavedSteps() {
+        return state.get().getUnsavedSteps(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return false if the table could not be read. The cache is left unloaded then, rather than
+     * filled with zeros.
+     */
+    private boolean loadCache(Context context, long startOfToday, long dateAndHour) {
+        // Under saveLock so that no save slips in between reading the table and the journal.
+        synchronized (saveLock) {
+            if (cache.getSteps(startOfToday, dateAndHour) != HourlyStepCache.MISS) {
+                return true;
+            }
+            long start = startOfToday - (HourlyStepCache.DAYS - 1) * TimeBuckets.DAY_IN_MILLIS;
+            List<ChunkStepCount> savedRows = readChunkStepsSince(StepStores.get(context), start);
+            if (savedRows == null) {
+                Log.e(TAG, "Failed to read hours to cache.");
+                return false;
+            }
+            long[] journaledDateAndHours = new long[StepJournal.CAPACITY];
+            int[] journaledSteps = new int[StepJournal.CAPACITY];
+            int journaledSize = getJournal(context).copyPending(journaledDateAndHours, journaledSteps);
+            cache.load(start, dateAndHour, savedRows, journaledDateAndHours, journaledSteps, journaledSize);
+            return true;
+        }
+    }
+
+    /**
+     * Unlike {@link StepStore#getChunkStepsSince}, tells a failed read from hours without steps.
+     *
+     * @return Hours from start, or null if failed.
+     */
+    @Nullable
+    private static List<ChunkStepCount> readChunkStepsSince(StepStore store, long start) {
+        List<ChunkStepCount> rows = new ArrayList<>();
+        ChunkStepCountPage page = new ChunkStepCountPage(StepSensorFacade.DEFAULT_PAGE_SIZE);
+        while (true) {
+            if (!store.getChunkStepCountPage(start, false, page)) {
+                return null;
+            }
+            for (int i = 0; i < page.size; i++) {
+                rows.add(new ChunkStepCount(page.unixTimeMillis[i], page.steps[i]));
+            }
+            if (!page.isFull()) {
+                return rows;
+            }
+            start = page.nextStart();
+        }
+    }
+
+    public void increaseByServerChunkStepCounts(Context context, List<ChunkStepCount> chunkStepCounts,
+                                                @Nullable StepSensorFacade.ProgressListener listener) {
+        synchronized (saveLock) {
+            flush(context);
+            boolean merged = false;
+            try {
+                StepStores.get(context).increaseByServerChunkStepCounts(chunkStepCounts, listener);
+                merged = true;
+            } finally {
+                if (merged) {
+                    for (ChunkStepCount chunkStepCount : chunkStepCounts) {
+                        cache.mergeMax(chunkStepCount.unixTimeMillis, chunkStepCount.steps);
+                    }
+                } else {
+                    // Some chunks might be committed.
+                    cache.invalidate();
+                }
+            }
         }
-        return Database.getInstance(context).getTodayStep() + unsavedSteps;
+        publisher.onChanged();
+    }
+
+    /**
+     * Compact the store, see {@link StepStore#compact}. Compacted hours are no longer read by hour,
+     * so the cache is loaded again if any were.
+     */
+    public int compact(Context context, long now, long retentionMillis, long maxBytes) {
+        synchronized (saveLock) {
+            int compacted = StepStores.get(context).compact(now, retentionMillis, maxBytes);
+            if (compacted != 0) {
+                // Also after a failure, some weeks might be committed.
+                cache.invalidate();
+            }
+            return compacted;
+        }
+    }
+
+    public void reset(Context context) {
+        synchronized (saveLock) {
+            state.set(State.EMPTY);
+            cache.invalidate();
+            MinuteStepBuffer minutes = minuteBuffer;
+            if (minutes != null) {
+                minutes.clear();
+            }
+            getCheckpointStore(context).clear();
+            checkpointedDateAndHour = NO_EVENT;
+        }
+        publisher.onChanged();
+    }
+
+    private StepJournal getJournal(Context context) {
+        return journal != null ? journal : StepJournal.getInstance(context);
     }
 
-    public synchronized void reset() {
-        dateAndHourOfLastEvent = null;
-        lastSteps = 0;
-        unsavedSteps = 0;
+    private StepCheckpoint.Store getCheckpointStore(Context context) {
+        return checkpointStore != null ? checkpointStore : StepCheckpoint.preferences(context);
+    }
+
+    /**
+     * Counter samples applied to a state, swapped in with one compare-and-set by {@link #apply()}.
+     */
+    private final class Fold {
+        private final State start;
+        private final long now;
+        @Nullable
+        private final MinuteStepBuffer minutes;
+        private long dateAndHourOfLastEvent;
+        private long lastEventAt;
+        private int lastSteps;
+        private boolean recovered;
+        // Counted steps by hour, in order of first appearance. Allocated on the first count.
+        private long[] dateAndHours;
+        private int[] steps;
+        private int size;
+        // Counted steps by time, only kept for minutes.
+        private long[] countedAt;
+        private int[] countedSteps;
+        private int countedSize;
+        private int counted;
+        private int overLimit;
+        private int negative;
+        private boolean changed;
+
+        Fold(State start, long now) {
+            this.start = start;
+            this.now = now;
+            this.minutes = minuteBuffer;
+            this.dateAndHourOfLastEvent = start.dateAndHourOfLastEvent;
+            // A clock set back makes the time of the last event useless.
+            this.lastEventAt = start.lastEventAt <= now ? start.lastEventAt : NO_TIME;
+            this.lastSteps = start.lastSteps;
+            this.recovered = start.recovered;
+        }
+
+        void sample(long timeMillis, int stepsSinceBoot) {
+            if (stepsSinceBoot < 0) {
+                Log.d(TAG, "onStepCounterEvent: Oops... stepsSinceBoot is negative... This SHOULD NOT happen...");
+                return;
+            }
+            changed = true;
+            long time = Math.min(timeMillis, now);
+            if (time < now - MAX_SAMPLE_AGE_MILLIS) {
+                time = now;
+            }
+            if (lastEventAt != NO_TIME) {
+                time = Math.max(time, lastEventAt);
+            }
+            if (dateAndHourOfLastEvent == NO_EVENT) {
+                if (BuildConfig.DEBUG) Log.v(TAG, "onStepCounterEvent: lastSteps is set to " + stepsSinceBoot);
+                setLastSteps(timeBuckets.hourOf(time), time, stepsSinceBoot);
+                return;
+            }
+
+            int increment = stepsSinceBoot - lastSteps;
+            if (increment < 0 && recovered) {
+                // Below the checkpoint: the device rebooted while the process was gone.
+                Log.d(TAG, "onStepCounterEvent: counter restarted from zero since the checkpoint.");
+                increment = stepsSinceBoot;
+            }
+            // Without the time of the last event, an hour is the shortest the increment can have taken.
+            long limit = lastEventAt == NO_TIME ? MAX_STEPS_PER_HOUR
+                    : MAX_STEPS_PER_HOUR * (time - lastEventAt) / TimeBuckets.HOUR_IN_MILLIS + RATE_TOLERANCE_STEPS;
+            if (increment > limit) {
+                overLimit++;
+                if (BuildConfig.DEBUG) Log.d(TAG, "onStepCounterEvent: Skipping steps, increment " + increment + " exceeds limit of " + limit + ".");
+                setLastSteps(dateAndHourOfLastEvent, time, stepsSinceBoot);
+                return;
+            }
+            if (increment < 0) {
+                // XXX: Resetting can cause extra steps to be added if the problem is order of event is randomized.
+                // But it can be sudden decrease of internal counter of sensor, then no step recorded
+                // until restarting the app or counter reaches lastSteps value. Counting extra steps is
+                // far more better than no steps, so I choose to reset here!
+                negative++;
+                if (BuildConfig.DEBUG) Log.d(TAG, "onStepCounterEvent: Discarding steps event, negative increment "
+                        + increment + " happened! (stepsSinceBoot: " + stepsSinceBoot + ")");
+                setLastSteps(dateAndHourOfLastEvent, time, stepsSinceBoot);
+                return;
+            }
+
+            if (increment > 0) {
+                attribute(time, increment);
+            }
+            // Steps of the previous hour stay in the state as a separate entry until the next save.
+            setLastSteps(timeBuckets.hourOf(time), time, stepsSinceBoot);
+        }
+
+        /**
+         * Count increment as walked evenly until time, split between the hours it took.
+         */
+        private void attribute(long time, int increment) {
+            long from = lastEventAt == NO_TIME ? time
+                    : Math.max(lastEventAt, time - increment * SLOWEST_STEP_MILLIS);
+            long hour = timeBuckets.hourOf(from);
+            if (from >= time || time < hour + TimeBuckets.HOUR_IN_MILLIS) {
+                count(timeBuckets.hourOf(time), time, increment);
+                return;
+            }
+            long total = time - from;
+            int assigned = 0;
+            long segmentStart = from;
+            while (segmentStart < time) {
+                hour = timeBuckets.hourOf(segmentStart);
+                long segmentEnd = Math.min(hour + TimeBuckets.HOUR_IN_MILLIS, time);
+                // Rounded on the running total, so that the shares add up to increment.
+                int share = (int) (increment * (segmentEnd - from) / total) - assigned;
+                if (share > 0) {
+                    count(hour, segmentEnd == time ? time : segmentEnd - 1, share);
+                    assigned += share;
+                }
+                segmentStart = segmentEnd;
+            }
+        }
+
+        private void setLastSteps(long dateAndHour, long time, int stepsSinceBoot) {
+            dateAndHourOfLastEvent = dateAndHour;
+            lastEventAt = time;
+            lastSteps = stepsSinceBoot;
+            recovered = false;
+        }
+
+        private void count(long dateAndHour, long time, int increment) {
+            counted += increment;
+            if (minutes != null) {
+                countMinute(time, increment);
+            }
+            if (size > 0 && dateAndHours[size - 1] == dateAndHour) {
+                steps[size - 1] += increment;
+                return;
+            }
+            if (dateAndHours == null) {
+                dateAndHours = new long[2];
+                steps = new int[2];
+            } else if (size == dateAndHours.length) {
+                dateAndHours = Arrays.copyOf(dateAndHours, size * 2);
+                steps = Arrays.copyOf(steps, size * 2);
+            }
+            dateAndHours[size] = dateAndHour;
+            steps[size] = increment;
+            size++;
+        }
+
+        private void countMinute(long time, int increment) {
+            if (countedAt == null) {
+                countedAt = new long[8];
+                countedSteps = new int[8];
+            } else if (countedSize == countedAt.length) {
+                countedAt = Arrays.copyOf(countedAt, countedSize * 2);
+                countedSteps = Arrays.copyOf(countedSteps, countedSize * 2);
+            }
+            countedAt[countedSize] = time;
+            countedSteps[countedSize] = increment;
+            countedSize++;
+        }
+
+        /**
+         * @return false if the state changed meanwhile, then fold again from the new state.
+         */
+        boolean apply() {
+            if (!changed) {
+                return true;
+            }
+            State next = start.withSamples(dateAndHourOfLastEvent, lastEventAt, lastSteps, recovered,
+                    dateAndHours, steps, size);
+            if (!state.compareAndSet(start, next)) {
+                return false;
+            }
+            if (overLimit > 0) metrics.add(StepMetrics.INCREMENTS_OVER_LIMIT, overLimit);
+            if (negative > 0) metrics.add(StepMetrics.NEGATIVE_INCREMENTS, negative);
+            if (counted > 0) {
+                for (int i = 0; i < countedSize; i++) {
+                    minutes.add(countedAt[i], countedSteps[i]);
+                }
+                if (BuildConfig.DEBUG) Log.v(TAG, "onStepCounterEvent: " + next.getUnsavedSteps(dateAndHourOfLastEvent));
+                publisher.onChanged();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Immutable snapshot of ingestion. Unsaved steps are kept by hour, oldest first; usually there
+     * is one entry, two right after the hour changed.
+     */
+    private static final class State {
+        static final State EMPTY = new State(NO_EVENT, NO_TIME, 0, new long[0], new int[0], false);
+
+        final long dateAndHourOfLastEvent;
+        // Wall clock time of the last event, or NO_TIME if not known.
+        final long lastEventAt;
+        final int lastSteps;
+        final long[] unsavedDateAndHours;
+        final int[] unsavedSteps;
+        // Restored from a checkpoint and no event seen since.
+        final boolean recovered;
+
+        State(long dateAndHourOfLastEvent, long lastEventAt, int lastSteps, long[] unsavedDateAndHours,
+              int[] unsavedSteps, boolean recovered) {
+            this.dateAndHourOfLastEvent = dateAndHourOfLastEvent;
+            this.lastEventAt = lastEventAt;
+            this.lastSteps = lastSteps;
+            this.unsavedDateAndHours = unsavedDateAndHours;
+            this.unsavedSteps = unsavedSteps;
+            this.recovered = recovered;
+        }
+
+        /**
+         * @return State after counter samples, with steps of size hours added to unsaved steps.
+         */
+        State withSamples(long dateAndHourOfLastEvent, long lastEventAt, int lastSteps, boolean recovered,
+                          long[] dateAndHours, int[] steps, int size) {
+            long[] newDateAndHours = unsavedDateAndHours;
+            int[] newSteps = size == 0 ? unsavedSteps : unsavedSteps.clone();
+            for (int i = 0; i < size; i++) {
+                // Mostly the latest hour, which is last.
+                int index = newDateAndHours.length - 1;
+                if (index < 0 || newDateAndHours[index] != dateAndHours[i]) {
+                    index = indexOf(newDateAndHours, dateAndHours[i]);
+                }
+                if (index < 0) {
+                    index = newDateAndHours.length;
+                    newDateAndHours = append(newDateAndHours, dateAndHours[i]);
+                    newSteps = append(newSteps, 0);
+                }
+                newSteps[index] += steps[i];
+            }
+            return new State(dateAndHourOfLastEvent, lastEventAt, lastSteps, newDateAndHours, newSteps, recovered);
+        }
+
+        /**
+         * @return State with steps added to unsaved steps.
+         */
+        State with(long[] dateAndHours, int[] steps) {
+            long[] newDateAndHours = unsavedDateAndHours;
+            int[] newSteps = unsavedSteps.clone();
+            for (int i = 0; i < dateAndHours.length; i++) {
+                if (steps[i] == 0) continue;
+                int index = indexOf(newDateAndHours, dateAndHours[i]);
+                if (index < 0) {
+                    index = newDateAndHours.length;
+                    newDateAndHours = append(newDateAndHours, dateAndHours[i]);
+                    newSteps = append(newSteps, 0);
+                }
+                newSteps[index] += steps[i];
+            }
+            return new State(dateAndHourOfLastEvent, lastEventAt, lastSteps, newDateAndHours, newSteps, recovered);
+        }
+
+        /**
+         * @return State with steps subtracted from unsaved steps. Hours left with no steps are removed.
+         */
+        State without(long[] dateAndHours, int[] steps) {
+            int[] remainingSteps = unsavedSteps.clone();
+            int remainingSize = remainingSteps.length;
+            for (int i = 0; i < dateAndHours.length; i++) {
+                int index = indexOf(unsavedDateAndHours, dateAndHours[i]);
+                remainingSteps[index] -= steps[i];
+                if (remainingSteps[index] == 0) remainingSize--;
+            }
+            long[] newDateAndHours = new long[remainingSize];
+            int[] newSteps = new int[remainingSize];
+            for (int i = 0, j = 0; i < remainingSteps.length; i++) {
+                if (remainingSteps[i] == 0) continue;
+                newDateAndHours[j] = unsavedDateAndHours[i];
+                newSteps[j] = remainingSteps[i];
+                j++;
+            }
+            return new State(dateAndHourOfLastEvent, lastEventAt, lastSteps, newDateAndHours, newSteps, recovered);
+        }
+
+        int getUnsavedSteps(long dateAndHour) {
+            return getUnsavedSteps(dateAndHour, dateAndHour);
+        }
+
+        int getUnsavedSteps(long start, long end) {
+            int sum = 0;
+            for (int i = 0; i < unsavedDateAndHours.length; i++) {
+                if (unsavedDateAndHours[i] >= start && unsavedDateAndHours[i] <= end) {
+                    sum += unsavedSteps[i];
+                }
+            }
+            return sum;
+        }
+
+        private static int indexOf(long[] array, long value) {
+            for (int i = 0; i < array.length; i++) {
+                if (array[i] == value) return i;
+            }
+            return -1;
+        }
+
+        private static long[] append(long[] array, long value) {
+            long[] newArray = new long[array.length + 1];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = value;
+            return newArray;
+        }
+
+        private static int[] append(int[] array, int value) {
+            int[] newArray = new int[array.length + 1];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = value;
+            return newArray;
+        }
     }
 }
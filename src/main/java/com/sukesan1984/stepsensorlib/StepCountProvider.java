@@ -0,0 +1,428 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Serves step counts of the process counting steps to other processes of the app.
+ * <p>
+ * {@link StepCountCoordinator} holds unsaved steps in memory of its own process, so another process
+ * reading the database misses them and opens a database of its own. This provider answers from the
+ * memory of the process it runs in instead. Declare it in the same android:process as
+ * {@link SensorListener}. It is not exported; hosts may export it behind a permission of their own.
+ * <p>
+ * While observers are registered through {@link #METHOD_ADD_OBSERVER}, it notifies
+ * {@link #getBaseUri} as steps change, at most once per {@link #NOTIFY_INTERVAL_MILLIS}. With none,
+ * it does not listen to steps at all and cursors are not notified. An observer of a process which
+ * dies is dropped on API 18 and up, where the registering process passes a binder to watch.
+ * <p>
+ * The process it runs in is the only one to open {@link StepJournal}. {@link StepSensorFacade}
+ * called in other processes of the app saves, writes and changes settings through {@link #call} of
+ * this provider, which only takes such calls from the app itself.
+ * <p>
+ * Paths, with times in unix time milliseconds:
+ * <ul>
+ * <li>{@code today}: one row of {@link #COLUMN_DATE_AND_HOUR}, {@link #COLUMN_TODAY_STEPS} and
+ * {@link #COLUMN_HOUR_STEPS}.</li>
+ * <li>{@code steps?start=&end=}: one row of {@link #COLUMN_STEPS}, the sum of hours from start to
+ * end, both inclusive.</li>
+ * </ul>
+ */
+public class StepCountProvider extends ContentProvider {
+    public static final String COLUMN_DATE_AND_HOUR = "date_and_hour";
+    public static final String COLUMN_TODAY_STEPS = "today_steps";
+    public static final String COLUMN_HOUR_STEPS = "hour_steps";
+    public static final String COLUMN_STEPS = "steps";
+    public static final String PARAMETER_START = "start";
+    public static final String PARAMETER_END = "end";
+    /**
+     * {@link #call} method to start notifying, with an id of the observer as arg.
+     */
+    public static final String METHOD_ADD_OBSERVER = "add_observer";
+    /**
+     * {@link #call} method to stop notifying, with the id passed to {@link #METHOD_ADD_OBSERVER}.
+     */
+    public static final String METHOD_REMOVE_OBSERVER = "remove_observer";
+    /**
+     * Optional binder extra of {@link #METHOD_ADD_OBSERVER}, dying with the process of the observer.
+     */
+    public static final String EXTRA_TOKEN = "token";
+    // Writes of StepSensorFacade called in another process, run on the writer thread of this one.
+    static final String METHOD_SAVE = "save";
+    static final String METHOD_GET_SYNC_TOKEN = "get_sync_token";
+    static final String METHOD_INCREASE_BY_SERVER_CHUNK_STEP_COUNTS = "increase_by_server_chunk_step_counts";
+    static final String METHOD_MARK_RECORDED_ON_SERVER = "mark_recorded_on_server";
+    static final String METHOD_RECOVER_AFTER_BOOT = "recover_after_boot";
+    // Settings, which this process would not see otherwise.
+    static final String METHOD_SET_STORAGE_BACKEND = "set_storage_backend";
+    static final String METHOD_SET_MINUTE_RESOLUTION_ENABLED = "set_minute_resolution_enabled";
+    static final String METHOD_SET_RETENTION_POLICY = "set_retention_policy";
+    static final String EXTRA_UNIX_TIME_MILLIS = "unix_time_millis";
+    static final String EXTRA_STEPS = "steps";
+    static final String EXTRA_SYNC_TOKEN = "sync_token";
+    static final String EXTRA_COUNT = "count";
+    static final String EXTRA_RETENTION_DAYS = "retention_days";
+    static final String EXTRA_MAX_STORAGE_BYTES = "max_storage_bytes";
+    static final long NOTIFY_INTERVAL_MILLIS = 1000;
+
+    private static final String AUTHORITY_SUFFIX = ".stepsensorlib";
+    private static final String PATH_TODAY = "today";
+    private static final String PATH_STEPS = "steps";
+    private static final int MATCH_TODAY = 1;
+    private static final int MATCH_STEPS = 2;
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private static volatile boolean inThisProcess;
+
+    private final StepCountCoordinator coordinator;
+    private final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
+    private Uri baseUri;
+    // Guarded by this. Listening to the publisher while not empty.
+    private final Map<String, Registration> observers = new HashMap<>();
+    private final StepSensorFacade.StepCountListener notifier = new StepSensorFacade.StepCountListener() {
+        @Override
+        public void onStepCountChanged(long dateAndHour, int todaySteps, int hourSteps) {
+            getContext().getContentResolver().notifyChange(baseUri, null, false);
+        }
+    };
+
+    public StepCountProvider() {
+        this(StepCountCoordinator.getInstance());
+    }
+
+    StepCountProvider(@NonNull StepCountCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * @return true in the process the provider runs in, which counts steps. Providers are created
+     * when their process starts, before anything else of the app runs in it.
+     */
+    static boolean isInThisProcess() {
+        return inThisProcess;
+    }
+
+    public static String getAuthority(Context context) {
+        return context.getPackageName() + AUTHORITY_SUFFIX;
+    }
+
+    /**
+     * Observe this with descendants to hear of every change.
+     */
+    public static Uri getBaseUri(Context context) {
+        return new Uri.Builder().scheme("content").authority(getAuthority(context)).build();
+    }
+
+    public static Uri getTodayUri(Context context) {
+        return getBaseUri(context).buildUpon().appendPath(PATH_TODAY).build();
+    }
+
+    public static Uri getStepsUri(Context context, long start, long end) {
+        return getBaseUri(context).buildUpon()
+                .appendPath(PATH_STEPS)
+                .appendQueryParameter(PARAMETER_START, String.valueOf(start))
+                .appendQueryParameter(PARAMETER_END, String.valueOf(end))
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        Context context = getContext();
+        String authority = getAuthority(context);
+        matcher.addURI(authority, PATH_TODAY, MATCH_TODAY);
+        matcher.addURI(authority, PATH_STEPS, MATCH_STEPS);
+        baseUri = getBaseUri(context);
+        inThisProcess = true;
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (METHOD_ADD_OBSERVER.equals(method)) {
+            if (arg == null) throw new IllegalArgumentException("Missing observer id.");
+            addObserver(arg, extras != null ? getBinder(extras) : null);
+            return null;
+        }
+        if (METHOD_REMOVE_OBSERVER.equals(method)) {
+            if (arg == null) throw new IllegalArgumentException("Missing observer id.");
+            removeObserver(arg);
+            return null;
+        }
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException("Steps are only written by the app itself.");
+        }
+        if (extras == null) {
+            extras = Bundle.EMPTY;
+        }
+        return StepWriter.getInstance().call(write(method, arg, extras));
+    }
+
+    private Callable<Bundle> write(String method, @Nullable final String arg, final Bundle extras) {
+        final Context context = getContext();
+        if (METHOD_SAVE.equals(method)) {
+            return new Callable<Bundle>() {
+                @Override
+                public Bundle call() throws Exception {
+                    coordinator.flush(context);
+                    return null;
+                }
+            };
+        }
+        if (METHOD_GET_SYNC_TOKEN.equals(method)) {
+            return new Callable<Bundle>() {
+                @Override
+                public Bundle call() throws Exception {
+                    coordinator.flush(context);
+                    Bundle result = new Bundle();
+                    result.putLong(EXTRA_SYNC_TOKEN, StepStores.get(context).getSyncToken());
+                    return result;
+                }
+            };
+        }
+        if (METHOD_INCREASE_BY_SERVER_CHUNK_STEP_COUNTS.equals(method)) {
+            final List<ChunkStepCount> chunkStepCounts = toChunkStepCounts(extras);
+            return new Callable<Bundle>() {
+                @Override
+                public Bundle call() throws Exception {
+                    coordinator.increaseByServerChunkStepCounts(context, chunkStepCounts, null);
+                    return null;
+                }
+            };
+        }
+        if (METHOD_MARK_RECORDED_ON_SERVER.equals(method)) {
+            final long[] unixTimeMillis = getLongArray(extras, EXTRA_UNIX_TIME_MILLIS);
+            final long syncToken = extras.getLong(EXTRA_SYNC_TOKEN);
+            return new Callable<Bundle>() {
+                @Override
+                public Bundle call() throws Exception {
+                    Bundle result = new Bundle();
+                    result.putInt(EXTRA_COUNT, StepStores.get(context).markRecorded(unixTimeMillis, syncToken));
+                    return result;
+                }
+            };
+        }
+        if (METHOD_RECOVER_AFTER_BOOT.equals(method)) {
+            return new Callable<Bundle>() {
+                @Override
+                public Bundle call() throws Exception {
+                    coordinator.recover(context, true);
+                    return null;
+                }
+            };
+        }
+        if (METHOD_SET_STORAGE_BACKEND.equals(method)) {
+            if (arg == null) throw new IllegalArgumentException("Missing storage backend.");
+            final StepSensorFacade.StorageBackend backend = StepSensorFacade.StorageBackend.valueOf(arg);
+            return new Callable<Bundle>() {
+                @Override
+                public Bundle call() throws Exception {
+                    StepStores.select(backend);
+                    return null;
+                }
+            };
+        }
+        if (METHOD_SET_MINUTE_RESOLUTION_ENABLED.equals(method)) {
+            final boolean enabled = Boolean.parseBoolean(arg);
+            return new Callable<Bundle>() {
+                @Override
+                public Bundle call() throws Exception {
+                    coordinator.setMinuteStepFile(enabled ? MinuteStepFile.getInstance(context) : null);
+                    return null;
+                }
+            };
+        }
+        if (METHOD_SET_RETENTION_POLICY.equals(method)) {
+            final int retentionDays = extras.getInt(EXTRA_RETENTION_DAYS, StepSensorFacade.DEFAULT_RETENTION_DAYS);
+            final long maxStorageBytes = extras.getLong(EXTRA_MAX_STORAGE_BYTES,
+                    StepSensorFacade.DEFAULT_MAX_STORAGE_BYTES);
+            return new Callable<Bundle>() {
+                @Override
+                public Bundle call() throws Exception {
+                    // Written here, preferences of other processes are not read again.
+                    PreferenceManager.writeRetentionPolicy(context, retentionDays, maxStorageBytes);
+                    return null;
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown method: " + method);
+    }
+
+    private static List<ChunkStepCount> toChunkStepCounts(Bundle extras) {
+        long[] unixTimeMillis = getLongArray(extras, EXTRA_UNIX_TIME_MILLIS);
+        int[] steps = extras.getIntArray(EXTRA_STEPS);
+        if (steps == null || steps.length != unixTimeMillis.length) {
+            throw new IllegalArgumentException("Missing " + EXTRA_STEPS + ".");
+        }
+        List<ChunkStepCount> chunkStepCounts = new ArrayList<>(steps.length);
+        for (int i = 0; i < steps.length; i++) {
+            chunkStepCounts.add(new ChunkStepCount(unixTimeMillis[i], steps[i]));
+        }
+        return chunkStepCounts;
+    }
+
+    private static long[] getLongArray(Bundle extras, String key) {
+        long[] array = extras.getLongArray(key);
+        if (array == null) throw new IllegalArgumentException("Missing " + key + ".");
+        return array;
+    }
+
+    private synchronized void addObserver(final String id, @Nullable IBinder token) {
+        if (observers.containsKey(id)) {
+            return;
+        }
+        IBinder.DeathRecipient recipient = null;
+        if (token != null) {
+            recipient = new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    removeObserver(id);
+                }
+            };
+            try {
+                token.linkToDeath(recipient, 0);
+            } catch (RemoteException e) {
+                // Already dead.
+                return;
+            }
+        }
+        observers.put(id, new Registration(token, recipient));
+        if (observers.size() == 1) {
+            // Called on the writer thread, notifying needs no other.
+            coordinator.getPublisher().add(getContext().getApplicationContext(), notifier,
+                    NOTIFY_INTERVAL_MILLIS, DIRECT);
+        }
+    }
+
+    private synchronized void removeObserver(String id) {
+        Registration registration = observers.remove(id);
+        if (registration == null) {
+            return;
+        }
+        if (registration.token != null) {
+            registration.token.unlinkToDeath(registration.recipient, 0);
+        }
+        if (observers.isEmpty()) {
+            coordinator.getPublisher().remove(notifier);
+        }
+    }
+
+    @Nullable
+    private static IBinder getBinder(Bundle extras) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return null;
+        }
+        return extras.getBinder(EXTRA_TOKEN);
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        MatrixCursor cursor;
+        switch (matcher.match(uri)) {
+            case MATCH_TODAY: {
+                long dateAndHour = coordinator.currentHour();
+                cursor = new MatrixCursor(new String[]{COLUMN_DATE_AND_HOUR, COLUMN_TODAY_STEPS, COLUMN_HOUR_STEPS}, 1);
+                cursor.addRow(new Object[]{dateAndHour, getTodaySteps(), getSteps(dateAndHour, dateAndHour)});
+                break;
+            }
+            case MATCH_STEPS: {
+                long start = parseTime(uri, PARAMETER_START);
+                long end = parseTime(uri, PARAMETER_END);
+                cursor = new MatrixCursor(new String[]{COLUMN_STEPS}, 1);
+                cursor.addRow(new Object[]{getSteps(start, end)});
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown uri: " + uri);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), baseUri);
+        return cursor;
+    }
+
+    private int getTodaySteps() {
+        return coordinator.getTodaySteps(getContext());
+    }
+
+    private int getSteps(long start, long end) {
+        int steps = coordinator.peekSteps(start, end);
+        if (steps != HourlyStepCache.MISS) {
+            return steps;
+        }
+        // Too old for the cache, read from the store.
+        return coordinator.readSteps(getContext(), start, end);
+    }
+
+    private static long parseTime(Uri uri, String parameter) {
+        String value = uri.getQueryParameter(parameter);
+        if (value == null) throw new IllegalArgumentException("Missing " + parameter + ": " + uri);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + parameter + ": " + uri);
+        }
+    }
+
+    private static final class Registration {
+        @Nullable
+        final IBinder token;
+        @Nullable
+        final IBinder.DeathRecipient recipient;
+
+        Registration(@Nullable IBinder token, @Nullable IBinder.DeathRecipient recipient) {
+            this.token = token;
+            this.recipient = recipient;
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Step counts are read only.");
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Step counts are read only.");
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Step counts are read only.");
+    }
+}
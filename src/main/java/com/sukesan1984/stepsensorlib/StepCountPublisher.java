@@ -0,0 +1,148 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes today's steps and steps of the current hour to {@link StepSensorFacade.StepCountListener}s.
+ * <p>
+ * A change only schedules a delivery on {@link StepWriter}, which reads the latest counts when it
+ * runs, so changes in between are coalesced and each listener is called at most once per interval it
+ * asked for. Listeners are kept in an array replaced on each change, so that with none registered a
+ * change costs one volatile read.
+ */
+class StepCountPublisher {
+    private static final Subscriber[] NONE = new Subscriber[0];
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final StepCountCoordinator coordinator;
+    private final TimeBuckets timeBuckets;
+    private volatile Subscriber[] subscribers = NONE;
+
+    StepCountPublisher(@NonNull StepCountCoordinator coordinator, @NonNull TimeBuckets timeBuckets) {
+        this.coordinator = coordinator;
+        this.timeBuckets = timeBuckets;
+    }
+
+    /**
+     * Add the listener, which is called with the current counts soon. Adding it again replaces it.
+     */
+    synchronized void add(Context context, StepSensorFacade.StepCountListener listener,
+                          long minIntervalMillis, Executor executor) {
+        if (minIntervalMillis < 0) throw new IllegalArgumentException("minIntervalMillis should not be negative value.");
+        remove(listener);
+        Subscriber subscriber = new Subscriber(context, listener, minIntervalMillis, executor);
+        Subscriber[] next = new Subscriber[subscribers.length + 1];
+        System.arraycopy(subscribers, 0, next, 0, subscribers.length);
+        next[subscribers.length] = subscriber;
+        subscribers = next;
+        subscriber.onChanged();
+    }
+
+    /**
+     * Remove the listener. It is not called after this returns, unless a call is already running.
+     */
+    synchronized boolean remove(StepSensorFacade.StepCountListener listener) {
+        Subscriber[] current = subscribers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener != listener) {
+                continue;
+            }
+            current[i].cancelled = true;
+            if (current.length == 1) {
+                subscribers = NONE;
+            } else {
+                Subscriber[] next = new Subscriber[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                subscribers = next;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    boolean hasListeners() {
+        return subscribers.length > 0;
+    }
+
+    /**
+     * Called by {@link StepCountCoordinator} whenever steps might have changed.
+     */
+    void onChanged() {
+        Subscriber[] current = subscribers;
+        for (Subscriber subscriber : current) {
+            subscriber.onChanged();
+        }
+    }
+
+    private final class Subscriber implements Runnable {
+        final Context context;
+        final StepSensorFacade.StepCountListener listener;
+        final long minIntervalMillis;
+        final Executor executor;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        volatile boolean cancelled;
+        // Written on the writer thread only.
+        volatile long lastDeliveredAt = NEVER;
+        long lastDateAndHour = Long.MIN_VALUE;
+        int lastTodaySteps = -1;
+        int lastHourSteps = -1;
+
+        Subscriber(Context context, StepSensorFacade.StepCountListener listener,
+                   long minIntervalMillis, Executor executor) {
+            this.context = context;
+            this.listener = listener;
+            this.minIntervalMillis = minIntervalMillis;
+            this.executor = executor;
+        }
+
+        void onChanged() {
+            if (cancelled || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            long delay = 0;
+            if (lastDeliveredAt != NEVER) {
+                delay = Math.max(0, lastDeliveredAt + minIntervalMillis - uptimeMillis());
+            }
+            StepWriter.getInstance().schedule(this, delay);
+        }
+
+        @Override
+        public void run() {
+            // Changes from now on schedule the next delivery.
+            scheduled.set(false);
+            if (cancelled) {
+                return;
+            }
+            final long dateAndHour = timeBuckets.currentHour();
+            final int todaySteps = coordinator.getTodaySteps(context);
+            final int hourSteps = coordinator.getSteps(context, dateAndHour);
+            if (dateAndHour == lastDateAndHour && todaySteps == lastTodaySteps && hourSteps == lastHourSteps) {
+                return;
+            }
+            lastDateAndHour = dateAndHour;
+            lastTodaySteps = todaySteps;
+            lastHourSteps = hourSteps;
+            lastDeliveredAt = uptimeMillis();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!cancelled) {
+                        listener.onStepCountChanged(dateAndHour, todaySteps, hourSteps);
+                    }
+                }
+            });
+        }
+    }
+
+    private static long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,161 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.sukesan1984.stepsensorlib.util.Logger;
+
+/**
+ * Registration of the step counter, whose batching latency can be changed while counting.
+ * <p>
+ * On a change, events batched so far are flushed first, and the listener is registered again once
+ * the flush completes. The counter is cumulative, so steps taken while unregistered are included in
+ * the first event afterwards.
+ * <p>
+ * Events delivered in one burst, e.g. a FIFO flush, are gathered into a {@link StepEventBatch} and
+ * counted together, each at the time the sensor took it rather than the time of delivery.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+class StepCounterListener implements SensorEventListener2 {
+    private static final int NOT_REGISTERED = -1;
+    private static final int MICROSECONDS_IN_ONE_MINUTE = 60 * 1000 * 1000;
+    // Today's latency, used when the sensor has no FIFO to batch in.
+    static final int DEFAULT_LATENCY_US = MICROSECONDS_IN_ONE_MINUTE;
+    // Walking fast produces about 2 events per second.
+    static final int MAX_STEP_EVENTS_PER_SECOND = 2;
+    static final int MAX_LATENCY_US = 30 * MICROSECONDS_IN_ONE_MINUTE;
+
+    private final Context context;
+    private final SensorManager sensorManager;
+    private final Sensor sensor;
+    private int registeredLatencyUs = NOT_REGISTERED;
+    private int requestedLatencyUs = NOT_REGISTERED;
+    private boolean flushing;
+    private final Handler handler = new Handler();
+    private final StepEventBatch batch = new StepEventBatch();
+    // Events of the current burst, including dropped ones.
+    private int burstSize;
+    private final Runnable deliverBurst = new Runnable() {
+        @Override
+        public void run() {
+            deliverBurst();
+        }
+    };
+
+    StepCounterListener(@NonNull Context context, @NonNull SensorManager sensorManager, @NonNull Sensor sensor) {
+        this.context = context;
+        this.sensorManager = sensorManager;
+        this.sensor = sensor;
+    }
+
+    int latencyUs(StepSensorFacade.BatchingMode mode) {
+        return latencyUs(mode, sensor.getFifoMaxEventCount());
+    }
+
+    /**
+     * @return Max report latency for mode, in microseconds. Background mode batches as long as the
+     * FIFO can hold events of fast walking.
+     */
+    static int latencyUs(StepSensorFacade.BatchingMode mode, int fifoMaxEventCount) {
+        if (mode == StepSensorFacade.BatchingMode.LIVE) {
+            return 0;
+        }
+        if (fifoMaxEventCount <= 0) {
+            return DEFAULT_LATENCY_US;
+        }
+        long latencyUs = (long) fifoMaxEventCount * 1000 * 1000 / MAX_STEP_EVENTS_PER_SECOND;
+        return (int) Math.max(DEFAULT_LATENCY_US, Math.min(latencyUs, MAX_LATENCY_US));
+    }
+
+    /**
+     * Register with the latency, or move to it if already registered. Call on the main thread.
+     */
+    void register(int latencyUs) {
+        requestedLatencyUs = latencyUs;
+        if (registeredLatencyUs == NOT_REGISTERED) {
+            registerNow();
+            return;
+        }
+        if (flushing || registeredLatencyUs == latencyUs) {
+            // A running flush picks up the latest request when it completes.
+            return;
+        }
+        flushing = sensorManager.flush(this);
+        if (!flushing) {
+            reregister();
+        }
+    }
+
+    void unregister() {
+        sensorManager.unregisterListener(this);
+        deliverBurst();
+        registeredLatencyUs = NOT_REGISTERED;
+        flushing = false;
+    }
+
+    @Override
+    public void onFlushCompleted(Sensor sensor) {
+        // Events flushed out of the FIFO arrived before this.
+        deliverBurst();
+        if (!flushing) {
+            return;
+        }
+        flushing = false;
+        if (registeredLatencyUs != NOT_REGISTERED && registeredLatencyUs != requestedLatencyUs) {
+            reregister();
+        }
+    }
+
+    private void reregister() {
+        sensorManager.unregisterListener(this);
+        registerNow();
+    }
+
+    private void registerNow() {
+        Logger.log("register step counter with latency {}us", requestedLatencyUs);
+        if (sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_NORMAL, requestedLatencyUs)) {
+            registeredLatencyUs = requestedLatencyUs;
+        }
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        // Events read from the sensor together are dispatched in one turn of the looper, so the
+        // burst is complete when the posted delivery runs.
+        if (burstSize == 0) {
+            handler.post(deliverBurst);
+        }
+        burstSize++;
+        batch.add(event.timestamp, (int) event.values[0]);
+        if (batch.isFull()) {
+            deliverBurst();
+        }
+    }
+
+    private void deliverBurst() {
+        handler.removeCallbacks(deliverBurst);
+        if (burstSize == 0) {
+            return;
+        }
+        StepMetrics.getInstance().record(StepMetrics.SENSOR_BATCH_SIZE, burstSize);
+        batch.toWallClock(System.currentTimeMillis(), SystemClock.elapsedRealtimeNanos());
+        SensorListener.onStepCounterEvents(context, batch.timeMillis, batch.counts, batch.size);
+        batch.clear();
+        burstSize = 0;
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // nobody knows what happens here: step value might magically decrease
+        // when this method is called...
+        Logger.log("{} accuracy changed: {}", sensor.getName(), accuracy);
+    }
+}
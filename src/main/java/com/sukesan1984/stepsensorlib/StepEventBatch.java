@@ -0,0 +1,51 @@
+package com.sukesan1984.stepsensorlib;
+
+/**
+ * Counter samples of one delivery burst of the sensor, handed to
+ * {@link StepCountCoordinator#onStepCounterEvents} together. A sample repeating the count before it
+ * carries no steps, so only the first of such a run is kept.
+ * <p>
+ * Sensor timestamps count from boot; {@link #toWallClock} turns them into wall clock times before
+ * the samples are counted.
+ */
+class StepEventBatch {
+    static final int CAPACITY = 256;
+
+    // In elapsed realtime nanoseconds, as in SensorEvent#timestamp.
+    final long[] timestamps = new long[CAPACITY];
+    final long[] timeMillis = new long[CAPACITY];
+    final int[] counts = new int[CAPACITY];
+    int size;
+
+    /**
+     * @return false if the sample was dropped.
+     */
+    boolean add(long timestamp, int count) {
+        if (size > 0 && counts[size - 1] == count) {
+            return false;
+        }
+        timestamps[size] = timestamp;
+        counts[size] = count;
+        size++;
+        return true;
+    }
+
+    /**
+     * Fill {@link #timeMillis} from timestamps, relative to a pair of clock readings taken together.
+     *
+     * @param nowElapsedNanos {@link android.os.SystemClock#elapsedRealtimeNanos()} at nowMillis.
+     */
+    void toWallClock(long nowMillis, long nowElapsedNanos) {
+        for (int i = 0; i < size; i++) {
+            timeMillis[i] = nowMillis - (nowElapsedNanos - timestamps[i]) / 1000000;
+        }
+    }
+
+    boolean isFull() {
+        return size == CAPACITY;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,290 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sukesan1984.stepsensorlib.util.Clock;
+import com.sukesan1984.stepsensorlib.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Append-only write-behind journal for step increments.
+ * <p>
+ * Increments are written as fixed size records into a memory-mapped file, so an append costs a
+ * few memory stores instead of a SQLite transaction. Pending records are folded into the steps
+ * table in one batch once {@link #FOLD_THRESHOLD} records have piled up or the oldest of them is
+ * {@link #MAX_PENDING_MILLIS} old, or when a caller needs the table to be up to date (see
+ * {@link #fold()}).
+ * <p>
+ * Each record is checksummed together with the generation of the journal, and the generation
+ * that was folded last is committed in the same transaction as the batch itself. Records that
+ * were already folded are therefore never applied twice, even if the process dies in the middle
+ * of a fold.
+ * <p>
+ * Only one process may own the journal: another one replaying and folding the same records would
+ * count them twice. The owner holds a lock on the file until it dies or {@link #close()}s it, and
+ * {@link #getInstance} only opens the journal in the process of {@link StepCountProvider}. Without
+ * the lock the journal stays empty and every append returns false.
+ */
+class StepJournal {
+    /**
+     * Destination of folded records.
+     */
+    interface Sink {
+        /**
+         * @return The generation of the last successfully folded journal, or 0 if nothing was folded yet.
+         */
+        long getFoldedJournalGeneration();
+
+        /**
+         * Add all given steps and remember generation atomically.
+         *
+         * @return true when committed.
+         */
+        boolean foldJournal(long generation, long[] dateAndHours, int[] steps, int size);
+    }
+
+    private static final String FILE_NAME = "steps.journal";
+    private static final int MAGIC = 0x53544a31;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+    static final int CAPACITY = 256;
+    // Saves come 1 minute to 1 hour apart, so a count alone could keep up to 60 hours of steps out
+    // of the table. MAX_PENDING_MILLIS bounds that to about an hour however saves are spaced.
+    static final int FOLD_THRESHOLD = 60;
+    static final long MAX_PENDING_MILLIS = 60 * 60 * 1000;
+
+    private static StepJournal instance;
+
+    private final Sink sink;
+    private final Clock clock;
+    // Kept open while the lock is held.
+    @Nullable
+    private RandomAccessFile lockedFile;
+    @Nullable
+    private MappedByteBuffer buffer;
+    private long generation;
+    private int recordCount;
+    // Wall clock time the first record of this generation was appended at.
+    private long firstRecordMillis;
+
+    // Pending records aggregated by hour, in the order they first appeared.
+    private final long[] pendingDateAndHours = new long[CAPACITY];
+    private final int[] pendingSteps = new int[CAPACITY];
+    private int pendingSize;
+
+    public static synchronized StepJournal getInstance(final Context c) {
+        if (instance == null) {
+            // Other processes save to the store directly, as if the journal failed to open.
+            File file = StepCountProvider.isInThisProcess() ? new File(c.getFilesDir(), FILE_NAME) : null;
+            instance = new StepJournal(file, StepStores.get(c));
+        }
+        return instance;
+    }
+
+    /**
+     * @param file Null for a journal which is never opened.
+     */
+    StepJournal(@Nullable File file, @NonNull Sink sink) {
+        this(file, sink, Clock.SYSTEM);
+    }
+
+    StepJournal(@Nullable File file, @NonNull Sink sink, @NonNull Clock clock) {
+        this.sink = sink;
+        this.clock = clock;
+        if (file != null) {
+            open(file);
+        }
+    }
+
+    private void open(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) {
+                Logger.log("journal is owned by another process");
+                return;
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + CAPACITY * RECORD_SIZE);
+            lockedFile = raf;
+        } catch (IOException e) {
+            e.printStackTrace();
+            buffer = null;
+            return;
+        } catch (OverlappingFileLockException e) {
+            // Another instance of this process owns it.
+            e.printStackTrace();
+            return;
+        } finally {
+            if (lockedFile == null) {
+                closeQuietly(raf);
+            }
+        }
+
+        long foldedGeneration = sink.getFoldedJournalGeneration();
+        if (buffer.getInt(0) != MAGIC || buffer.getLong(4) <= foldedGeneration) {
+            startGeneration(foldedGeneration + 1);
+            return;
+        }
+
+        // Replay whatever was written after the last fold.
+        generation = buffer.getLong(4);
+        while (recordCount < CAPACITY) {
+            int position = HEADER_SIZE + recordCount * RECORD_SIZE;
+            long dateAndHour = buffer.getLong(position);
+            int steps = buffer.getInt(position + 8);
+            if (steps <= 0 || buffer.getInt(position + 12) != checksum(generation, dateAndHour, steps)) {
+                break;
+            }
+            recordCount++;
+            aggregate(dateAndHour, steps);
+        }
+        fold();
+    }
+
+    /**
+     * Append steps to the journal.
+     *
+     * @return true if steps are journaled, false if the caller has to save them by itself.
+     */
+    public synchronized boolean append(long dateAndHour, int steps) {
+        if (steps < 0) throw new IllegalArgumentException("steps should not be negative value.");
+        if (buffer == null) {
+            return false;
+        }
+        if (steps == 0) {
+            return true;
+        }
+        if (recordCount == CAPACITY && !fold()) {
+            return false;
+        }
+
+        long now = clock.currentTimeMillis();
+        if (recordCount == 0) {
+            firstRecordMillis = now;
+        }
+        int position = HEADER_SIZE + recordCount * RECORD_SIZE;
+        buffer.putLong(position, dateAndHour);
+        buffer.putInt(position + 8, steps);
+        buffer.putInt(position + 12, checksum(generation, dateAndHour, steps));
+        recordCount++;
+        aggregate(dateAndHour, steps);
+
+        // A clock set back counts as old, rather than holding records until it catches up.
+        long age = now - firstRecordMillis;
+        if (recordCount >= FOLD_THRESHOLD || age >= MAX_PENDING_MILLIS || age < 0) {
+            // Failure is not fatal here, records stay in the journal until the next try.
+            fold();
+        }
+        return true;
+    }
+
+    /**
+     * Write all pending records to the sink.
+     *
+     * @return true if nothing is left pending.
+     */
+    public synchronized boolean fold() {
+        if (pendingSize == 0) {
+            return true;
+        }
+        if (!sink.foldJournal(generation, pendingDateAndHours, pendingSteps, pendingSize)) {
+            return false;
+        }
+        startGeneration(generation + 1);
+        return true;
+    }
+
+    /**
+     * @return Sum of steps that are journaled but not folded yet, between start and end inclusive.
+     */
+    public synchronized int getPendingSteps(long start, long end) {
+        int sum = 0;
+        for (int i = 0; i < pendingSize; i++) {
+            if (pendingDateAndHours[i] >= start && pendingDateAndHours[i] <= end) {
+                sum += pendingSteps[i];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Copy pending steps aggregated by hour.
+     *
+     * @param dateAndHours Array with at least {@link #CAPACITY} elements.
+     * @param steps        Array with at least {@link #CAPACITY} elements.
+     * @return Number of hours copied.
+     */
+    public synchronized int copyPending(long[] dateAndHours, int[] steps) {
+        System.arraycopy(pendingDateAndHours, 0, dateAndHours, 0, pendingSize);
+        System.arraycopy(pendingSteps, 0, steps, 0, pendingSize);
+        return pendingSize;
+    }
+
+    /**
+     * Drop all pending records without folding them.
+     */
+    public synchronized void clear() {
+        if (buffer != null) {
+            startGeneration(generation + 1);
+        }
+    }
+
+    /**
+     * Release the file, so that another journal may open it. Pending records are left in the file
+     * for the next owner to fold.
+     */
+    public synchronized void close() {
+        buffer = null;
+        pendingSize = 0;
+        recordCount = 0;
+        // Closing the file releases the lock.
+        closeQuietly(lockedFile);
+        lockedFile = null;
+    }
+
+    private void aggregate(long dateAndHour, int steps) {
+        for (int i = pendingSize - 1; i >= 0; i--) {
+            if (pendingDateAndHours[i] == dateAndHour) {
+                pendingSteps[i] += steps;
+                return;
+            }
+        }
+        pendingDateAndHours[pendingSize] = dateAndHour;
+        pendingSteps[pendingSize] = steps;
+        pendingSize++;
+    }
+
+    private void startGeneration(long newGeneration) {
+        // Records of older generations fail the checksum, so rewriting the header is enough.
+        generation = newGeneration;
+        recordCount = 0;
+        pendingSize = 0;
+        buffer.putLong(4, newGeneration);
+        buffer.putInt(0, MAGIC);
+    }
+
+    private static int checksum(long generation, long dateAndHour, int steps) {
+        long h = generation * 0x9E3779B97F4A7C15L ^ dateAndHour;
+        h = (h ^ (h >>> 29)) * 0xBF58476D1CE4E5B9L ^ steps;
+        return (int) (h ^ (h >>> 32)) ^ MAGIC;
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile file) {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.StepMetricsSnapshot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of the step pipeline, cheap enough to record on every sensor event.
+ * <p>
+ * Everything is kept in primitive atomic arrays: recording is one or three atomic adds and never
+ * allocates. Histograms have power-of-two buckets, bucket i counting values below 2^i and at least
+ * 2^(i-1).
+ */
+class StepMetrics {
+    static final int EVENTS_RECEIVED = 0;
+    static final int INCREMENTS_OVER_LIMIT = 1;
+    static final int NEGATIVE_INCREMENTS = 2;
+    static final int FLUSHES = 3;
+    private static final int COUNTER_COUNT = 4;
+
+    // In microseconds.
+    static final int FLUSH_LATENCY = 0;
+    // In microseconds.
+    static final int QUERY_LATENCY = 1;
+    // In events.
+    static final int SENSOR_BATCH_SIZE = 2;
+    private static final int HISTOGRAM_COUNT = 3;
+    // Count and sum, then buckets.
+    private static final int HISTOGRAM_SIZE = 2 + StepMetricsSnapshot.Histogram.BUCKET_COUNT;
+
+    private static final StepMetrics instance = new StepMetrics();
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+    private final AtomicLongArray histograms = new AtomicLongArray(HISTOGRAM_COUNT * HISTOGRAM_SIZE);
+
+    static StepMetrics getInstance() {
+        return instance;
+    }
+
+    void increment(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    void record(int histogram, long value) {
+        if (value < 0) value = 0;
+        int offset = histogram * HISTOGRAM_SIZE;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(value), StepMetricsSnapshot.Histogram.BUCKET_COUNT - 1);
+        histograms.incrementAndGet(offset);
+        histograms.addAndGet(offset + 1, value);
+        histograms.incrementAndGet(offset + 2 + bucket);
+    }
+
+    /**
+     * Record microseconds elapsed since startedAt, a value of {@link System#nanoTime()}.
+     */
+    void recordSince(int histogram, long startedAt) {
+        record(histogram, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt));
+    }
+
+    /**
+     * @return Values recorded so far. Values recorded meanwhile may be partly included.
+     */
+    StepMetricsSnapshot snapshot() {
+        return new StepMetricsSnapshot(
+                counters.get(EVENTS_RECEIVED),
+                counters.get(INCREMENTS_OVER_LIMIT),
+                counters.get(NEGATIVE_INCREMENTS),
+                counters.get(FLUSHES),
+                histogram(FLUSH_LATENCY),
+                histogram(QUERY_LATENCY),
+                histogram(SENSOR_BATCH_SIZE));
+    }
+
+    private StepMetricsSnapshot.Histogram histogram(int histogram) {
+        int offset = histogram * HISTOGRAM_SIZE;
+        long[] buckets = new long[StepMetricsSnapshot.Histogram.BUCKET_COUNT];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = histograms.get(offset + 2 + i);
+        }
+        return new StepMetricsSnapshot.Histogram(histograms.get(offset), histograms.get(offset + 1), buckets);
+    }
+
+    void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        for (int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, 0);
+        }
+    }
+}
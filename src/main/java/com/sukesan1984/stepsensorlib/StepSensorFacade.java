@@ -1,20 +1,131 @@
 package com.sukesan1984.stepsensorlib;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.model.ChunkStepCountPage;
+import com.sukesan1984.stepsensorlib.model.FlushDecision;
+import com.sukesan1984.stepsensorlib.model.StepMetricsSnapshot;
+import com.sukesan1984.stepsensorlib.util.Logger;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Step Sensor Facade
  */
 
 public class StepSensorFacade {
+    /**
+     * Progress of long running operations, called on the thread doing the work.
+     */
+    public interface ProgressListener {
+        void onProgress(int done, int total);
+    }
+
+    /**
+     * Result of asynchronous operations, called on the main thread.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        void onError(Exception e);
+    }
+
+    /**
+     * Receives hourly step counts one by one.
+     */
+    public interface ChunkStepCountVisitor {
+        /**
+         * @return false to stop visiting.
+         */
+        boolean visit(long unixTimeMillis, int steps);
+    }
+
+    /**
+     * Receives step counts as they change, see {@link #addStepCountListener}.
+     */
+    public interface StepCountListener {
+        /**
+         * @param dateAndHour Start of the current hour.
+         * @param todaySteps  Steps of today, including steps not saved yet.
+         * @param hourSteps   Steps of the current hour, including steps not saved yet.
+         */
+        void onStepCountChanged(long dateAndHour, int todaySteps, int hourSteps);
+    }
+
+    /**
+     * How long the sensor may batch step events before delivering them.
+     */
+    public enum BatchingMode {
+        /**
+         * Deliver events as they happen, while steps are shown on screen.
+         */
+        LIVE,
+        /**
+         * Batch as long as the sensor's FIFO allows, so the processor sleeps longer.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * Where hourly steps are persisted.
+     */
+    public enum StorageBackend {
+        /**
+         * SQLite database with daily and weekly rollups. The default.
+         */
+        SQLITE,
+        /**
+         * Fixed size records in one memory-mapped file, for the fastest reads.
+         */
+        BINARY_FILE,
+        /**
+         * Kept in memory only, lost with the process.
+         */
+        IN_MEMORY
+    }
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+    public static final int DEFAULT_RETENTION_DAYS = 90;
+    public static final long DEFAULT_MAX_STORAGE_BYTES = 1024 * 1024;
+    // Server chunks sent to the process counting steps per call, about 48 KB of the 1 MB a binder
+    // transaction may carry.
+    private static final int SERVER_CHUNKS_PER_CALL = 4096;
+
+    private static final Executor WRITER = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            StepWriter.getInstance().execute(command);
+        }
+    };
+
+    private static Handler mainHandler;
+    // Runs async reads, which would otherwise wait for saves queued on the writer.
+    private static ExecutorService reader;
+    // Ids of observers registered with the provider.
+    private static final Map<ContentObserver, String> observerIds = new HashMap<>();
+
     private StepSensorFacade() {
         throw new AssertionError();
     }
@@ -25,36 +136,631 @@ public class StepSensorFacade {
                 && context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_SENSOR_STEP_COUNTER);
     }
 
+    /**
+     * Select the storage backend. Call in Application.onCreate, before anything reads or saves steps.
+     * Steps saved in another backend are not migrated. Also selects it in the process counting steps,
+     * when that is another one.
+     *
+     * @throws IllegalStateException if another backend is already in use.
+     */
+    public static void setStorageBackend(Context context, StorageBackend backend) {
+        StepStores.select(backend);
+        if (!StepCountProvider.isInThisProcess()) {
+            callCountingProcess(context, StepCountProvider.METHOD_SET_STORAGE_BACKEND, backend.name(), null);
+        }
+    }
+
+    /**
+     * @deprecated Only selects the backend in the calling process. Use
+     * {@link #setStorageBackend(Context, StorageBackend)}.
+     */
+    @Deprecated
+    public static void setStorageBackend(StorageBackend backend) {
+        StepStores.select(backend);
+    }
+
+    /**
+     * Keep hourly steps for retentionDays. Older hours which are recorded on server are compacted
+     * about once a day: {@link #getDailySteps} and {@link #getWeeklySteps} still count them, but they
+     * are no longer read by hour. Storage is kept under maxStorageBytes by compacting more recent
+     * weeks if needed. Hours not recorded on server are never compacted.
+     * <p>
+     * Compaction runs on the background thread that saves steps, so saves wait for it: deleting a
+     * week of hours and giving up to 1 MB of freed space back to the file system. A database which
+     * was already large without incremental vacuum is not rebuilt to get it, which would hold off
+     * saves for seconds: its file keeps its size, and freed space is reused by new hours.
+     */
+    public static void setRetentionPolicy(Context context, int retentionDays, long maxStorageBytes) {
+        if (retentionDays < 0) throw new IllegalArgumentException("retentionDays should not be negative value.");
+        if (!StepCountProvider.isInThisProcess()) {
+            Bundle extras = new Bundle();
+            extras.putInt(StepCountProvider.EXTRA_RETENTION_DAYS, retentionDays);
+            extras.putLong(StepCountProvider.EXTRA_MAX_STORAGE_BYTES, maxStorageBytes);
+            callCountingProcess(context, StepCountProvider.METHOD_SET_RETENTION_POLICY, null, extras);
+            return;
+        }
+        PreferenceManager.writeRetentionPolicy(context, retentionDays, maxStorageBytes);
+    }
+
+    /**
+     * Also keep steps by minute, e.g. for cadence or active minutes. Call in Application.onCreate:
+     * minutes are only counted while enabled. Hourly steps and all totals are not affected.
+     */
+    public static void setMinuteResolutionEnabled(Context context, boolean enabled) {
+        // Also here, where getMinuteSteps reads the file.
+        StepCountCoordinator.getInstance().setMinuteStepFile(enabled ? MinuteStepFile.getInstance(context) : null);
+        if (!StepCountProvider.isInThisProcess()) {
+            callCountingProcess(context, StepCountProvider.METHOD_SET_MINUTE_RESOLUTION_ENABLED,
+                    String.valueOf(enabled), null);
+        }
+    }
+
     public static void startService(Context context) {
         context.startService(SensorListener.createIntent(context));
     }
 
-    public static void saveNow(Context context) {
-        StepCountCoordinator.getInstance().saveSteps(context);
+    /**
+     * Switch batching of the sensor, e.g. to {@link BatchingMode#LIVE} in onResume of a screen showing
+     * steps and back to {@link BatchingMode#BACKGROUND} in onPause. Steps are neither lost nor counted
+     * twice by the switch. The mode is applied by the service, also when it runs in a process of its own.
+     */
+    public static void setBatchingMode(Context context, BatchingMode mode) {
+        // The service ignores a mode it already has.
+        context.startService(SensorListener.createIntentForBatchingMode(context, mode));
+    }
+
+    /**
+     * @return Batching mode of the sensor. Only known in the process running {@link SensorListener},
+     * other processes see {@link BatchingMode#BACKGROUND}.
+     */
+    public static BatchingMode getBatchingMode() {
+        return SensorListener.getBatchingMode();
+    }
+
+    /**
+     * Same as {@link #addStepCountListener(Context, StepCountListener, long, Executor)}, called on the
+     * main thread.
+     */
+    public static void addStepCountListener(Context context, StepCountListener listener, long minIntervalMillis) {
+        final Handler handler = getMainHandler();
+        addStepCountListener(context, listener, minIntervalMillis, new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                handler.post(command);
+            }
+        });
+    }
+
+    /**
+     * Call listener with the current counts, and again whenever they change while it is added.
+     * Counts come from memory as steps arrive; changes within minIntervalMillis of the last call
+     * are coalesced into one call with the latest counts. Remove it with
+     * {@link #removeStepCountListener}, e.g. in onPause.
+     */
+    public static void addStepCountListener(Context context, StepCountListener listener, long minIntervalMillis,
+                                            Executor executor) {
+        StepCountCoordinator.getInstance().getPublisher()
+                .add(context.getApplicationContext(), listener, minIntervalMillis, executor);
     }
 
-    public static int getTodaySteps(Context context) {
+    public static void removeStepCountListener(StepCountListener listener) {
+        StepCountCoordinator.getInstance().getPublisher().remove(listener);
+    }
+
+    /**
+     * Same as {@link #getTodaySteps(Context)}, from the process counting steps through
+     * {@link StepCountProvider}. Other processes of the app do not see unsaved steps, so there
+     * {@link #getTodaySteps(Context)} returns this.
+     *
+     * @return Today's steps, or -1 if the provider is not available.
+     */
+    public static int queryTodaySteps(Context context) {
+        return queryInt(context, StepCountProvider.getTodayUri(context), StepCountProvider.COLUMN_TODAY_STEPS);
+    }
+
+    /**
+     * Same as {@link #getSteps(Context, long, long)}, from the process counting steps.
+     *
+     * @return Sum of hours from start to end, both inclusive, or -1 if the provider is not available.
+     * @see #queryTodaySteps(Context)
+     */
+    public static int querySteps(Context context, long start, long end) {
+        return queryInt(context, StepCountProvider.getStepsUri(context, start, end), StepCountProvider.COLUMN_STEPS);
+    }
+
+    private static int queryInt(Context context, Uri uri, String column) {
+        Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(cursor.getColumnIndexOrThrow(column)) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Have observer notified whenever steps change in the process counting steps, at most about
+     * once a second. The counterpart of {@link #addStepCountListener} for other processes of the app.
+     * The provider only listens to steps while observers are registered this way.
+     */
+    public static void registerStepCountObserver(Context context, ContentObserver observer) {
+        String id;
+        synchronized (observerIds) {
+            if (observerIds.containsKey(observer)) {
+                return;
+            }
+            id = UUID.randomUUID().toString();
+            observerIds.put(observer, id);
+        }
+        Uri uri = StepCountProvider.getBaseUri(context);
+        ContentResolver resolver = context.getContentResolver();
+        resolver.registerContentObserver(uri, true, observer);
+        Bundle extras = new Bundle();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            // Lets the provider drop the observer if this process dies.
+            extras.putBinder(StepCountProvider.EXTRA_TOKEN, new Binder());
+        }
+        resolver.call(uri, StepCountProvider.METHOD_ADD_OBSERVER, id, extras);
+    }
+
+    public static void unregisterStepCountObserver(Context context, ContentObserver observer) {
+        String id;
+        synchronized (observerIds) {
+            id = observerIds.remove(observer);
+        }
+        if (id == null) {
+            return;
+        }
+        ContentResolver resolver = context.getContentResolver();
+        resolver.unregisterContentObserver(observer);
+        resolver.call(StepCountProvider.getBaseUri(context), StepCountProvider.METHOD_REMOVE_OBSERVER, id, null);
+    }
+
+    /**
+     * @return Counters and latencies of the step pipeline since the process started, e.g. to attach
+     * to a report of missing steps.
+     */
+    public static StepMetricsSnapshot getMetrics() {
+        return StepMetrics.getInstance().snapshot();
+    }
+
+    /**
+     * Save unsaved steps to the database and wait for it. Prefer {@link #saveNowAsync} on the main thread.
+     */
+    public static void saveNow(final Context context) {
+        if (!StepCountProvider.isInThisProcess()) {
+            callCountingProcess(context, StepCountProvider.METHOD_SAVE, null, null);
+            return;
+        }
+        StepWriter.getInstance().call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                StepCountCoordinator.getInstance().flush(context);
+                return null;
+            }
+        });
+    }
+
+    public static void saveNowAsync(final Context context, @Nullable Callback<Void> callback) {
+        callAsync(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                saveNow(context);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns from memory, only reads the database on the first call. In another process than the
+     * one counting steps, same as {@link #queryTodaySteps(Context)}.
+     */
+    public static int getTodaySteps(final Context context) {
+        if (!StepCountProvider.isInThisProcess()) {
+            return queryTodaySteps(context);
+        }
         return StepCountCoordinator.getInstance().getTodaySteps(context);
     }
 
+    public static void getTodayStepsAsync(final Context context, final Callback<Integer> callback) {
+        final int steps = StepCountCoordinator.getInstance().peekTodaySteps();
+        if (steps != HourlyStepCache.MISS) {
+            getMainHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResult(steps);
+                }
+            });
+            return;
+        }
+        readAsync(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return getTodaySteps(context);
+            }
+        }, callback);
+    }
+
+    /**
+     * @return Recent decisions of the save scheduler, oldest first. For diagnosing battery use.
+     */
+    @NonNull
+    public static List<FlushDecision> getRecentFlushDecisions() {
+        return FlushScheduler.getInstance().getRecentDecisions();
+    }
+
     public static void clearAllData(Context context) {
         context.startService(SensorListener.createIntentForReset(context));
     }
 
     public static void increaseByServerChunkStepCounts(Context context, List<ChunkStepCount> chunkStepCounts) {
-        saveNow(context);
-        Database.getInstance(context).increaseByServerChunkStepCounts(chunkStepCounts);
+        increaseByServerChunkStepCounts(context, chunkStepCounts, null);
+    }
+
+    /**
+     * Same as {@link #increaseByServerChunkStepCounts(Context, List)}, reporting progress of long restores.
+     */
+    public static void increaseByServerChunkStepCounts(final Context context,
+                                                       final List<ChunkStepCount> chunkStepCounts,
+                                                       @Nullable final ProgressListener listener) {
+        StepWriter.getInstance().call(increaseByServerChunkStepCountsTask(context, chunkStepCounts, listener));
+    }
+
+    /**
+     * @param listener Called on the background thread.
+     */
+    public static void increaseByServerChunkStepCountsAsync(Context context, List<ChunkStepCount> chunkStepCounts,
+                                                            @Nullable ProgressListener listener,
+                                                            @Nullable Callback<Void> callback) {
+        callAsync(increaseByServerChunkStepCountsTask(context, chunkStepCounts, listener), callback);
+    }
+
+    private static Callable<Void> increaseByServerChunkStepCountsTask(final Context context,
+                                                                      final List<ChunkStepCount> chunkStepCounts,
+                                                                      @Nullable final ProgressListener listener) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                if (StepCountProvider.isInThisProcess()) {
+                    StepCountCoordinator.getInstance().increaseByServerChunkStepCounts(context, chunkStepCounts, listener);
+                } else {
+                    increaseInCountingProcess(context, chunkStepCounts, listener);
+                }
+                return null;
+            }
+        };
+    }
+
+    private static void increaseInCountingProcess(Context context, List<ChunkStepCount> chunkStepCounts,
+                                                  @Nullable ProgressListener listener) {
+        int total = chunkStepCounts.size();
+        for (int done = 0; done < total; ) {
+            int size = Math.min(SERVER_CHUNKS_PER_CALL, total - done);
+            long[] unixTimeMillis = new long[size];
+            int[] steps = new int[size];
+            for (int i = 0; i < size; i++) {
+                ChunkStepCount chunkStepCount = chunkStepCounts.get(done + i);
+                unixTimeMillis[i] = chunkStepCount.unixTimeMillis;
+                steps[i] = chunkStepCount.steps;
+            }
+            Bundle extras = new Bundle();
+            extras.putLongArray(StepCountProvider.EXTRA_UNIX_TIME_MILLIS, unixTimeMillis);
+            extras.putIntArray(StepCountProvider.EXTRA_STEPS, steps);
+            callCountingProcess(context, StepCountProvider.METHOD_INCREASE_BY_SERVER_CHUNK_STEP_COUNTS, null, extras);
+            done += size;
+            if (listener != null) {
+                listener.onProgress(done, total);
+            }
+        }
+    }
+
+    /**
+     * @param dateAndHour Start of the hour, as in {@link ChunkStepCount#unixTimeMillis}.
+     * @return Steps of the hour, including steps not saved yet.
+     */
+    public static int getSteps(final Context context, final long dateAndHour) {
+        if (!StepCountProvider.isInThisProcess()) {
+            return querySteps(context, dateAndHour, dateAndHour);
+        }
+        return StepCountCoordinator.getInstance().getSteps(context, dateAndHour);
+    }
+
+    /**
+     * @return Sum of hours from start to end, both inclusive. Bounded by the number of days in between.
+     */
+    public static int getSteps(final Context context, final long start, final long end) {
+        if (!StepCountProvider.isInThisProcess()) {
+            return querySteps(context, start, end);
+        }
+        int steps = StepCountCoordinator.getInstance().peekSteps(start, end);
+        if (steps != HourlyStepCache.MISS) {
+            return steps;
+        }
+        return StepCountCoordinator.getInstance().readSteps(context, start, end);
+    }
+
+    /**
+     * @return Steps per local day from the day of start to the day of end. Days without steps are left
+     * out. {@link ChunkStepCount#unixTimeMillis} is the start of the day.
+     */
+    @NonNull
+    public static List<ChunkStepCount> getDailySteps(Context context, long start, long end) {
+        return StepCountCoordinator.getInstance().readRollupSeries(context, start, end, false);
+    }
+
+    public static void getDailyStepsAsync(Context context, long start, long end,
+                                          Callback<List<ChunkStepCount>> callback) {
+        readAsync(rollupSeriesTask(context, start, end, false), callback);
+    }
+
+    /**
+     * @return Steps per week, starting on Monday, from the week of start to the week of end. Weeks
+     * without steps are left out. {@link ChunkStepCount#unixTimeMillis} is the start of the week.
+     */
+    @NonNull
+    public static List<ChunkStepCount> getWeeklySteps(Context context, long start, long end) {
+        return StepCountCoordinator.getInstance().readRollupSeries(context, start, end, true);
+    }
+
+    public static void getWeeklyStepsAsync(Context context, long start, long end,
+                                           Callback<List<ChunkStepCount>> callback) {
+        readAsync(rollupSeriesTask(context, start, end, true), callback);
+    }
+
+    private static Callable<List<ChunkStepCount>> rollupSeriesTask(final Context context, final long start,
+                                                                   final long end, final boolean weekly) {
+        return new Callable<List<ChunkStepCount>>() {
+            @Override
+            public List<ChunkStepCount> call() throws Exception {
+                return StepCountCoordinator.getInstance().readRollupSeries(context, start, end, weekly);
+            }
+        };
+    }
+
+    /**
+     * @return Steps per minute from start to end, both inclusive, including steps not saved yet.
+     * Minutes without steps are left out. {@link ChunkStepCount#unixTimeMillis} is the start of the
+     * minute. Empty unless {@link #setMinuteResolutionEnabled} is on.
+     */
+    @NonNull
+    public static List<ChunkStepCount> getMinuteSteps(Context context, long start, long end) {
+        return StepCountCoordinator.getInstance().getMinuteSteps(start, end);
+    }
+
+    public static void getMinuteStepsAsync(Context context, long start, long end,
+                                           Callback<List<ChunkStepCount>> callback) {
+        readAsync(minuteStepsTask(start, end), callback);
+    }
+
+    private static Callable<List<ChunkStepCount>> minuteStepsTask(final long start, final long end) {
+        return new Callable<List<ChunkStepCount>>() {
+            @Override
+            public List<ChunkStepCount> call() throws Exception {
+                return StepCountCoordinator.getInstance().getMinuteSteps(start, end);
+            }
+        };
     }
 
     @NonNull
     public static List<ChunkStepCount> getChunkStepsSince(Context context, long dateAndHour) {
-        saveNow(context);
-        return Database.getInstance(context).getChunkStepsSince(dateAndHour);
+        ListCollector collector = new ListCollector();
+        forEachChunkStepCountSince(context, dateAndHour, DEFAULT_PAGE_SIZE, collector);
+        return collector.list;
+    }
+
+    public static void getChunkStepsSinceAsync(final Context context, final long dateAndHour,
+                                               Callback<List<ChunkStepCount>> callback) {
+        readAsync(new Callable<List<ChunkStepCount>>() {
+            @Override
+            public List<ChunkStepCount> call() throws Exception {
+                return getChunkStepsSince(context, dateAndHour);
+            }
+        }, callback);
     }
 
     @NonNull
     public static List<ChunkStepCount> getNotRecordedChunkStepCounts(Context context) {
+        ListCollector collector = new ListCollector();
+        forEachNotRecordedChunkStepCount(context, DEFAULT_PAGE_SIZE, collector);
+        return collector.list;
+    }
+
+    public static void getNotRecordedChunkStepCountsAsync(final Context context,
+                                                          Callback<List<ChunkStepCount>> callback) {
+        readAsync(new Callable<List<ChunkStepCount>>() {
+            @Override
+            public List<ChunkStepCount> call() throws Exception {
+                return getNotRecordedChunkStepCounts(context);
+            }
+        }, callback);
+    }
+
+    /**
+     * Visit hourly step counts since dateAndHour in order of hour, reading pageSize rows at a time.
+     * Memory use depends on pageSize only, not on the length of history. Rows are read and visited
+     * on the calling thread, after unsaved steps are saved.
+     */
+    public static void forEachChunkStepCountSince(Context context, long dateAndHour, int pageSize,
+                                                  ChunkStepCountVisitor visitor) {
+        forEachChunkStepCount(context, dateAndHour, false, pageSize, visitor);
+    }
+
+    /**
+     * Visit hourly step counts not recorded on server in order of hour, reading pageSize rows at a time.
+     *
+     * @see #forEachChunkStepCountSince(Context, long, int, ChunkStepCountVisitor)
+     */
+    public static void forEachNotRecordedChunkStepCount(Context context, int pageSize, ChunkStepCountVisitor visitor) {
+        forEachChunkStepCount(context, Long.MIN_VALUE, true, pageSize, visitor);
+    }
+
+    private static void forEachChunkStepCount(final Context context, long start, final boolean notRecordedOnly,
+                                              int pageSize, ChunkStepCountVisitor visitor) {
         saveNow(context);
-        return Database.getInstance(context).getNotRecordedChunkStepCounts();
+        final ChunkStepCountPage page = new ChunkStepCountPage(pageSize);
+        while (true) {
+            if (!StepStores.get(context).getChunkStepCountPage(start, notRecordedOnly, page)) {
+                return;
+            }
+            for (int i = 0; i < page.size; i++) {
+                if (!visitor.visit(page.unixTimeMillis[i], page.steps[i])) {
+                    return;
+                }
+            }
+            if (!page.isFull()) {
+                return;
+            }
+            start = page.nextStart();
+        }
+    }
+
+    /**
+     * Token for {@link #forEachChunkStepCountChangedSince} and {@link #markRecordedOnServer}. Take it
+     * before reading the rows to upload: rows changing after that are left unrecorded.
+     */
+    public static long getSyncToken(final Context context) {
+        if (!StepCountProvider.isInThisProcess()) {
+            Bundle result = callCountingProcess(context, StepCountProvider.METHOD_GET_SYNC_TOKEN, null, null);
+            return result.getLong(StepCountProvider.EXTRA_SYNC_TOKEN);
+        }
+        return StepWriter.getInstance().call(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                StepCountCoordinator.getInstance().flush(context);
+                return StepStores.get(context).getSyncToken();
+            }
+        });
+    }
+
+    /**
+     * Visit hourly step counts changed after syncToken in order of change, reading pageSize rows at a time.
+     * Pass 0 to visit all rows.
+     *
+     * @return Token to pass next time, covering the rows visited.
+     * @see #forEachChunkStepCountSince(Context, long, int, ChunkStepCountVisitor)
+     */
+    public static long forEachChunkStepCountChangedSince(final Context context, long syncToken, int pageSize,
+                                                         ChunkStepCountVisitor visitor) {
+        saveNow(context);
+        final ChunkStepCountPage page = new ChunkStepCountPage(pageSize);
+        while (true) {
+            if (!StepStores.get(context).getChangedChunkStepCountPage(syncToken, page)) {
+                return syncToken;
+            }
+            for (int i = 0; i < page.size; i++) {
+                if (!visitor.visit(page.unixTimeMillis[i], page.steps[i])) {
+                    return syncToken;
+                }
+                syncToken = page.changeSequence[i];
+            }
+            if (!page.isFull()) {
+                return syncToken;
+            }
+        }
+    }
+
+    /**
+     * Mark hours as recorded on server after uploading them. Hours whose steps changed after
+     * syncToken stay unrecorded, so they are uploaded again.
+     *
+     * @param syncToken Token from {@link #getSyncToken(Context)} taken before the hours were read.
+     * @return Number of hours marked, or -1 when failed.
+     */
+    public static int markRecordedOnServer(final Context context, final long[] unixTimeMillis, final long syncToken) {
+        if (!StepCountProvider.isInThisProcess()) {
+            Bundle extras = new Bundle();
+            extras.putLongArray(StepCountProvider.EXTRA_UNIX_TIME_MILLIS, unixTimeMillis);
+            extras.putLong(StepCountProvider.EXTRA_SYNC_TOKEN, syncToken);
+            Bundle result = callCountingProcess(context, StepCountProvider.METHOD_MARK_RECORDED_ON_SERVER, null, extras);
+            return result.getInt(StepCountProvider.EXTRA_COUNT, -1);
+        }
+        return StepWriter.getInstance().call(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return StepStores.get(context).markRecorded(unixTimeMillis, syncToken);
+            }
+        });
+    }
+
+    /**
+     * Run a write or a change of settings in the process counting steps through
+     * {@link StepCountProvider}, and wait for it. That process alone opens the journal.
+     */
+    static Bundle callCountingProcess(Context context, String method, @Nullable String arg, @Nullable Bundle extras) {
+        return context.getContentResolver().call(StepCountProvider.getBaseUri(context), method, arg, extras);
+    }
+
+    private static class ListCollector implements ChunkStepCountVisitor {
+        final List<ChunkStepCount> list = new ArrayList<>();
+
+        @Override
+        public boolean visit(long unixTimeMillis, int steps) {
+            list.add(new ChunkStepCount(unixTimeMillis, steps));
+            return true;
+        }
+    }
+
+    /**
+     * Run task on the background thread and deliver the result to callback on the main thread.
+     */
+    private static <T> void callAsync(Callable<T> task, @Nullable Callback<T> callback) {
+        callAsync(WRITER, task, callback);
+    }
+
+    /**
+     * Same as {@link #callAsync(Callable, Callback)}, on a thread of its own for reads.
+     */
+    private static <T> void readAsync(Callable<T> task, @Nullable Callback<T> callback) {
+        callAsync(getReader(), task, callback);
+    }
+
+    private static <T> void callAsync(Executor executor, final Callable<T> task, @Nullable final Callback<T> callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final T result = task.call();
+                    if (callback == null) return;
+                    getMainHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(result);
+                        }
+                    });
+                } catch (final Exception e) {
+                    Logger.log(e);
+                    if (callback == null) return;
+                    getMainHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onError(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getReader() {
+        if (reader == null) {
+            reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StepSensorLib-reader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return reader;
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
     }
 }
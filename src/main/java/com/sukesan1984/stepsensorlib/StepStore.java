@@ -0,0 +1,107 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.model.ChunkStepCountPage;
+
+import java.util.List;
+
+/**
+ * Persistent hourly steps. Hours are keyed by the start of the hour, as in
+ * {@link ChunkStepCount#unixTimeMillis}.
+ * <p>
+ * Every row write stamps a new change sequence, which a sync uses to ask for rows changed since a
+ * token and to mark rows as recorded on server only if they did not change after it.
+ *
+ * @see StepStores
+ */
+interface StepStore extends StepJournal.Sink {
+    /**
+     * Add steps to the hour, creating it if needed. The row is marked as not recorded on server.
+     *
+     * @return true if steps are added, false when failed.
+     * @throws IllegalArgumentException if steps is negative value.
+     */
+    boolean addSteps(long dateAndHour, int steps);
+
+    int getSteps(long dateAndHour);
+
+    /**
+     * @return Sum of hours from start to end, both inclusive.
+     */
+    int getSteps(long start, long end);
+
+    /**
+     * @return Steps of each local day which has steps, from the day of start to the day of end.
+     */
+    @NonNull
+    List<ChunkStepCount> getDailySteps(long start, long end);
+
+    /**
+     * @return Steps of each week which has steps, from the week of start to the week of end.
+     */
+    @NonNull
+    List<ChunkStepCount> getWeeklySteps(long start, long end);
+
+    @NonNull
+    List<ChunkStepCount> getChunkStepsSince(long start);
+
+    /**
+     * Read hours from start in order of hour, as many as page can hold. Pass
+     * {@link ChunkStepCountPage#nextStart()} to read the next page.
+     *
+     * @param notRecordedOnly true to read only hours not recorded on server.
+     * @return true if succeeded.
+     */
+    boolean getChunkStepCountPage(long start, boolean notRecordedOnly, ChunkStepCountPage page);
+
+    /**
+     * Read hours changed after syncToken in order of change, as many as page can hold. Pass the last
+     * {@link ChunkStepCountPage#changeSequence} of a page to read the next one.
+     *
+     * @return true if succeeded.
+     */
+    boolean getChangedChunkStepCountPage(long syncToken, ChunkStepCountPage page);
+
+    /**
+     * Merge step counts from server. Hours are overwritten by server value unless they already have
+     * more steps, and marked as recorded on server. Merging is idempotent.
+     *
+     * @throws RuntimeException when failed. Part of the list might be merged.
+     */
+    void increaseByServerChunkStepCounts(List<ChunkStepCount> chunkStepCounts,
+                                         @Nullable StepSensorFacade.ProgressListener listener);
+
+    /**
+     * @return Change sequence of the last committed write. Hours written later get a greater one.
+     */
+    long getSyncToken();
+
+    /**
+     * Mark hours as recorded on server, except those changed after syncToken.
+     *
+     * @return Number of hours marked, or -1 when failed.
+     */
+    int markRecorded(long[] dateAndHours, long syncToken);
+
+    /**
+     * Compact hours older than retentionMillis which are recorded on server, keeping their steps in
+     * daily and weekly sums, and keep storage under maxBytes where possible. Hours not recorded on
+     * server are always kept.
+     *
+     * @return Number of hours removed, or -1 when failed.
+     */
+    int compact(long now, long retentionMillis, long maxBytes);
+
+    /**
+     * Delete all hours. Sync tokens handed out so far stay valid.
+     */
+    void deleteAll();
+
+    /**
+     * Local day and week boundaries moved.
+     */
+    void onTimeZoneChanged();
+}
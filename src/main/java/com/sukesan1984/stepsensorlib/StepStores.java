@@ -0,0 +1,43 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+
+/**
+ * Holds the {@link StepStore} of the backend selected at init.
+ */
+class StepStores {
+    private static StepSensorFacade.StorageBackend backend = StepSensorFacade.StorageBackend.SQLITE;
+    private static StepStore instance;
+
+    private StepStores() {
+        throw new AssertionError();
+    }
+
+    static synchronized void select(@NonNull StepSensorFacade.StorageBackend selected) {
+        if (instance != null && selected != backend) {
+            throw new IllegalStateException("Storage backend " + backend + " is already in use.");
+        }
+        backend = selected;
+    }
+
+    @NonNull
+    static synchronized StepStore get(final Context c) {
+        if (instance == null) {
+            switch (backend) {
+                case BINARY_FILE:
+                    instance = new BinaryFileStepStore(new File(c.getFilesDir(), BinaryFileStepStore.FILE_NAME));
+                    break;
+                case IN_MEMORY:
+                    instance = new InMemoryStepStore();
+                    break;
+                default:
+                    instance = Database.getInstance(c);
+                    break;
+            }
+        }
+        return instance;
+    }
+}
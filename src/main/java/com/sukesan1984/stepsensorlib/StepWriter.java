@@ -0,0 +1,109 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single background thread doing all database and journal work of the library, so that it never
+ * runs on the main thread, the sensor thread or a receiver.
+ * <p>
+ * Save requests arriving within {@link #SAVE_COALESCE_MILLIS} are coalesced into one save.
+ */
+class StepWriter {
+    private static final long SAVE_COALESCE_MILLIS = 500;
+    private static final StepWriter instance = new StepWriter();
+
+    private final ScheduledExecutorService executor;
+    private volatile Thread thread;
+    private final AtomicBoolean saveRequested = new AtomicBoolean();
+    private final AtomicBoolean checkpointRequested = new AtomicBoolean();
+
+    public static StepWriter getInstance() {
+        return instance;
+    }
+
+    private StepWriter() {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                thread = new Thread(runnable, "StepSensorLib-writer");
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Save unsaved steps soon. Requests made before the save starts are served by the same save.
+     */
+    public void requestSave(Context context) {
+        if (!saveRequested.compareAndSet(false, true)) {
+            return;
+        }
+        final Context applicationContext = context.getApplicationContext();
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                saveRequested.set(false);
+                StepCountCoordinator.getInstance().saveSteps(applicationContext);
+            }
+        }, SAVE_COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checkpoint unsaved steps soon. Requests made before the checkpoint starts are served by it.
+     */
+    public void requestCheckpoint(Context context) {
+        if (!checkpointRequested.compareAndSet(false, true)) {
+            return;
+        }
+        final Context applicationContext = context.getApplicationContext();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                checkpointRequested.set(false);
+                StepCountCoordinator.getInstance().checkpoint(applicationContext);
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    public void schedule(Runnable task, long delayMillis) {
+        executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run task on the writer thread and wait for the result.
+     */
+    public <T> T call(Callable<T> task) {
+        try {
+            if (Thread.currentThread() == thread) {
+                return task.call();
+            }
+            return executor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw asRuntimeException(e.getCause());
+        } catch (Exception e) {
+            throw asRuntimeException(e);
+        }
+    }
+
+    private static RuntimeException asRuntimeException(Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new IllegalStateException(t);
+    }
+}
@@ -0,0 +1,24 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+public class TimeChangeReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        TimeBuckets.getDefault().invalidate();
+        if (Intent.ACTION_TIMEZONE_CHANGED.equals(intent.getAction())) {
+            // Day and week boundaries moved, rollups have to follow.
+            final Context applicationContext = context.getApplicationContext();
+            StepWriter.getInstance().execute(new Runnable() {
+                @Override
+                public void run() {
+                    StepStores.get(applicationContext).onTimeZoneChanged();
+                }
+            });
+        }
+    }
+}
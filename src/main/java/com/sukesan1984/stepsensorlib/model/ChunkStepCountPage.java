@@ -0,0 +1,36 @@
+package com.sukesan1984.stepsensorlib.model;
+
+/**
+ * Reusable page of hourly step counts in primitive arrays, ordered by hour or by change sequence.
+ */
+public class ChunkStepCountPage {
+    public final long[] unixTimeMillis;
+    public final int[] steps;
+    /**
+     * Change sequence of each row, see {@code StepSensorFacade#getSyncToken}.
+     */
+    public final long[] changeSequence;
+    public int size;
+
+    public ChunkStepCountPage(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity should be positive.");
+        this.unixTimeMillis = new long[capacity];
+        this.steps = new int[capacity];
+        this.changeSequence = new long[capacity];
+    }
+
+    public int capacity() {
+        return steps.length;
+    }
+
+    public boolean isFull() {
+        return size == steps.length;
+    }
+
+    /**
+     * @return Key to start the next page from.
+     */
+    public long nextStart() {
+        return unixTimeMillis[size - 1] + 1;
+    }
+}
@@ -0,0 +1,39 @@
+package com.sukesan1984.stepsensorlib.model;
+
+/**
+ * A decision of the flush scheduler, kept so that its behaviour can be inspected.
+ */
+public class FlushDecision {
+    public static final long KEEP_ALARM = -1;
+
+    public final long decidedAt;
+    public final String reason;
+    public final int unsavedSteps;
+    public final long intervalMillis;
+    public final boolean saveNow;
+    /**
+     * Time the save alarm was armed for, or {@link #KEEP_ALARM} if the armed alarm was kept.
+     */
+    public final long nextFlushAt;
+
+    public FlushDecision(long decidedAt, String reason, int unsavedSteps, long intervalMillis, boolean saveNow,
+                         long nextFlushAt) {
+        this.decidedAt = decidedAt;
+        this.reason = reason;
+        this.unsavedSteps = unsavedSteps;
+        this.intervalMillis = intervalMillis;
+        this.saveNow = saveNow;
+        this.nextFlushAt = nextFlushAt;
+    }
+
+    public boolean rearmsAlarm() {
+        return nextFlushAt != KEEP_ALARM;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushDecision{at=" + decidedAt + ", reason=" + reason + ", unsaved=" + unsavedSteps +
+                ", interval=" + intervalMillis + ", save=" + saveNow +
+                ", next=" + (rearmsAlarm() ? String.valueOf(nextFlushAt) : "kept") + "}";
+    }
+}
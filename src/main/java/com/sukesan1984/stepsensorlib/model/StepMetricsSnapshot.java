@@ -0,0 +1,108 @@
+package com.sukesan1984.stepsensorlib.model;
+
+/**
+ * Counters and histograms of the step pipeline since the process started, see
+ * {@code StepSensorFacade#getMetrics}.
+ */
+public class StepMetricsSnapshot {
+    /**
+     * Step counter events received from the sensor.
+     */
+    public final long eventsReceived;
+    /**
+     * Events whose increment exceeded the hourly limit, and were not counted.
+     */
+    public final long incrementsOverLimit;
+    /**
+     * Events whose counter went backwards, and were not counted.
+     */
+    public final long negativeIncrements;
+    /**
+     * Saves of unsaved steps.
+     */
+    public final long flushes;
+    /**
+     * Duration of saves, in microseconds.
+     */
+    public final Histogram flushLatencyMicros;
+    /**
+     * Duration of database reads, in microseconds.
+     */
+    public final Histogram queryLatencyMicros;
+    /**
+     * Events delivered together by the sensor.
+     */
+    public final Histogram sensorBatchSizes;
+
+    public StepMetricsSnapshot(long eventsReceived, long incrementsOverLimit, long negativeIncrements, long flushes,
+                               Histogram flushLatencyMicros, Histogram queryLatencyMicros, Histogram sensorBatchSizes) {
+        this.eventsReceived = eventsReceived;
+        this.incrementsOverLimit = incrementsOverLimit;
+        this.negativeIncrements = negativeIncrements;
+        this.flushes = flushes;
+        this.flushLatencyMicros = flushLatencyMicros;
+        this.queryLatencyMicros = queryLatencyMicros;
+        this.sensorBatchSizes = sensorBatchSizes;
+    }
+
+    @Override
+    public String toString() {
+        return "eventsReceived=" + eventsReceived
+                + " incrementsOverLimit=" + incrementsOverLimit
+                + " negativeIncrements=" + negativeIncrements
+                + " flushes=" + flushes
+                + " flushLatencyMicros={" + flushLatencyMicros + "}"
+                + " queryLatencyMicros={" + queryLatencyMicros + "}"
+                + " sensorBatchSizes={" + sensorBatchSizes + "}";
+    }
+
+    /**
+     * Distribution of values in power-of-two buckets: bucket i counts values below 2^i and at
+     * least 2^(i-1), the last one also counts larger values.
+     */
+    public static class Histogram {
+        public static final int BUCKET_COUNT = 40;
+
+        public final long count;
+        public final long sum;
+        public final long[] buckets;
+
+        public Histogram(long count, long sum, long[] buckets) {
+            this.count = count;
+            this.sum = sum;
+            this.buckets = buckets;
+        }
+
+        public long mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param fraction Between 0 and 1, e.g. 0.99.
+         * @return Upper bound of the bucket holding the value at fraction, or 0 if there is none.
+         */
+        public long percentile(double fraction) {
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + mean() + " p50=" + percentile(0.5) + " p99=" + percentile(0.99);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.sukesan1984.stepsensorlib.util;
+
+/**
+ * Source of wall clock time, replaceable in tests.
+ */
+public interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long currentTimeMillis();
+}
@@ -1,34 +1,19 @@
 package com.sukesan1984.stepsensorlib.util;
 
-import java.util.Calendar;
-
 /**
  * Created by kosuketakami on 2016/11/05.
  */
 
 public class DateUtils {
     public static long getStartOfToday() {
-        Calendar c = Calendar.getInstance();
-        c.setTimeInMillis(System.currentTimeMillis());
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        c.set(Calendar.MINUTE, 0);
-        c.set(Calendar.SECOND, 0);
-        c.set(Calendar.MILLISECOND, 0);
-        return c.getTimeInMillis();
+        return TimeBuckets.getDefault().startOfToday();
     }
 
     public static long getCurrentDateAndHour() {
-        Calendar c = Calendar.getInstance();
-        c.setTimeInMillis(System.currentTimeMillis());
-        c.set(Calendar.MINUTE, 0);
-        c.set(Calendar.SECOND, 0);
-        c.set(Calendar.MILLISECOND, 0);
-        return c.getTimeInMillis();
+        return TimeBuckets.getDefault().currentHour();
     }
 
     public static long getCurrentTimeMllis() {
-        Calendar c = Calendar.getInstance();
-        c.setTimeInMillis(System.currentTimeMillis());
-        return c.getTimeInMillis();
+        return TimeBuckets.getDefault().currentTimeMillis();
     }
 }
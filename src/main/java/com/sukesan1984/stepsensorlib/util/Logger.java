@@ -18,32 +18,202 @@ package com.sukesan1984.stepsensorlib.util;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.database.Cursor;
+import android.support.annotation.NonNull;
 
 import com.crashlytics.android.Crashlytics;
 import com.sukesan1984.stepsensorlib.BuildConfig;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Log kept in a fixed ring of preallocated records, so that logging on the sensor thread costs a
+ * few field writes and never blocks.
+ * <p>
+ * Messages are formatted only when they are drained or dumped: "{}" in a message is replaced with
+ * the next argument. A background thread drains records to logcat in debug builds, and to
+ * Crashlytics if enabled. When logging outruns the drain, the oldest records are overwritten.
+ * {@link #flush()} drains right away, e.g. on shutdown.
+ * {@link #dump(int)} returns the last records, e.g. to attach to a bug report.
+ */
 public abstract class Logger {
 
-    private static final Date date = new Date();
     private final static String APP = "Pedometer";
+    static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+    private static final long DRAIN_DELAY_MILLIS = 200;
+    private static final long FLUSH_TIMEOUT_MILLIS = 1000;
+    private static final long WRITING = -1;
+    // Marks an argument held in Record#longs.
+    private static final Object LONG = new Object();
+
+    private static final Record[] records = new Record[CAPACITY];
+    private static final AtomicLong head = new AtomicLong();
+    private static final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private static volatile boolean drainToCrashlytics;
+    private static volatile String processName;
+    private static ScheduledThreadPoolExecutor drainer;
+    // Next record to drain, touched by the drain thread only.
+    private static long tail;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            records[i] = new Record();
+        }
+    }
+
+    private static final Runnable DRAIN = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            drain();
+        }
+    };
+
+    /**
+     * Also send records to Crashlytics, which has to be initialized by the app.
+     */
+    public static void setDrainToCrashlytics(boolean enabled) {
+        drainToCrashlytics = enabled;
+    }
+
+    public static void log(String msg) {
+        append(msg, 0, null, 0, null, 0);
+    }
+
+    public static void log(String msg, long arg) {
+        append(msg, 1, LONG, arg, null, 0);
+    }
+
+    public static void log(String msg, Object arg) {
+        append(msg, 1, arg, 0, null, 0);
+    }
+
+    public static void log(String msg, long arg0, long arg1) {
+        append(msg, 2, LONG, arg0, LONG, arg1);
+    }
+
+    public static void log(String msg, Object arg0, long arg1) {
+        append(msg, 2, arg0, 0, LONG, arg1);
+    }
 
     public static void log(Throwable ex) {
-        log(ex.getMessage());
-        for (StackTraceElement ste : ex.getStackTrace()) {
-            log(ste.toString());
+        // The stack trace is printed when drained.
+        append("{}", 1, ex, 0, null, 0);
+    }
+
+    private static void append(String msg, int argCount, Object object0, long long0, Object object1, long long1) {
+        long sequence = head.getAndIncrement();
+        Record record = records[(int) (sequence & MASK)];
+        record.sequence = WRITING;
+        record.timeMillis = System.currentTimeMillis();
+        record.thread = Thread.currentThread().getName();
+        record.message = msg;
+        record.argCount = argCount;
+        record.objects[0] = object0;
+        record.longs[0] = long0;
+        record.objects[1] = object1;
+        record.longs[1] = long1;
+        record.sequence = sequence;
+        if ((BuildConfig.DEBUG || drainToCrashlytics) && !drainScheduled.get() && drainScheduled.compareAndSet(false, true)) {
+            getDrainer().schedule(DRAIN, DRAIN_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getDrainer() {
+        if (drainer == null) {
+            drainer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StepSensorLib-logger");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return drainer;
+    }
+
+    /**
+     * Drain records now and wait for it, e.g. before the process may go away.
+     */
+    public static void flush() {
+        if (!BuildConfig.DEBUG && !drainToCrashlytics) {
+            return;
+        }
+        try {
+            // On the drain thread, which owns tail.
+            getDrainer().submit(DRAIN).get(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void drain() {
+        SimpleDateFormat format = newDateFormat();
+        long end = head.get();
+        if (end - tail > CAPACITY) {
+            tail = end - CAPACITY;
+        }
+        for (; tail < end; tail++) {
+            Record record = records[(int) (tail & MASK)];
+            String line = record.format(tail, format);
+            if (line == null) {
+                if (record.sequence < tail) {
+                    // Still being written, drain it next time.
+                    drainScheduled.set(true);
+                    getDrainer().schedule(DRAIN, DRAIN_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                // Overwritten by a newer record.
+                continue;
+            }
+            if (BuildConfig.DEBUG) {
+                android.util.Log.d(APP, line);
+            }
+            if (drainToCrashlytics) {
+                Crashlytics.log(line);
+            }
+        }
+    }
+
+    /**
+     * @return Up to maxRecords of the last records, oldest first, one per line.
+     */
+    public static String dump(int maxRecords) {
+        SimpleDateFormat format = newDateFormat();
+        long end = head.get();
+        long start = Math.max(0, end - Math.min(maxRecords, CAPACITY));
+        StringBuilder builder = new StringBuilder();
+        for (long sequence = start; sequence < end; sequence++) {
+            String line = records[(int) (sequence & MASK)].format(sequence, format);
+            if (line != null) {
+                builder.append(line).append('\n');
+            }
         }
+        return builder.toString();
     }
 
+    private static SimpleDateFormat newDateFormat() {
+        return new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+    }
 
     private static String stackToString(StackTraceElement[] stackTrace) {
-        String stack = "Finc-log Stacktrace:";
+        StringBuilder stack = new StringBuilder("Finc-log Stacktrace:");
         for (StackTraceElement stackTraceElement : stackTrace) {
-            stack += ",at " + (stackTraceElement.toString());
+            stack.append(",at ").append(stackTraceElement);
         }
-        return stack;
+        return stack.toString();
     }
 
     public static void logInCrashlytics(Context context){
@@ -57,13 +227,18 @@ public abstract class Logger {
 
 
     private static String getProcessName(Context context) {
+        // A process keeps its name, so look it up once.
+        if (processName != null) {
+            return processName;
+        }
         int pid = android.os.Process.myPid();
         ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
         List<ActivityManager.RunningAppProcessInfo> infos = manager.getRunningAppProcesses();
         if (infos != null) {
             for (ActivityManager.RunningAppProcessInfo processInfo : infos) {
                 if (processInfo.pid == pid) {
-                    return processInfo.processName;
+                    processName = processInfo.processName;
+                    return processName;
                 }
             }
         }
@@ -74,38 +249,75 @@ public abstract class Logger {
     public static void log(final Cursor c) {
         if (!BuildConfig.DEBUG) return;
         c.moveToFirst();
-        String title = "";
+        StringBuilder line = new StringBuilder();
         for (int i = 0; i < c.getColumnCount(); i++) {
-            title += c.getColumnName(i) + "\t| ";
+            line.append(c.getColumnName(i)).append("\t| ");
         }
-        log(title);
+        log(line.toString());
         while (!c.isAfterLast()) {
-            title = "";
+            line.setLength(0);
             for (int i = 0; i < c.getColumnCount(); i++) {
                 final int columnTitleLength = c.getColumnName(i).length();
-                int columnValueLength = c.getString(i).length();
-                int diffLength = columnTitleLength - columnValueLength > 0
-                        ? columnTitleLength - columnValueLength
-                        : 0;
-                String diff = "";
-                for (int diffCount = 0; diffCount < diffLength; diffCount++) {
-                    diff += " ";
+                String value = c.getString(i);
+                line.append(value);
+                for (int diffCount = value.length(); diffCount < columnTitleLength; diffCount++) {
+                    line.append(' ');
                 }
-                title += c.getString(i) + diff + "\t| ";
+                line.append("\t| ");
             }
-            log(title);
+            log(line.toString());
             c.moveToNext();
         }
     }
 
-    @SuppressWarnings("deprecation")
-    public static void log(String msg) {
-        if (!BuildConfig.DEBUG) return;
-        android.util.Log.d(APP, msg);
-        date.setTime(System.currentTimeMillis());
-    }
+    /**
+     * One log record, reused each time the ring wraps around. {@link #sequence} is written last, so a
+     * reader that sees the same sequence before and after reading the fields got a whole record.
+     */
+    private static final class Record {
+        volatile long sequence = WRITING;
+        long timeMillis;
+        String thread;
+        String message;
+        int argCount;
+        final Object[] objects = new Object[2];
+        final long[] longs = new long[2];
 
-    protected void finalize() throws Throwable {
-        super.finalize();
+        /**
+         * @return Formatted record, or null if it is not the record of sequence.
+         */
+        String format(long sequence, SimpleDateFormat format) {
+            if (this.sequence != sequence) {
+                return null;
+            }
+            StringBuilder builder = new StringBuilder();
+            builder.append(format.format(new Date(timeMillis))).append(' ').append(thread).append(": ");
+            String msg = message;
+            int arg = 0;
+            int from = 0;
+            if (msg != null) {
+                int index;
+                while (arg < argCount && (index = msg.indexOf("{}", from)) >= 0) {
+                    builder.append(msg, from, index);
+                    appendArg(builder, arg++);
+                    from = index + 2;
+                }
+                builder.append(msg, from, msg.length());
+            }
+            return this.sequence == sequence ? builder.toString() : null;
+        }
+
+        private void appendArg(StringBuilder builder, int arg) {
+            Object object = objects[arg];
+            if (object == LONG) {
+                builder.append(longs[arg]);
+            } else if (object instanceof Throwable) {
+                StringWriter writer = new StringWriter();
+                ((Throwable) object).printStackTrace(new PrintWriter(writer));
+                builder.append(writer);
+            } else {
+                builder.append(object);
+            }
+        }
     }
 }
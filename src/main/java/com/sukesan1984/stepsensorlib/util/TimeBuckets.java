@@ -0,0 +1,153 @@
+package com.sukesan1984.stepsensorlib.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.TimeZone;
+
+/**
+ * Computes hour, day and week buckets in local time with plain long arithmetic. Weeks start on
+ * Monday, as in ISO 8601.
+ * <p>
+ * Boundaries of the current hour and day are cached together with the time zone, and are only
+ * recomputed when the clock crosses the end of the current hour or goes back before its start.
+ * {@link #invalidate()} has to be called when the time zone or the clock is changed, so that the
+ * next call starts from fresh boundaries.
+ */
+public class TimeBuckets {
+    public static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+    public static final long DAY_IN_MILLIS = 24 * HOUR_IN_MILLIS;
+
+    private static final TimeBuckets defaultInstance = new TimeBuckets(Clock.SYSTEM, null);
+
+    private final Clock clock;
+    @Nullable
+    private final TimeZone fixedZone;
+    @Nullable
+    private volatile Boundaries boundaries;
+
+    public static TimeBuckets getDefault() {
+        return defaultInstance;
+    }
+
+    /**
+     * @param clock Source of current time.
+     * @param zone  Zone to bucket in, or null to follow the default zone of the device.
+     */
+    public TimeBuckets(@NonNull Clock clock, @Nullable TimeZone zone) {
+        this.clock = clock;
+        this.fixedZone = zone;
+    }
+
+    public long currentTimeMillis() {
+        return clock.currentTimeMillis();
+    }
+
+    /**
+     * @return Start of the current hour.
+     */
+    public long currentHour() {
+        return boundariesAt(clock.currentTimeMillis()).hourStart;
+    }
+
+    /**
+     * @return Start of the current day.
+     */
+    public long startOfToday() {
+        return boundariesAt(clock.currentTimeMillis()).dayStart;
+    }
+
+    /**
+     * @return Start of the hour which contains timeMillis.
+     */
+    public long hourOf(long timeMillis) {
+        Boundaries b = boundariesAt(clock.currentTimeMillis());
+        if (timeMillis >= b.hourStart && timeMillis < b.hourEnd) {
+            return b.hourStart;
+        }
+        return hourStart(b.zone, timeMillis);
+    }
+
+    /**
+     * @return Start of the day which contains timeMillis.
+     */
+    public long dayOf(long timeMillis) {
+        Boundaries b = boundariesAt(clock.currentTimeMillis());
+        if (timeMillis >= b.dayStart && timeMillis < b.dayEnd) {
+            return b.dayStart;
+        }
+        return dayStart(b.zone, timeMillis);
+    }
+
+    /**
+     * @return Start of the day after the day starting at dayStart.
+     */
+    public long nextDay(long dayStart) {
+        // Days are 23 to 25 hours long, so 26 hours after the start is always tomorrow.
+        return dayOf(dayStart + DAY_IN_MILLIS + 2 * HOUR_IN_MILLIS);
+    }
+
+    /**
+     * @return Start of the week which contains timeMillis.
+     */
+    public long weekOf(long timeMillis) {
+        TimeZone zone = boundariesAt(clock.currentTimeMillis()).zone;
+        long dayStart = dayOf(timeMillis);
+        long localDay = (dayStart + zone.getOffset(dayStart)) / DAY_IN_MILLIS;
+        // 1970-01-01 was a Thursday, 3 days after Monday.
+        long daysSinceMonday = floorMod(localDay + 3, 7);
+        // Land at noon, so that DST transitions in between do not move us to the wrong day.
+        return dayStart(zone, dayStart - daysSinceMonday * DAY_IN_MILLIS + 12 * HOUR_IN_MILLIS);
+    }
+
+    /**
+     * Drop cached boundaries, e.g. after time zone or clock change.
+     */
+    public void invalidate() {
+        boundaries = null;
+    }
+
+    private Boundaries boundariesAt(long now) {
+        Boundaries b = boundaries;
+        if (b == null || now < b.hourStart || now >= b.hourEnd) {
+            TimeZone zone = b != null ? b.zone : (fixedZone != null ? fixedZone : TimeZone.getDefault());
+            b = new Boundaries(zone, now);
+            boundaries = b;
+        }
+        return b;
+    }
+
+    private static long hourStart(TimeZone zone, long timeMillis) {
+        return timeMillis - floorMod(timeMillis + zone.getOffset(timeMillis), HOUR_IN_MILLIS);
+    }
+
+    private static long dayStart(TimeZone zone, long timeMillis) {
+        long localTime = timeMillis + zone.getOffset(timeMillis);
+        long localMidnight = localTime - floorMod(localTime, DAY_IN_MILLIS);
+        // The offset at midnight differs from now's on days with a DST transition.
+        long dayStart = localMidnight - zone.getOffset(localMidnight - zone.getOffset(timeMillis));
+        return localMidnight - zone.getOffset(dayStart);
+    }
+
+    private static long floorMod(long x, long y) {
+        long mod = x % y;
+        return mod < 0 ? mod + y : mod;
+    }
+
+    private static final class Boundaries {
+        final TimeZone zone;
+        final long hourStart;
+        final long hourEnd;
+        final long dayStart;
+        final long dayEnd;
+
+        Boundaries(TimeZone zone, long now) {
+            this.zone = zone;
+            this.hourStart = hourStart(zone, now);
+            this.hourEnd = hourStart(zone, hourStart + HOUR_IN_MILLIS);
+            this.dayStart = dayStart(zone, now);
+            // Days are 23 to 25 hours long, so 26 hours after the start is always tomorrow.
+            this.dayEnd = dayStart(zone, dayStart + DAY_IN_MILLIS + 2 * HOUR_IN_MILLIS);
+        }
+    }
+}
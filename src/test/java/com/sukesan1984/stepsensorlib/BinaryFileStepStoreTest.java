@@ -0,0 +1,101 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCountPage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class BinaryFileStepStoreTest extends StepStoreConformanceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Override
+    StepStore createStore() throws Exception {
+        file = new File(folder.getRoot(), BinaryFileStepStore.FILE_NAME);
+        return new BinaryFileStepStore(file);
+    }
+
+    @Test
+    public void reopen_keepsRowsAndSyncState() throws Exception {
+        store.addSteps(START, 3);
+        store.addSteps(START + HOUR, 4);
+        long token = store.getSyncToken();
+        store.markRecorded(new long[]{START}, token);
+        store.foldJournal(9, new long[]{START + 2 * HOUR}, new int[]{5}, 1);
+
+        StepStore reopened = new BinaryFileStepStore(file);
+        assertEquals(12, reopened.getSteps(START, START + 2 * HOUR));
+        assertEquals(9, reopened.getFoldedJournalGeneration());
+        assertEquals(store.getSyncToken(), reopened.getSyncToken());
+        ChunkStepCountPage page = new ChunkStepCountPage(10);
+        assertTrue(reopened.getChunkStepCountPage(START, true, page));
+        assertEquals(2, page.size);
+        assertEquals(START + HOUR, page.unixTimeMillis[0]);
+    }
+
+    @Test
+    public void fileHasFixedSizeRows() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            store.addSteps(START + i * HOUR, 1);
+        }
+        assertEquals(32 + 10 * BinaryFileStepStore.ROW_SIZE, file.length());
+    }
+
+    @Test
+    public void hoursAddedOutOfOrder_areReadInOrderAfterReopen() throws Exception {
+        store.addSteps(START + 5 * HOUR, 5);
+        store.addSteps(START, 1);
+        store.addSteps(START + 3 * HOUR, 3);
+        store.addSteps(START, 1);
+
+        StepStore reopened = new BinaryFileStepStore(file);
+        assertEquals(32 + 3 * BinaryFileStepStore.ROW_SIZE, file.length());
+        assertEquals(2, reopened.getSteps(START, START));
+        assertEquals(3, reopened.getSteps(START + HOUR, START + 4 * HOUR));
+        ChunkStepCountPage page = new ChunkStepCountPage(10);
+        assertTrue(reopened.getChunkStepCountPage(START + HOUR, true, page));
+        assertEquals(START + 3 * HOUR, page.unixTimeMillis[0]);
+        assertEquals(START + 5 * HOUR, page.unixTimeMillis[1]);
+    }
+
+    @Test
+    public void brokenFile_isKeptAside() throws Exception {
+        store.addSteps(START, 3);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        StepStore reopened = new BinaryFileStepStore(file);
+        assertEquals(0, reopened.getSteps(START, START));
+        reopened.addSteps(START, 4);
+        assertEquals(4, reopened.getSteps(START, START));
+        int broken = 0;
+        for (File f : folder.getRoot().listFiles()) {
+            if (f.getName().startsWith(BinaryFileStepStore.FILE_NAME + ".broken-")) {
+                assertEquals(3, f.length());
+                broken++;
+            }
+        }
+        assertEquals(1, broken);
+    }
+
+    @Test
+    public void manyHours_surviveRewriteInOrder() throws Exception {
+        for (int i = 999; i >= 0; i--) {
+            store.addSteps(START + i * HOUR, i);
+        }
+
+        StepStore reopened = new BinaryFileStepStore(file);
+        assertEquals(32 + 1000 * BinaryFileStepStore.ROW_SIZE, file.length());
+        assertEquals(999 * 1000 / 2, reopened.getSteps(START, START + 999 * HOUR));
+        assertEquals(500, reopened.getSteps(START + 500 * HOUR, START + 500 * HOUR));
+    }
+}
@@ -0,0 +1,109 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Bulk paths of {@link Database} over histories of 1 day, 1 year and 5 years of hourly rows, on the
+ * SQLite of Robolectric.
+ * <p>
+ * Not a JMH benchmark: Robolectric binds a connection to the thread which opened it and loads the
+ * class in a sandbox of its own, where JMH runs benchmarks in threads and JVMs of its own. Calls are
+ * timed here instead, after a warm up. Skipped unless asked for, with
+ * {@code ./gradlew testDebugUnitTest --tests '*DatabaseBenchmark' -PdatabaseBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DatabaseBenchmark {
+    // 2017-06-01T00:00:00Z
+    private static final long NOW = 1496275200000L;
+    private static final int[] HISTORY_HOURS = {24, 8760, 43800};
+    private static final long WARMUP_MILLIS = 2000;
+    private static final long MEASUREMENT_MILLIS = 5000;
+
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean("stepsensorlib.benchmark"));
+        database = new Database(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (database != null) {
+            database.close();
+        }
+    }
+
+    @Test
+    public void bulkPaths() throws Exception {
+        for (int hours : HISTORY_HOURS) {
+            database.deleteAll();
+            final long firstHour = NOW - hours * TimeBuckets.HOUR_IN_MILLIS;
+            final List<ChunkStepCount> server = new ArrayList<>(hours);
+            for (int i = 0; i < hours; i++) {
+                server.add(new ChunkStepCount(firstHour + i * TimeBuckets.HOUR_IN_MILLIS, 100 + i % 500));
+            }
+            // Restore a history from server, as after reinstalling the app.
+            database.increaseByServerChunkStepCounts(server, null);
+
+            // Merge of the whole history again, every row hits an existing one.
+            report("increaseByServerChunkStepCounts", hours, time(new Runnable() {
+                @Override
+                public void run() {
+                    database.increaseByServerChunkStepCounts(server, null);
+                }
+            }));
+            report("getChunkStepsSince", hours, time(new Runnable() {
+                @Override
+                public void run() {
+                    database.getChunkStepsSince(firstHour);
+                }
+            }));
+            report("getSteps of whole history", hours, time(new Runnable() {
+                @Override
+                public void run() {
+                    database.getSteps(firstHour, NOW);
+                }
+            }));
+        }
+    }
+
+    /**
+     * @return average nanoseconds per call.
+     */
+    private static double time(Runnable call) {
+        runFor(call, WARMUP_MILLIS);
+        long start = System.nanoTime();
+        int calls = runFor(call, MEASUREMENT_MILLIS);
+        return (double) (System.nanoTime() - start) / calls;
+    }
+
+    private static int runFor(Runnable call, long millis) {
+        long end = System.nanoTime() + millis * 1000000;
+        int calls = 0;
+        do {
+            call.run();
+            calls++;
+        } while (System.nanoTime() < end);
+        return calls;
+    }
+
+    private static void report(String name, int hours, double nanosPerCall) {
+        System.out.printf("%-32s %6d hours %12.3f ms/op%n", name, hours, nanosPerCall / 1000000);
+    }
+}
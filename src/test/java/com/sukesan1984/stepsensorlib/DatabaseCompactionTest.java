@@ -0,0 +1,186 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.database.DatabaseUtils;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.model.ChunkStepCountPage;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DatabaseCompactionTest {
+    private static final long HOUR = TimeBuckets.HOUR_IN_MILLIS;
+    private static final long DAY = TimeBuckets.DAY_IN_MILLIS;
+    // 2017-06-01T00:00:00Z
+    private static final long START = 1496275200000L;
+
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        database = new Database(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Test
+    public void compact_deletesOldRecordedHoursAndKeepsRollups() throws Exception {
+        long now = START + 200 * DAY;
+        List<ChunkStepCount> server = serverHours(START, 48);
+        database.increaseByServerChunkStepCounts(server, null);
+        database.addSteps(START + 50 * HOUR, 5);
+        database.addSteps(now - HOUR, 7);
+        List<ChunkStepCount> daily = database.getDailySteps(START, now);
+        List<ChunkStepCount> weekly = database.getWeeklySteps(START, now);
+        long token = database.getSyncToken();
+
+        assertEquals(48, database.compact(now, 90 * DAY, Long.MAX_VALUE));
+
+        assertEquals(0, database.getSteps(START));
+        assertEquals(5, database.getSteps(START + 50 * HOUR));
+        assertSameSeries(daily, database.getDailySteps(START, now));
+        assertSameSeries(weekly, database.getWeeklySteps(START, now));
+        assertEquals(token, database.getSyncToken());
+        ChunkStepCountPage page = new ChunkStepCountPage(10);
+        assertTrue(database.getChunkStepCountPage(START, true, page));
+        assertEquals(2, page.size);
+
+        // Neither merging compacted hours again nor a rebuild counts them twice.
+        database.increaseByServerChunkStepCounts(server, null);
+        assertSameSeries(daily, database.getDailySteps(START, now));
+        database.rebuildRollups();
+        assertSameSeries(daily, database.getDailySteps(START, now));
+        assertSameSeries(weekly, database.getWeeklySteps(START, now));
+    }
+
+    @Test
+    public void merge_addsWhatServerHasBeyondCompactedHours() throws Exception {
+        long now = START + 200 * DAY;
+        database.increaseByServerChunkStepCounts(serverHours(START, 48), null);
+        database.addSteps(START + HOUR, 4);
+        database.markRecorded(new long[]{START + HOUR}, database.getSyncToken());
+        assertEquals(48, database.compact(now, 90 * DAY, Long.MAX_VALUE));
+        int week = database.getWeeklySteps(START, START).get(0).steps;
+
+        // More steps from another device, one hour the server alone has, and one it has fewer of.
+        List<ChunkStepCount> server = new ArrayList<>();
+        server.add(new ChunkStepCount(START, 10));
+        server.add(new ChunkStepCount(START + HOUR, 3));
+        server.add(new ChunkStepCount(START + 60 * HOUR, 6));
+        database.increaseByServerChunkStepCounts(server, null);
+
+        assertEquals(week + 9 + 6, database.getWeeklySteps(START, START).get(0).steps);
+        assertEquals(10 + 5 + 22, database.getDailySteps(START, START).get(0).steps);
+        assertEquals(0, database.getSteps(START));
+
+        // Merging again adds nothing.
+        database.increaseByServerChunkStepCounts(server, null);
+        assertEquals(week + 9 + 6, database.getWeeklySteps(START, START).get(0).steps);
+    }
+
+    @Test
+    public void compact_keepsHoursWithinRetention() throws Exception {
+        long now = START + 10 * DAY;
+        database.increaseByServerChunkStepCounts(serverHours(START, 48), null);
+
+        assertEquals(0, database.compact(now, 90 * DAY, Long.MAX_VALUE));
+        assertEquals(48, database.getSteps(START, START + 48 * HOUR));
+    }
+
+    @Test
+    public void compact_compactsRecentWeeksOverSizeCap() throws Exception {
+        long now = START + 200 * DAY;
+        database.increaseByServerChunkStepCounts(serverHours(START, 4000), null);
+        database.addSteps(START + HOUR, 1);
+        long pagesBefore = pragma("page_count");
+
+        int deleted = database.compact(now, 3650 * DAY, 1);
+
+        // All but the hour which is not recorded on server.
+        assertEquals(3999, deleted);
+        assertEquals(2, database.getSteps(START + HOUR));
+        assertEquals(2, pragma("auto_vacuum"));
+        assertTrue(pragma("page_count") < pagesBefore);
+    }
+
+    @Test
+    public void compact_leavesLargeDatabaseWithoutIncrementalVacuumAsItIs() throws Exception {
+        database.getWritableDatabase().execSQL("PRAGMA auto_vacuum = NONE");
+        database.getWritableDatabase().execSQL("VACUUM");
+        database.increaseByServerChunkStepCounts(serverHours(START, 20000), null);
+        database.close();
+        database = new Database(RuntimeEnvironment.application);
+        long pagesBefore = pragma("page_count");
+
+        assertTrue(database.compact(START + 1000 * DAY, 90 * DAY, Long.MAX_VALUE) > 0);
+
+        // Not rebuilt, freed pages stay in the file for later writes.
+        assertEquals(0, pragma("auto_vacuum"));
+        assertTrue(pragma("page_count") >= pagesBefore);
+        assertTrue(pragma("freelist_count") > 0);
+    }
+
+    @Test
+    public void compact_keepsWriteAheadLogSmall() throws Exception {
+        assertEquals("wal", DatabaseUtils.stringForQuery(database.getReadableDatabase(),
+                "PRAGMA journal_mode", null).toLowerCase());
+        assertEquals(1, pragma("synchronous"));
+        database.increaseByServerChunkStepCounts(serverHours(START, 1000), null);
+        File log = new File(database.getReadableDatabase().getPath() + "-wal");
+        assertTrue(log.length() > 0);
+
+        database.compact(START + 200 * DAY, 90 * DAY, Long.MAX_VALUE);
+        // Emptied from SQLite 3.8.8. Before, the next write starts the log over at the size limit.
+        database.addSteps(START + 200 * DAY, 1);
+        assertTrue(log.length() <= 256 * 1024);
+    }
+
+    @Test
+    public void deleteAll_allowsRestoringCompactedHours() throws Exception {
+        long now = START + 200 * DAY;
+        List<ChunkStepCount> server = serverHours(START, 24);
+        database.increaseByServerChunkStepCounts(server, null);
+        database.compact(now, 90 * DAY, Long.MAX_VALUE);
+        database.deleteAll();
+
+        database.increaseByServerChunkStepCounts(server, null);
+        assertEquals(24, database.getSteps(START, START + 23 * HOUR));
+    }
+
+    private static List<ChunkStepCount> serverHours(long start, int hours) {
+        List<ChunkStepCount> list = new ArrayList<>();
+        for (int i = 0; i < hours; i++) {
+            list.add(new ChunkStepCount(start + i * HOUR, 1));
+        }
+        return list;
+    }
+
+    private long pragma(String name) {
+        return DatabaseUtils.longForQuery(database.getReadableDatabase(), "PRAGMA " + name, null);
+    }
+
+    private static void assertSameSeries(List<ChunkStepCount> expected, List<ChunkStepCount> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).unixTimeMillis, actual.get(i).unixTimeMillis);
+            assertEquals(expected.get(i).steps, actual.get(i).steps);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCountPage;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DatabaseMigrationTest {
+    private static final long HOUR = TimeBuckets.HOUR_IN_MILLIS;
+    // 2017-06-01T00:00:00Z
+    private static final long START = 1496275200000L;
+    private static final int ROWS = 1200;
+
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        // Hourly rows as version 5 kept them, every one recorded on server but the second.
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                RuntimeEnvironment.application.getDatabasePath(Database.DATABASE_NAME), null);
+        db.execSQL("CREATE TABLE steps (date_and_hour INTEGER UNIQUE, steps INTEGER, " +
+                "is_recorded_on_server INTEGER default 0, last_updated INTEGER, " +
+                "change_seq INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX steps_change_seq ON steps (change_seq)");
+        db.execSQL(Database.SQL_CREATE_META_TABLE);
+        db.execSQL(Database.SQL_CREATE_DAILY_TABLE);
+        db.execSQL(Database.SQL_CREATE_WEEKLY_TABLE);
+        db.beginTransaction();
+        for (int i = 0; i < ROWS; i++) {
+            db.execSQL("INSERT INTO steps VALUES (?, ?, ?, 0, ?)",
+                    new Object[]{START + i * HOUR, i + 1, i == 1 ? 0 : 1, i + 1});
+        }
+        db.setTransactionSuccessful();
+        db.endTransaction();
+        db.setVersion(5);
+        db.close();
+
+        database = new Database(RuntimeEnvironment.application, new Executor() {
+            @Override
+            public void execute(@NonNull Runnable task) {
+                scheduled.add(task);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Test
+    public void upgrade_copiesRowsInChunksAfterOpening() throws Exception {
+        // Opening only creates the new table, rows stay readable from the old one meanwhile.
+        assertEquals(2, database.getSteps(START + HOUR));
+        assertEquals(1, scheduled.size());
+        assertEquals(0, count("hourly_steps"));
+        long token = database.getSyncToken();
+
+        assertTrue(database.migrateStep());
+        assertEquals(500, count("hourly_steps"));
+        // Written and marked while copying.
+        database.addSteps(START, 10);
+        database.addSteps(START + ROWS * HOUR, 7);
+        assertEquals(1, database.markRecorded(new long[]{START + HOUR}, token));
+        long tokenAfterWrites = database.getSyncToken();
+
+        int steps = 1;
+        while (database.migrateStep()) {
+            steps++;
+        }
+        // Three chunks, the switch and the drop.
+        assertEquals(5, steps);
+        assertEquals(0, count("sqlite_master WHERE name = 'steps'"));
+        assertEquals(ROWS + 1, count("hourly_steps"));
+
+        assertEquals(11, database.getSteps(START));
+        assertEquals(7, database.getSteps(START + ROWS * HOUR));
+        assertEquals(ROWS, database.getSteps(START + (ROWS - 1) * HOUR));
+        assertEquals(1 + 10 + 2 + 3, database.getSteps(START, START + 2 * HOUR));
+        assertEquals(tokenAfterWrites, database.getSyncToken());
+        ChunkStepCountPage page = new ChunkStepCountPage(10);
+        assertTrue(database.getChunkStepCountPage(START, true, page));
+        assertEquals(2, page.size);
+        assertEquals(START, page.unixTimeMillis[0]);
+        assertEquals(START + ROWS * HOUR, page.unixTimeMillis[1]);
+
+        // Writes go to the new table.
+        database.addSteps(START + HOUR, 1);
+        assertEquals(3, database.getSteps(START + HOUR));
+    }
+
+    @Test
+    public void hourTable_keysAreExactForHalfHourZones() throws Exception {
+        Database.HourTable hours = Database.HOURS;
+        long halfPast = START + HOUR / 2;
+        assertEquals(halfPast, hours.dateAndHourOf(hours.keyOf(halfPast)));
+        assertEquals(hours.keyOf(halfPast), hours.firstKeyFrom(halfPast));
+        assertEquals(hours.keyOf(halfPast) + 1, hours.firstKeyFrom(halfPast + 1));
+        assertEquals(hours.keyOf(halfPast), hours.keyOf(halfPast + 1));
+        assertEquals(-1, hours.keyOf(-1));
+    }
+
+    private long count(String from) {
+        return DatabaseUtils.longForQuery(database.getReadableDatabase(), "SELECT COUNT(*) FROM " + from, null);
+    }
+}
@@ -0,0 +1,21 @@
+package com.sukesan1984.stepsensorlib;
+
+import org.junit.After;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DatabaseStepStoreTest extends StepStoreConformanceTest {
+    @Override
+    StepStore createStore() throws Exception {
+        return new Database(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ((Database) store).close();
+    }
+}
@@ -0,0 +1,97 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.FlushDecision;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FlushSchedulerTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long START = 1496275200000L;
+
+    @Test
+    public void onWakeUp_backsOffWhileIdle() throws Exception {
+        FlushScheduler scheduler = new FlushScheduler();
+        long now = START;
+        long previousInterval = 0;
+        for (int i = 0; i < 10; i++) {
+            FlushDecision decision = scheduler.onWakeUp(now, 0);
+            assertFalse(decision.saveNow);
+            assertTrue(decision.rearmsAlarm());
+            assertTrue(decision.intervalMillis >= previousInterval);
+            assertEquals(now + decision.intervalMillis, decision.nextFlushAt);
+            previousInterval = decision.intervalMillis;
+            now = decision.nextFlushAt;
+        }
+        assertEquals(FlushScheduler.MAX_INTERVAL_MILLIS, previousInterval);
+    }
+
+    @Test
+    public void onWakeUp_tightensWhenWalking() throws Exception {
+        FlushScheduler scheduler = new FlushScheduler();
+        long now = START;
+        for (int i = 0; i < 10; i++) {
+            now = scheduler.onWakeUp(now, 0).nextFlushAt;
+        }
+        FlushDecision decision = scheduler.onWakeUp(now, 3000);
+        assertTrue(decision.saveNow);
+        assertEquals("walking", decision.reason);
+        assertEquals(FlushScheduler.MIN_INTERVAL_MILLIS, decision.intervalMillis);
+    }
+
+    @Test
+    public void onWakeUp_keepsPendingAlarmWhenStartedEarly() throws Exception {
+        FlushScheduler scheduler = new FlushScheduler();
+        FlushDecision first = scheduler.onWakeUp(START, 0);
+        FlushDecision second = scheduler.onWakeUp(START + 1000, 0);
+        assertTrue(first.rearmsAlarm());
+        // The new interval ends later than the pending alarm, which is kept.
+        assertFalse(second.rearmsAlarm());
+    }
+
+    @Test
+    public void onSensorDelivery_bringsIdleAlarmForwardOnce() throws Exception {
+        FlushScheduler scheduler = new FlushScheduler();
+        long now = START;
+        for (int i = 0; i < 10; i++) {
+            now = scheduler.onWakeUp(now, 0).nextFlushAt;
+        }
+        scheduler.onWakeUp(now, 0);
+        // Alarm is armed an hour ahead. Walking starts.
+        FlushDecision decision = scheduler.onSensorDelivery(now + MINUTE, 40);
+        assertNotNull(decision);
+        assertTrue(decision.saveNow);
+        assertEquals(now + 2 * MINUTE, decision.nextFlushAt);
+
+        // Next delivery within the interval does nothing.
+        assertNull(scheduler.onSensorDelivery(now + MINUTE + 10 * 1000, 10));
+
+        // A minute later the delivery saves, riding on the wake up of the sensor.
+        decision = scheduler.onSensorDelivery(now + 2 * MINUTE, 100);
+        assertNotNull(decision);
+        assertTrue(decision.saveNow);
+        assertFalse(decision.rearmsAlarm());
+    }
+
+    @Test
+    public void onSensorDelivery_ignoresEventsWithoutUnsavedSteps() throws Exception {
+        FlushScheduler scheduler = new FlushScheduler();
+        scheduler.onWakeUp(START, 0);
+        assertNull(scheduler.onSensorDelivery(START + 10 * MINUTE, 0));
+    }
+
+    @Test
+    public void getRecentDecisions_keepsLatestInOrder() throws Exception {
+        FlushScheduler scheduler = new FlushScheduler();
+        for (int i = 0; i < FlushScheduler.HISTORY_SIZE + 5; i++) {
+            scheduler.onWakeUp(START + i * MINUTE, i);
+        }
+        List<FlushDecision> decisions = scheduler.getRecentDecisions();
+        assertEquals(FlushScheduler.HISTORY_SIZE, decisions.size());
+        assertEquals(5, decisions.get(0).unsavedSteps);
+        assertEquals(FlushScheduler.HISTORY_SIZE + 4, decisions.get(decisions.size() - 1).unsavedSteps);
+    }
+}
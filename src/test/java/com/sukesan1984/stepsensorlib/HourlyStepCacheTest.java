@@ -0,0 +1,61 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class HourlyStepCacheTest {
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long NOW = 400000 * HOUR;
+
+    @Test
+    public void getSteps_missesUntilLoaded() throws Exception {
+        HourlyStepCache cache = new HourlyStepCache();
+        assertEquals(HourlyStepCache.MISS, cache.getSteps(NOW));
+        cache.add(NOW, 10);
+        assertEquals(HourlyStepCache.MISS, cache.getSteps(NOW - HOUR, NOW));
+    }
+
+    @Test
+    public void load_combinesSavedRowsAndJournal() throws Exception {
+        HourlyStepCache cache = new HourlyStepCache();
+        cache.load(NOW - 10 * HOUR, NOW,
+                Arrays.asList(new ChunkStepCount(NOW - 2 * HOUR, 5), new ChunkStepCount(NOW, 7)),
+                new long[]{NOW}, new int[]{3}, 1);
+
+        assertEquals(0, cache.getSteps(NOW - HOUR));
+        assertEquals(10, cache.getSteps(NOW));
+        assertEquals(15, cache.getSteps(NOW - 10 * HOUR, NOW));
+        assertEquals(HourlyStepCache.MISS, cache.getSteps(NOW - 11 * HOUR, NOW));
+    }
+
+    @Test
+    public void add_advancesWindowAndClearsReusedSlots() throws Exception {
+        HourlyStepCache cache = new HourlyStepCache();
+        cache.load(NOW - HOUR, NOW, Collections.singletonList(new ChunkStepCount(NOW, 7)),
+                new long[0], new int[0], 0);
+
+        long later = NOW + (HourlyStepCache.DAYS * 24 + 1) * HOUR;
+        cache.add(later, 4);
+        assertEquals(4, cache.getSteps(later));
+        assertEquals(0, cache.getSteps(later - HOUR));
+        assertEquals(HourlyStepCache.MISS, cache.getSteps(NOW));
+    }
+
+    @Test
+    public void mergeMax_keepsLargerValue() throws Exception {
+        HourlyStepCache cache = new HourlyStepCache();
+        cache.load(NOW - HOUR, NOW, Collections.singletonList(new ChunkStepCount(NOW, 7)),
+                new long[0], new int[0], 0);
+
+        cache.mergeMax(NOW, 5);
+        assertEquals(7, cache.getSteps(NOW));
+        cache.mergeMax(NOW, 9);
+        assertEquals(9, cache.getSteps(NOW));
+    }
+}
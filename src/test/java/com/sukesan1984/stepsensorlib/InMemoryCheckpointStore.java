@@ -0,0 +1,30 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Checkpoint store keeping the last checkpoint in a field, for tests.
+ */
+class InMemoryCheckpointStore implements StepCheckpoint.Store {
+    @Nullable
+    volatile StepCheckpoint checkpoint;
+    volatile int writes;
+
+    @Override
+    public void write(@NonNull StepCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        writes++;
+    }
+
+    @Nullable
+    @Override
+    public StepCheckpoint read() {
+        return checkpoint;
+    }
+
+    @Override
+    public void clear() {
+        checkpoint = null;
+    }
+}
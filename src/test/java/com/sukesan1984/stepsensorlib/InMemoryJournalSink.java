@@ -0,0 +1,48 @@
+package com.sukesan1984.stepsensorlib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Journal sink keeping folded steps in a map, for tests.
+ */
+class InMemoryJournalSink implements StepJournal.Sink {
+    final Map<Long, Integer> table = new HashMap<>();
+    long foldedGeneration;
+    int folds;
+    boolean failNextFold;
+    long lastFailedGeneration;
+
+    @Override
+    public synchronized long getFoldedJournalGeneration() {
+        return foldedGeneration;
+    }
+
+    @Override
+    public synchronized boolean foldJournal(long generation, long[] dateAndHours, int[] steps, int size) {
+        if (failNextFold) {
+            failNextFold = false;
+            lastFailedGeneration = generation;
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            table.put(dateAndHours[i], steps(dateAndHours[i]) + steps[i]);
+        }
+        foldedGeneration = generation;
+        folds++;
+        return true;
+    }
+
+    synchronized int steps(long dateAndHour) {
+        Integer steps = table.get(dateAndHour);
+        return steps == null ? 0 : steps;
+    }
+
+    synchronized int totalSteps() {
+        int sum = 0;
+        for (int steps : table.values()) {
+            sum += steps;
+        }
+        return sum;
+    }
+}
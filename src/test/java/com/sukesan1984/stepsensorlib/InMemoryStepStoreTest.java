@@ -0,0 +1,8 @@
+package com.sukesan1984.stepsensorlib;
+
+public class InMemoryStepStoreTest extends StepStoreConformanceTest {
+    @Override
+    StepStore createStore() throws Exception {
+        return new InMemoryStepStore();
+    }
+}
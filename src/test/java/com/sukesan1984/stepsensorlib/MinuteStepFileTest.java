@@ -0,0 +1,116 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.util.Clock;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class MinuteStepFileTest {
+    // 2017-06-01T00:00:00Z
+    private static final long START = 1496275200000L;
+    private static final long MINUTE = MinuteStepBuffer.MINUTE_IN_MILLIS;
+    private static final long HOUR = TimeBuckets.HOUR_IN_MILLIS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), MinuteStepFile.FILE_NAME);
+    }
+
+    @Test
+    public void add_accumulatesMinutesAcrossSavesAndReopen() throws Exception {
+        MinuteStepFile minutes = new MinuteStepFile(file);
+        assertTrue(minutes.add(new long[]{START + 5 * MINUTE, START + HOUR, START + 5 * MINUTE},
+                new int[]{10, 7, 2}, 3));
+        assertTrue(minutes.add(new long[]{START + 5 * MINUTE}, new int[]{3}, 1));
+        assertEquals(2 * MinuteStepFile.RECORD_SIZE, file.length());
+
+        List<ChunkStepCount> list = new MinuteStepFile(file).getMinuteSteps(START, Long.MAX_VALUE);
+        assertEquals(2, list.size());
+        assertEquals(START + 5 * MINUTE, list.get(0).unixTimeMillis);
+        assertEquals(15, list.get(0).steps);
+        assertEquals(START + HOUR, list.get(1).unixTimeMillis);
+        assertEquals(7, list.get(1).steps);
+
+        assertEquals(1, minutes.getMinuteSteps(START + 6 * MINUTE, START + HOUR).size());
+    }
+
+    @Test
+    public void deleteBefore_removesWholeHoursOnly() throws Exception {
+        MinuteStepFile minutes = new MinuteStepFile(file);
+        minutes.add(new long[]{START, START + HOUR + MINUTE, START + 2 * HOUR}, new int[]{1, 2, 3}, 3);
+
+        assertEquals(1, minutes.deleteBefore(START + HOUR + 30 * MINUTE));
+        List<ChunkStepCount> list = minutes.getMinuteSteps(0, Long.MAX_VALUE);
+        assertEquals(2, list.size());
+        assertEquals(START + HOUR + MINUTE, list.get(0).unixTimeMillis);
+
+        // The index follows the rewritten file.
+        minutes.add(new long[]{START + 2 * HOUR}, new int[]{4}, 1);
+        assertEquals(7, minutes.getMinuteSteps(START + 2 * HOUR, START + 2 * HOUR).get(0).steps);
+        assertEquals(2 * MinuteStepFile.RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void buffer_drainsEachMinuteOnce() throws Exception {
+        MinuteStepBuffer buffer = new MinuteStepBuffer();
+        buffer.add(START + 10, 3);
+        buffer.add(START + MINUTE - 1, 4);
+        buffer.add(START + MINUTE, 5);
+
+        long[] minuteStarts = new long[MinuteStepBuffer.SLOTS];
+        int[] steps = new int[MinuteStepBuffer.SLOTS];
+        assertEquals(2, buffer.drain(minuteStarts, steps));
+        assertEquals(START, minuteStarts[0]);
+        assertEquals(7, steps[0]);
+        assertEquals(START + MINUTE, minuteStarts[1]);
+        assertEquals(5, steps[1]);
+        assertEquals(0, buffer.drain(minuteStarts, steps));
+    }
+
+    @Test
+    public void coordinator_countsMinutesWhenEnabled() throws Exception {
+        final AtomicLong now = new AtomicLong(START);
+        TimeBuckets timeBuckets = new TimeBuckets(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return now.get();
+            }
+        }, TimeZone.getTimeZone("UTC"));
+        HourlyStepCache cache = new HourlyStepCache();
+        cache.load(START, START, Collections.<ChunkStepCount>emptyList(), new long[0], new int[0], 0);
+        StepJournal journal = new StepJournal(new File(folder.getRoot(), "steps.journal"), new InMemoryJournalSink());
+        StepCountCoordinator coordinator = new StepCountCoordinator(timeBuckets, journal, cache,
+                new InMemoryCheckpointStore());
+        coordinator.setMinuteStepFile(new MinuteStepFile(file));
+
+        coordinator.onStepCounterEvent(null, 1000);
+        coordinator.onStepCounterEvent(null, 1020);
+        now.addAndGet(MINUTE);
+        coordinator.onStepCounterEvent(null, 1050);
+        coordinator.saveSteps(null);
+        coordinator.onStepCounterEvent(null, 1051);
+
+        List<ChunkStepCount> list = coordinator.getMinuteSteps(START, START + HOUR);
+        assertEquals(2, list.size());
+        assertEquals(20, list.get(0).steps);
+        assertEquals(31, list.get(1).steps);
+        assertEquals(51, coordinator.peekSteps(START));
+    }
+}
@@ -0,0 +1,146 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.util.Clock;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class StepCountCoordinatorBatchTest {
+    // 2017-06-01T00:00:00Z
+    private static final long START_OF_DAY = 1496275200000L;
+    private static final long MINUTE = MinuteStepBuffer.MINUTE_IN_MILLIS;
+    private static final long HOUR = TimeBuckets.HOUR_IN_MILLIS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(START_OF_DAY);
+    private TimeBuckets timeBuckets;
+
+    @Before
+    public void setUp() throws Exception {
+        timeBuckets = new TimeBuckets(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return now.get();
+            }
+        }, TimeZone.getTimeZone("UTC"));
+    }
+
+    private StepCountCoordinator newCoordinator(String name) {
+        HourlyStepCache cache = new HourlyStepCache();
+        cache.load(START_OF_DAY, START_OF_DAY, Collections.<ChunkStepCount>emptyList(), new long[0], new int[0], 0);
+        StepJournal journal = new StepJournal(new File(folder.getRoot(), name), new InMemoryJournalSink());
+        return new StepCountCoordinator(timeBuckets, journal, cache, new InMemoryCheckpointStore());
+    }
+
+    @Test
+    public void onStepCounterEvents_countsLikeSingleEvents() throws Exception {
+        // Includes a negative sample, an increment over the limit, a decrease and a repeat.
+        int[] counts = {1000, -1, 1010, 1010, 100000, 100020, 50, 70};
+        long[] timestamps = new long[counts.length];
+        Arrays.fill(timestamps, START_OF_DAY);
+        StepCountCoordinator single = newCoordinator("single.journal");
+        for (int count : counts) {
+            single.onStepCounterEvent(null, count);
+        }
+        StepCountCoordinator batch = newCoordinator("batch.journal");
+        batch.onStepCounterEvents(null, timestamps, counts, counts.length);
+
+        assertEquals(single.peekUnsavedSteps(), batch.peekUnsavedSteps());
+        assertEquals(50, batch.peekUnsavedSteps());
+        single.onStepCounterEvent(null, 75);
+        batch.onStepCounterEvent(null, 75);
+        assertEquals(55, batch.peekUnsavedSteps());
+        assertEquals(single.peekSteps(START_OF_DAY), batch.peekSteps(START_OF_DAY));
+    }
+
+    @Test
+    public void onStepCounterEvents_splitAcrossCallsAddsUp() throws Exception {
+        StepCountCoordinator coordinator = newCoordinator("steps.journal");
+        long[] timestamps = {START_OF_DAY, START_OF_DAY, START_OF_DAY};
+        coordinator.onStepCounterEvents(null, timestamps, new int[]{500, 510, 530}, 3);
+        coordinator.onStepCounterEvents(null, timestamps, new int[]{530, 540}, 2);
+        coordinator.onStepCounterEvents(null, timestamps, new int[0], 0);
+
+        assertEquals(40, coordinator.peekUnsavedSteps());
+        assertEquals(40, coordinator.peekTodaySteps());
+    }
+
+    @Test
+    public void onStepCounterEvents_attributesStepsToTheirTime() throws Exception {
+        StepCountCoordinator coordinator = newCoordinator("steps.journal");
+        // Walked in the first hour, delivered in the third.
+        now.set(START_OF_DAY + 2 * HOUR + 10 * MINUTE);
+        coordinator.onStepCounterEvents(null,
+                new long[]{START_OF_DAY + 10 * MINUTE, START_OF_DAY + 20 * MINUTE}, new int[]{100, 400}, 2);
+
+        assertEquals(300, coordinator.peekSteps(START_OF_DAY));
+        assertEquals(0, coordinator.peekSteps(START_OF_DAY + 2 * HOUR));
+    }
+
+    @Test
+    public void onStepCounterEvents_splitsIncrementAcrossHours() throws Exception {
+        StepCountCoordinator coordinator = newCoordinator("steps.journal");
+        now.set(START_OF_DAY + HOUR + 5 * MINUTE);
+        // 600 steps in the 10 minutes around the end of the first hour.
+        coordinator.onStepCounterEvents(null,
+                new long[]{START_OF_DAY + 55 * MINUTE, START_OF_DAY + HOUR + 5 * MINUTE}, new int[]{0, 600}, 2);
+
+        assertEquals(300, coordinator.peekSteps(START_OF_DAY));
+        assertEquals(300, coordinator.peekSteps(START_OF_DAY + HOUR));
+        assertEquals(600, coordinator.peekUnsavedSteps());
+    }
+
+    @Test
+    public void onStepCounterEvents_rejectsIncrementsFasterThanWalking() throws Exception {
+        StepCountCoordinator coordinator = newCoordinator("steps.journal");
+        now.set(START_OF_DAY + 10 * MINUTE);
+        // 3000 steps in 10 minutes pass, 3000 more within a minute do not.
+        coordinator.onStepCounterEvents(null, new long[]{START_OF_DAY, START_OF_DAY + 10 * MINUTE},
+                new int[]{0, 3000}, 2);
+        now.set(START_OF_DAY + 11 * MINUTE);
+        coordinator.onStepCounterEvents(null, new long[]{START_OF_DAY + 11 * MINUTE}, new int[]{6000}, 1);
+        coordinator.onStepCounterEvent(null, 6010);
+
+        assertEquals(3010, coordinator.peekUnsavedSteps());
+    }
+
+    @Test
+    public void batch_toWallClock() throws Exception {
+        StepEventBatch batch = new StepEventBatch();
+        batch.add(4000000000L, 10);
+        batch.add(5500000000L, 12);
+        batch.toWallClock(START_OF_DAY, 6000000000L);
+
+        assertEquals(START_OF_DAY - 2000, batch.timeMillis[0]);
+        assertEquals(START_OF_DAY - 500, batch.timeMillis[1]);
+    }
+
+    @Test
+    public void batch_dropsRepeatedCounts() throws Exception {
+        StepEventBatch batch = new StepEventBatch();
+        assertTrue(batch.add(1, 10));
+        assertFalse(batch.add(2, 10));
+        assertTrue(batch.add(3, 12));
+        assertTrue(batch.add(4, 10));
+
+        assertEquals(3, batch.size);
+        assertEquals(1, batch.timestamps[0]);
+        assertEquals(3, batch.timestamps[1]);
+        batch.clear();
+        assertEquals(0, batch.size);
+    }
+}
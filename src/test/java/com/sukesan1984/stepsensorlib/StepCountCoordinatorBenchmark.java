@@ -0,0 +1,114 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.util.Clock;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot paths of the coordinator: sensor events, reads of today's steps and saves into the journal,
+ * which folds into a {@link BinaryFileStepStore}. SQLite does not run under JMH, see
+ * {@link DatabaseBenchmark} for its paths.
+ * <p>
+ * Run with {@code ./gradlew benchmark -Pjmh='StepCountCoordinatorBenchmark -prof gc'} to see the
+ * allocation rate as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StepCountCoordinatorBenchmark {
+    // 2017-06-01T12:00:00Z
+    private static final long NOW = 1496318400000L;
+
+    private File directory;
+    private BinaryFileStepStore store;
+    private StepCountCoordinator coordinator;
+    private int stepsSinceBoot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = File.createTempFile("coordinator", "benchmark");
+        directory.delete();
+        directory.mkdirs();
+        TimeBuckets timeBuckets = new TimeBuckets(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return NOW;
+            }
+        }, TimeZone.getTimeZone("UTC"));
+        store = new BinaryFileStepStore(new File(directory, BinaryFileStepStore.FILE_NAME));
+        StepJournal journal = new StepJournal(new File(directory, "steps.journal"), store);
+        HourlyStepCache cache = new HourlyStepCache();
+        cache.load(timeBuckets.startOfToday(), timeBuckets.currentHour(),
+                Collections.<ChunkStepCount>emptyList(), new long[0], new int[0], 0);
+        coordinator = new StepCountCoordinator(timeBuckets, journal, cache, new InMemoryCheckpointStore());
+    }
+
+    @Setup(Level.Iteration)
+    public void startCounting() {
+        // Keep stepsSinceBoot far from overflowing however fast events are.
+        coordinator.flush(null);
+        coordinator.reset(null);
+        stepsSinceBoot = 0;
+        coordinator.onStepCounterEvent(null, stepsSinceBoot);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void onStepCounterEvent() {
+        coordinator.onStepCounterEvent(null, ++stepsSinceBoot);
+    }
+
+    @Benchmark
+    public int peekTodaySteps() {
+        return coordinator.peekTodaySteps();
+    }
+
+    /**
+     * One event and the save after it, as on every save alarm while walking.
+     */
+    @Benchmark
+    public void saveSteps() {
+        coordinator.onStepCounterEvent(null, ++stepsSinceBoot);
+        coordinator.saveSteps(null);
+    }
+
+    /**
+     * One event, the save and a fold of the journal into the store.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void flush() {
+        coordinator.onStepCounterEvent(null, ++stepsSinceBoot);
+        coordinator.flush(null);
+    }
+}
@@ -0,0 +1,155 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.util.Clock;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class StepCountCoordinatorRecoveryTest {
+    // 2017-06-01T00:00:00Z
+    private static final long START_OF_DAY = 1496275200000L;
+    private static final long HOUR = TimeBuckets.HOUR_IN_MILLIS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(START_OF_DAY);
+    private TimeBuckets timeBuckets;
+    private InMemoryJournalSink sink;
+    private InMemoryCheckpointStore store;
+    private StepJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        timeBuckets = new TimeBuckets(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return now.get();
+            }
+        }, TimeZone.getTimeZone("UTC"));
+        sink = new InMemoryJournalSink();
+        store = new InMemoryCheckpointStore();
+    }
+
+    /**
+     * A coordinator as in a new process: same journal file and checkpoint, nothing in memory.
+     */
+    private StepCountCoordinator newProcess() {
+        if (journal != null) {
+            // The old process died, releasing the file.
+            journal.close();
+        }
+        journal = new StepJournal(new File(folder.getRoot(), "steps.journal"), sink);
+        HourlyStepCache cache = new HourlyStepCache();
+        cache.load(START_OF_DAY, START_OF_DAY, Collections.<ChunkStepCount>emptyList(), new long[0], new int[0], 0);
+        return new StepCountCoordinator(timeBuckets, journal, cache, store);
+    }
+
+    @Test
+    public void recover_continuesFromLastEvent() throws Exception {
+        StepCountCoordinator before = newProcess();
+        before.onStepCounterEvent(null, 1000);
+        before.onStepCounterEvent(null, 1050);
+        before.checkpoint(null);
+
+        StepCountCoordinator after = newProcess();
+        assertTrue(after.recover(null, false));
+        after.onStepCounterEvent(null, 1080);
+        assertEquals(80, after.peekUnsavedSteps());
+    }
+
+    @Test
+    public void saveSteps_checkpointsSoSavedStepsAreNotCountedTwice() throws Exception {
+        StepCountCoordinator before = newProcess();
+        before.onStepCounterEvent(null, 1000);
+        before.onStepCounterEvent(null, 1050);
+        before.saveSteps(null);
+        before.onStepCounterEvent(null, 1060);
+
+        StepCountCoordinator after = newProcess();
+        assertTrue(after.recover(null, false));
+        after.onStepCounterEvent(null, 1070);
+        after.flush(null);
+        assertEquals(70, sink.steps(START_OF_DAY));
+    }
+
+    @Test
+    public void recover_countsFromZeroAfterReboot() throws Exception {
+        StepCountCoordinator before = newProcess();
+        before.onStepCounterEvent(null, 1000);
+        before.onStepCounterEvent(null, 1010);
+        before.checkpoint(null);
+
+        StepCountCoordinator after = newProcess();
+        assertTrue(after.recover(null, true));
+        after.onStepCounterEvent(null, 30);
+        assertEquals(40, after.peekUnsavedSteps());
+    }
+
+    @Test
+    public void recover_takesDropOfCounterAsReboot() throws Exception {
+        StepCountCoordinator before = newProcess();
+        before.onStepCounterEvent(null, 1000);
+        before.onStepCounterEvent(null, 1010);
+        before.checkpoint(null);
+
+        StepCountCoordinator after = newProcess();
+        assertTrue(after.recover(null, false));
+        after.onStepCounterEvent(null, 30);
+        after.onStepCounterEvent(null, 20);
+        // Only the first event after recovery can tell a reboot, later drops are discarded as before.
+        assertEquals(40, after.peekUnsavedSteps());
+    }
+
+    @Test
+    public void recover_keepsEventsAlreadyCounted() throws Exception {
+        StepCountCoordinator before = newProcess();
+        before.onStepCounterEvent(null, 1000);
+        before.checkpoint(null);
+
+        StepCountCoordinator after = newProcess();
+        after.onStepCounterEvent(null, 2000);
+        assertFalse(after.recover(null, false));
+    }
+
+    @Test
+    public void isCheckpointDue_afterStepsOrNewHour() throws Exception {
+        StepCountCoordinator coordinator = newProcess();
+        coordinator.onStepCounterEvent(null, 1000);
+        assertTrue(coordinator.isCheckpointDue());
+        coordinator.checkpoint(null);
+        assertFalse(coordinator.isCheckpointDue());
+
+        coordinator.onStepCounterEvent(null, 1000 + StepCountCoordinator.CHECKPOINT_STEPS - 1);
+        assertFalse(coordinator.isCheckpointDue());
+        now.addAndGet(StepCountCoordinator.CHECKPOINT_INTERVAL_MILLIS);
+        assertTrue(coordinator.isCheckpointDue());
+        coordinator.checkpoint(null);
+
+        now.addAndGet(HOUR);
+        coordinator.onStepCounterEvent(null, 1000 + StepCountCoordinator.CHECKPOINT_STEPS);
+        assertTrue(coordinator.isCheckpointDue());
+    }
+
+    @Test
+    public void reset_clearsCheckpoint() throws Exception {
+        StepCountCoordinator coordinator = newProcess();
+        coordinator.onStepCounterEvent(null, 1000);
+        coordinator.checkpoint(null);
+        coordinator.reset(null);
+
+        assertNull(store.checkpoint);
+        assertFalse(newProcess().recover(null, false));
+    }
+}
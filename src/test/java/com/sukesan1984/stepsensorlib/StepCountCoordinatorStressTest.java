@@ -0,0 +1,137 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.util.Clock;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hammers the coordinator with events, reads and saves from several threads.
+ */
+public class StepCountCoordinatorStressTest {
+    // 2017-06-01T00:00:00Z
+    private static final long START_OF_DAY = 1496275200000L;
+    private static final int EVENTS = 200000;
+    private static final int SAVERS = 3;
+    private static final int READERS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void concurrentEventsReadsAndSaves_neitherLoseNorDoubleCountSteps() throws Exception {
+        final AtomicLong now = new AtomicLong(START_OF_DAY);
+        TimeBuckets timeBuckets = new TimeBuckets(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return now.get();
+            }
+        }, TimeZone.getTimeZone("UTC"));
+        final InMemoryJournalSink sink = new InMemoryJournalSink();
+        final StepJournal journal = new StepJournal(new File(folder.getRoot(), "steps.journal"), sink);
+        HourlyStepCache cache = new HourlyStepCache();
+        cache.load(START_OF_DAY, START_OF_DAY, Collections.<ChunkStepCount>emptyList(), new long[0], new int[0], 0);
+        final StepCountCoordinator coordinator = new StepCountCoordinator(timeBuckets, journal, cache, new InMemoryCheckpointStore());
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        // Sensor callbacks arrive on one thread. The clock moves through the day so hours change.
+        Thread sensor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(start);
+                int stepsSinceBoot = 1000;
+                coordinator.onStepCounterEvent(null, stepsSinceBoot);
+                for (int i = 0; i < EVENTS; i++) {
+                    stepsSinceBoot += 1 + i % 3;
+                    coordinator.onStepCounterEvent(null, stepsSinceBoot);
+                    if (i % 10000 == 0) {
+                        now.addAndGet(60 * 60 * 1000);
+                    }
+                }
+            }
+        });
+        threads.add(sensor);
+        for (int i = 0; i < SAVERS; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    int count = 0;
+                    while (!done.get()) {
+                        if (++count % 50 == 0) {
+                            coordinator.flush(null);
+                        } else {
+                            coordinator.saveSteps(null);
+                        }
+                    }
+                }
+            }));
+        }
+        for (int i = 0; i < READERS; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    int previous = 0;
+                    while (!done.get()) {
+                        int steps = coordinator.getTodaySteps(null);
+                        if (steps < previous) {
+                            failure.compareAndSet(null, new AssertionError(
+                                    "Today's steps went back from " + previous + " to " + steps));
+                        }
+                        previous = steps;
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        sensor.join();
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        int expected = 0;
+        for (int i = 0; i < EVENTS; i++) {
+            expected += 1 + i % 3;
+        }
+        assertEquals(expected, coordinator.getTodaySteps(null));
+        coordinator.flush(null);
+        assertEquals(expected, sink.totalSteps());
+        assertEquals(expected, coordinator.getTodaySteps(null));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.sukesan1984.stepsensorlib;
+
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.util.Clock;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads through the content resolver, as another process of the app would.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StepCountProviderTest {
+    // 2017-06-01T00:00:00Z
+    private static final long START_OF_DAY = 1496275200000L;
+    private static final long HOUR = TimeBuckets.HOUR_IN_MILLIS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Context context;
+    private StepCountCoordinator coordinator;
+    private StepCountProvider provider;
+    private InMemoryJournalSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.application;
+        TimeBuckets timeBuckets = new TimeBuckets(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return START_OF_DAY + 2 * HOUR + 1;
+            }
+        }, TimeZone.getTimeZone("UTC"));
+        sink = new InMemoryJournalSink();
+        StepJournal journal = new StepJournal(new File(folder.getRoot(), "steps.journal"), sink);
+        HourlyStepCache cache = new HourlyStepCache();
+        long start = START_OF_DAY - (HourlyStepCache.DAYS - 1) * TimeBuckets.DAY_IN_MILLIS;
+        cache.load(start, START_OF_DAY + 2 * HOUR, Arrays.asList(
+                new ChunkStepCount(START_OF_DAY - HOUR, 7),
+                new ChunkStepCount(START_OF_DAY, 40)), new long[0], new int[0], 0);
+        coordinator = new StepCountCoordinator(timeBuckets, journal, cache, new InMemoryCheckpointStore());
+
+        provider = new StepCountProvider(coordinator);
+        ProviderInfo info = new ProviderInfo();
+        info.authority = StepCountProvider.getAuthority(context);
+        provider.attachInfo(context, info);
+        ShadowContentResolver.registerProviderInternal(info.authority, provider);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ShadowContentResolver.reset();
+    }
+
+    @Test
+    public void queryToday_includesUnsavedSteps() throws Exception {
+        coordinator.onStepCounterEvent(null, 1000);
+        coordinator.onStepCounterEvent(null, 1025);
+
+        Cursor cursor = context.getContentResolver().query(StepCountProvider.getTodayUri(context), null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(START_OF_DAY + 2 * HOUR,
+                    cursor.getLong(cursor.getColumnIndexOrThrow(StepCountProvider.COLUMN_DATE_AND_HOUR)));
+            assertEquals(65, cursor.getInt(cursor.getColumnIndexOrThrow(StepCountProvider.COLUMN_TODAY_STEPS)));
+            assertEquals(25, cursor.getInt(cursor.getColumnIndexOrThrow(StepCountProvider.COLUMN_HOUR_STEPS)));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(65, StepSensorFacade.queryTodaySteps(context));
+    }
+
+    @Test
+    public void querySteps_sumsCachedHoursWithoutTheStore() throws Exception {
+        coordinator.onStepCounterEvent(null, 1000);
+        coordinator.onStepCounterEvent(null, 1003);
+
+        assertEquals(50, StepSensorFacade.querySteps(context, START_OF_DAY - HOUR, START_OF_DAY + 2 * HOUR));
+        assertEquals(7, StepSensorFacade.querySteps(context, START_OF_DAY - HOUR, START_OF_DAY - HOUR));
+    }
+
+    @Test
+    public void querySteps_beyondCache_addsStepsNotInStoreYet() throws Exception {
+        coordinator.onStepCounterEvent(null, 1000);
+        coordinator.onStepCounterEvent(null, 1010);
+        coordinator.saveSteps(null);
+        coordinator.onStepCounterEvent(null, 1015);
+        long start = START_OF_DAY - 30 * TimeBuckets.DAY_IN_MILLIS;
+
+        // 10 journaled and 5 unsaved, the store has none of them.
+        assertEquals(15, StepSensorFacade.querySteps(context, start, START_OF_DAY + 2 * HOUR));
+        List<ChunkStepCount> days = coordinator.readRollupSeries(context, start, START_OF_DAY + 2 * HOUR, false);
+        assertEquals(1, days.size());
+        assertEquals(START_OF_DAY, days.get(0).unixTimeMillis);
+        assertEquals(15, days.get(0).steps);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void querySteps_withoutRange_isRejected() throws Exception {
+        context.getContentResolver().query(StepCountProvider.getBaseUri(context).buildUpon().appendPath("steps").build(),
+                null, null, null, null);
+    }
+
+    @Test
+    public void callSave_foldsJournalOfThisProcess() throws Exception {
+        coordinator.onStepCounterEvent(null, 1000);
+        coordinator.onStepCounterEvent(null, 1010);
+        coordinator.saveSteps(null);
+        coordinator.onStepCounterEvent(null, 1015);
+
+        context.getContentResolver().call(StepCountProvider.getBaseUri(context), StepCountProvider.METHOD_SAVE, null, null);
+        assertEquals(15, sink.steps(START_OF_DAY + 2 * HOUR));
+        assertEquals(55, StepSensorFacade.queryTodaySteps(context));
+    }
+
+    @Test
+    public void callSetRetentionPolicy_writesPreferencesOfThisProcess() throws Exception {
+        Bundle extras = new Bundle();
+        extras.putInt(StepCountProvider.EXTRA_RETENTION_DAYS, 7);
+        extras.putLong(StepCountProvider.EXTRA_MAX_STORAGE_BYTES, 4096);
+        context.getContentResolver().call(StepCountProvider.getBaseUri(context),
+                StepCountProvider.METHOD_SET_RETENTION_POLICY, null, extras);
+
+        assertEquals(7, PreferenceManager.readRetentionDays(context, StepSensorFacade.DEFAULT_RETENTION_DAYS));
+        assertEquals(4096, PreferenceManager.readMaxStorageBytes(context, StepSensorFacade.DEFAULT_MAX_STORAGE_BYTES));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void callUnknownMethod_isRejected() throws Exception {
+        context.getContentResolver().call(StepCountProvider.getBaseUri(context), "drop", null, null);
+    }
+
+    @Test
+    public void stepChange_notifiesObservers() throws Exception {
+        final CountDownLatch notified = new CountDownLatch(1);
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // The first notification, of the counts on start, may come after registering.
+                if (StepSensorFacade.queryTodaySteps(context) == 50) {
+                    notified.countDown();
+                }
+            }
+        };
+        StepSensorFacade.registerStepCountObserver(context, observer);
+        try {
+            coordinator.onStepCounterEvent(null, 1000);
+            coordinator.onStepCounterEvent(null, 1010);
+            assertTrue(notified.await(5, TimeUnit.SECONDS));
+        } finally {
+            StepSensorFacade.unregisterStepCountObserver(context, observer);
+        }
+    }
+
+    @Test
+    public void publisher_isListenedToOnlyWhileObserved() throws Exception {
+        assertFalse(coordinator.getPublisher().hasListeners());
+        ContentObserver first = new ContentObserver(null) {
+        };
+        ContentObserver second = new ContentObserver(null) {
+        };
+        StepSensorFacade.registerStepCountObserver(context, first);
+        StepSensorFacade.registerStepCountObserver(context, second);
+        assertTrue(coordinator.getPublisher().hasListeners());
+
+        StepSensorFacade.unregisterStepCountObserver(context, first);
+        assertTrue(coordinator.getPublisher().hasListeners());
+        StepSensorFacade.unregisterStepCountObserver(context, second);
+        assertFalse(coordinator.getPublisher().hasListeners());
+    }
+}
@@ -0,0 +1,100 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.util.Clock;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StepCountPublisherTest {
+    // 2017-06-01T00:00:00Z
+    private static final long START_OF_DAY = 1496275200000L;
+    private static final long HOUR = TimeBuckets.HOUR_IN_MILLIS;
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StepCountCoordinator coordinator;
+    private final BlockingQueue<int[]> calls = new LinkedBlockingQueue<>();
+    private final StepSensorFacade.StepCountListener listener = new StepSensorFacade.StepCountListener() {
+        @Override
+        public void onStepCountChanged(long dateAndHour, int todaySteps, int hourSteps) {
+            assertEquals(START_OF_DAY + 2 * HOUR, dateAndHour);
+            calls.add(new int[]{todaySteps, hourSteps});
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        TimeBuckets timeBuckets = new TimeBuckets(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return START_OF_DAY + 2 * HOUR + 1;
+            }
+        }, TimeZone.getTimeZone("UTC"));
+        StepJournal journal = new StepJournal(new File(folder.getRoot(), "steps.journal"), new InMemoryJournalSink());
+        HourlyStepCache cache = new HourlyStepCache();
+        cache.load(START_OF_DAY, START_OF_DAY + 2 * HOUR, Collections.singletonList(new ChunkStepCount(START_OF_DAY, 40)),
+                new long[0], new int[0], 0);
+        coordinator = new StepCountCoordinator(timeBuckets, journal, cache, new InMemoryCheckpointStore());
+    }
+
+    @Test
+    public void add_deliversCurrentCountsAndChanges() throws Exception {
+        coordinator.getPublisher().add(null, listener, 0, DIRECT);
+        assertArrayEquals(new int[]{40, 0}, calls.poll(5, TimeUnit.SECONDS));
+
+        coordinator.onStepCounterEvent(null, 1000);
+        coordinator.onStepCounterEvent(null, 1010);
+        int[] call = calls.poll(5, TimeUnit.SECONDS);
+        // The second event may or may not be coalesced into the first delivery.
+        if (call[1] != 10) {
+            call = calls.poll(5, TimeUnit.SECONDS);
+        }
+        assertArrayEquals(new int[]{50, 10}, call);
+    }
+
+    @Test
+    public void changesWithinInterval_areCoalesced() throws Exception {
+        coordinator.getPublisher().add(null, listener, 300, DIRECT);
+        assertNotNull(calls.poll(5, TimeUnit.SECONDS));
+
+        coordinator.onStepCounterEvent(null, 1000);
+        for (int i = 1; i <= 20; i++) {
+            coordinator.onStepCounterEvent(null, 1000 + i);
+        }
+        assertArrayEquals(new int[]{60, 20}, calls.poll(5, TimeUnit.SECONDS));
+        assertNull(calls.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void remove_stopsDeliveries() throws Exception {
+        coordinator.getPublisher().add(null, listener, 0, DIRECT);
+        assertNotNull(calls.poll(5, TimeUnit.SECONDS));
+        assertTrue(coordinator.getPublisher().remove(listener));
+        assertFalse(coordinator.getPublisher().remove(listener));
+
+        coordinator.onStepCounterEvent(null, 1000);
+        coordinator.onStepCounterEvent(null, 1010);
+        assertNull(calls.poll(300, TimeUnit.MILLISECONDS));
+    }
+}
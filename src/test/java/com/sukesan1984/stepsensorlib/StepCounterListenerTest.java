@@ -0,0 +1,27 @@
+package com.sukesan1984.stepsensorlib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StepCounterListenerTest {
+    @Test
+    public void latencyUs_liveModeDoesNotBatch() throws Exception {
+        assertEquals(0, StepCounterListener.latencyUs(StepSensorFacade.BatchingMode.LIVE, 10000));
+    }
+
+    @Test
+    public void latencyUs_backgroundModeFollowsFifo() throws Exception {
+        // No FIFO, keep the default.
+        assertEquals(StepCounterListener.DEFAULT_LATENCY_US,
+                StepCounterListener.latencyUs(StepSensorFacade.BatchingMode.BACKGROUND, 0));
+        // Too small to be worth less than the default.
+        assertEquals(StepCounterListener.DEFAULT_LATENCY_US,
+                StepCounterListener.latencyUs(StepSensorFacade.BatchingMode.BACKGROUND, 10));
+        // 600 events of fast walking take 5 minutes.
+        assertEquals(5 * 60 * 1000 * 1000,
+                StepCounterListener.latencyUs(StepSensorFacade.BatchingMode.BACKGROUND, 600));
+        assertEquals(StepCounterListener.MAX_LATENCY_US,
+                StepCounterListener.latencyUs(StepSensorFacade.BatchingMode.BACKGROUND, Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,130 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.util.Clock;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class StepJournalTest {
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private InMemoryJournalSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "steps.journal");
+        sink = new InMemoryJournalSink();
+    }
+
+    @Test
+    public void append_keepsStepsPendingUntilFold() throws Exception {
+        StepJournal journal = new StepJournal(file, sink);
+        assertTrue(journal.append(HOUR, 10));
+        assertTrue(journal.append(HOUR, 5));
+        assertTrue(journal.append(2 * HOUR, 7));
+
+        assertEquals(0, sink.folds);
+        assertEquals(15, journal.getPendingSteps(HOUR, HOUR));
+        assertEquals(22, journal.getPendingSteps(0, 2 * HOUR));
+
+        assertTrue(journal.fold());
+        assertEquals(1, sink.folds);
+        assertEquals(15, sink.steps(HOUR));
+        assertEquals(7, sink.steps(2 * HOUR));
+        assertEquals(0, journal.getPendingSteps(0, 2 * HOUR));
+    }
+
+    @Test
+    public void append_foldsWhenThresholdReached() throws Exception {
+        StepJournal journal = new StepJournal(file, sink);
+        for (int i = 0; i < StepJournal.FOLD_THRESHOLD; i++) {
+            assertTrue(journal.append(HOUR, 1));
+        }
+        assertEquals(1, sink.folds);
+        assertEquals(StepJournal.FOLD_THRESHOLD, sink.steps(HOUR));
+    }
+
+    @Test
+    public void append_foldsWhenOldestRecordIsOld() throws Exception {
+        final long[] now = {0};
+        StepJournal journal = new StepJournal(file, sink, new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return now[0];
+            }
+        });
+        assertTrue(journal.append(HOUR, 1));
+        now[0] = StepJournal.MAX_PENDING_MILLIS - 1;
+        assertTrue(journal.append(HOUR, 1));
+        assertEquals(0, sink.folds);
+
+        now[0] = StepJournal.MAX_PENDING_MILLIS;
+        assertTrue(journal.append(2 * HOUR, 1));
+        assertEquals(1, sink.folds);
+        assertEquals(2, sink.steps(HOUR));
+        assertEquals(1, sink.steps(2 * HOUR));
+    }
+
+    @Test
+    public void open_replaysRecordsNotFoldedYet() throws Exception {
+        StepJournal journal = new StepJournal(file, sink);
+        journal.append(HOUR, 3);
+        journal.append(HOUR, 4);
+
+        // Simulate process death: a new instance maps the same file.
+        journal.close();
+        new StepJournal(file, sink);
+        assertEquals(1, sink.folds);
+        assertEquals(7, sink.steps(HOUR));
+    }
+
+    @Test
+    public void open_doesNotReplayFoldedGenerationTwice() throws Exception {
+        StepJournal journal = new StepJournal(file, sink);
+        journal.append(HOUR, 3);
+        sink.failNextFold = true;
+        assertFalse(journal.fold());
+        // Sink committed, but the process died before the journal moved to the next generation.
+        sink.foldJournal(sink.lastFailedGeneration, new long[]{HOUR}, new int[]{3}, 1);
+
+        journal.close();
+        new StepJournal(file, sink);
+        assertEquals(3, sink.steps(HOUR));
+    }
+
+    @Test
+    public void clear_dropsPendingRecords() throws Exception {
+        StepJournal journal = new StepJournal(file, sink);
+        journal.append(HOUR, 3);
+        journal.clear();
+        assertEquals(0, journal.getPendingSteps(0, HOUR));
+
+        journal.close();
+        new StepJournal(file, sink);
+        assertEquals(0, sink.folds);
+    }
+
+    @Test
+    public void open_whileAnotherOwnsTheFile_leavesItsRecordsAlone() throws Exception {
+        StepJournal owner = new StepJournal(file, sink);
+        owner.append(HOUR, 3);
+
+        StepJournal other = new StepJournal(file, sink);
+        assertFalse(other.append(HOUR, 1));
+        assertEquals(0, other.getPendingSteps(0, HOUR));
+        assertEquals(0, sink.folds);
+
+        assertTrue(owner.fold());
+        assertEquals(3, sink.steps(HOUR));
+    }
+}
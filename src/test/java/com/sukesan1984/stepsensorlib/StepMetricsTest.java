@@ -0,0 +1,77 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.model.StepMetricsSnapshot;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class StepMetricsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final StepMetrics metrics = StepMetrics.getInstance();
+
+    @Before
+    public void setUp() throws Exception {
+        metrics.reset();
+    }
+
+    @Test
+    public void record_countsValuesInPowerOfTwoBuckets() throws Exception {
+        metrics.record(StepMetrics.SENSOR_BATCH_SIZE, 0);
+        metrics.record(StepMetrics.SENSOR_BATCH_SIZE, 1);
+        metrics.record(StepMetrics.SENSOR_BATCH_SIZE, 5);
+        metrics.record(StepMetrics.SENSOR_BATCH_SIZE, 7);
+
+        StepMetricsSnapshot.Histogram histogram = metrics.snapshot().sensorBatchSizes;
+        assertEquals(4, histogram.count);
+        assertEquals(13, histogram.sum);
+        assertEquals(3, histogram.mean());
+        assertEquals(1, histogram.buckets[0]);
+        assertEquals(1, histogram.buckets[1]);
+        assertEquals(2, histogram.buckets[3]);
+        assertEquals(1, histogram.percentile(0.5));
+        assertEquals(7, histogram.percentile(0.99));
+        assertEquals(0, metrics.snapshot().flushLatencyMicros.percentile(0.5));
+    }
+
+    @Test
+    public void record_keepsHugeValuesInLastBucket() throws Exception {
+        metrics.record(StepMetrics.QUERY_LATENCY, Long.MAX_VALUE);
+        long[] buckets = metrics.snapshot().queryLatencyMicros.buckets;
+        assertEquals(1, buckets[buckets.length - 1]);
+    }
+
+    @Test
+    public void coordinator_recordsEventsDiscardsAndFlushes() throws Exception {
+        // 2017-06-01T00:00:00Z
+        long startOfDay = 1496275200000L;
+        HourlyStepCache cache = new HourlyStepCache();
+        cache.load(startOfDay, startOfDay, Collections.<ChunkStepCount>emptyList(), new long[0], new int[0], 0);
+        StepJournal journal = new StepJournal(new File(folder.getRoot(), "steps.journal"), new InMemoryJournalSink());
+        StepCountCoordinator coordinator = new StepCountCoordinator(TimeBuckets.getDefault(), journal, cache,
+                new InMemoryCheckpointStore());
+
+        coordinator.onStepCounterEvent(null, 1000);
+        coordinator.onStepCounterEvent(null, 1010);
+        coordinator.onStepCounterEvent(null, 100000);
+        coordinator.onStepCounterEvent(null, 50);
+        coordinator.saveSteps(null);
+
+        StepMetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(4, snapshot.eventsReceived);
+        assertEquals(1, snapshot.incrementsOverLimit);
+        assertEquals(1, snapshot.negativeIncrements);
+        assertEquals(1, snapshot.flushes);
+        assertEquals(1, snapshot.flushLatencyMicros.count);
+    }
+}
@@ -0,0 +1,231 @@
+package com.sukesan1984.stepsensorlib;
+
+import com.sukesan1984.stepsensorlib.model.ChunkStepCount;
+import com.sukesan1984.stepsensorlib.model.ChunkStepCountPage;
+import com.sukesan1984.stepsensorlib.util.TimeBuckets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Behavior every {@link StepStore} has to share. Subclasses run it against one backend each.
+ */
+public abstract class StepStoreConformanceTest {
+    static final long HOUR = TimeBuckets.HOUR_IN_MILLIS;
+    // 2017-06-01T00:00:00Z
+    static final long START = 1496275200000L;
+
+    StepStore store;
+
+    abstract StepStore createStore() throws Exception;
+
+    @Before
+    public void setUpStore() throws Exception {
+        store = createStore();
+    }
+
+    @Test
+    public void addSteps_accumulatesPerHour() throws Exception {
+        assertTrue(store.addSteps(START, 10));
+        assertTrue(store.addSteps(START, 5));
+        assertTrue(store.addSteps(START + 2 * HOUR, 7));
+
+        assertEquals(15, store.getSteps(START));
+        assertEquals(0, store.getSteps(START + HOUR));
+        assertEquals(7, store.getSteps(START + 2 * HOUR));
+        assertEquals(22, store.getSteps(START, START + 2 * HOUR));
+        assertEquals(7, store.getSteps(START + HOUR, START + 3 * HOUR));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addSteps_rejectsNegativeSteps() throws Exception {
+        store.addSteps(START, -1);
+    }
+
+    @Test
+    public void foldJournal_addsStepsAndRemembersGeneration() throws Exception {
+        store.addSteps(START, 3);
+        assertTrue(store.foldJournal(5, new long[]{START + HOUR, START}, new int[]{4, 2}, 2));
+
+        assertEquals(5, store.getFoldedJournalGeneration());
+        assertEquals(5, store.getSteps(START));
+        assertEquals(4, store.getSteps(START + HOUR));
+    }
+
+    @Test
+    public void getChunkStepsSince_returnsHoursInOrder() throws Exception {
+        store.addSteps(START + 2 * HOUR, 2);
+        store.addSteps(START, 1);
+        store.addSteps(START + HOUR, 3);
+
+        List<ChunkStepCount> list = store.getChunkStepsSince(START + HOUR);
+        assertEquals(2, list.size());
+        assertEquals(START + HOUR, list.get(0).unixTimeMillis);
+        assertEquals(3, list.get(0).steps);
+        assertEquals(START + 2 * HOUR, list.get(1).unixTimeMillis);
+    }
+
+    @Test
+    public void getChunkStepCountPage_pagesThroughHours() throws Exception {
+        for (int i = 0; i < 7; i++) {
+            store.addSteps(START + i * HOUR, i + 1);
+        }
+        ChunkStepCountPage page = new ChunkStepCountPage(3);
+        long start = START;
+        List<Long> hours = new ArrayList<>();
+        do {
+            assertTrue(store.getChunkStepCountPage(start, false, page));
+            for (int i = 0; i < page.size; i++) {
+                hours.add(page.unixTimeMillis[i]);
+                assertEquals((page.unixTimeMillis[i] - START) / HOUR + 1, page.steps[i]);
+            }
+            if (page.size > 0) start = page.nextStart();
+        } while (page.isFull());
+        assertEquals(7, hours.size());
+        for (int i = 0; i < 7; i++) {
+            assertEquals(START + i * HOUR, (long) hours.get(i));
+        }
+    }
+
+    @Test
+    public void increaseByServerChunkStepCounts_keepsLargerAndMarksRecorded() throws Exception {
+        store.addSteps(START, 10);
+        store.addSteps(START + HOUR, 10);
+        List<ChunkStepCount> server = new ArrayList<>();
+        server.add(new ChunkStepCount(START + HOUR, 5));
+        server.add(new ChunkStepCount(START, 20));
+        server.add(new ChunkStepCount(START + 2 * HOUR, 30));
+        final int[] progress = new int[2];
+        store.increaseByServerChunkStepCounts(server, new StepSensorFacade.ProgressListener() {
+            @Override
+            public void onProgress(int done, int total) {
+                progress[0] = done;
+                progress[1] = total;
+            }
+        });
+
+        assertEquals(3, progress[0]);
+        assertEquals(3, progress[1]);
+        assertEquals(20, store.getSteps(START));
+        assertEquals(10, store.getSteps(START + HOUR));
+        assertEquals(30, store.getSteps(START + 2 * HOUR));
+
+        ChunkStepCountPage page = new ChunkStepCountPage(10);
+        assertTrue(store.getChunkStepCountPage(START, true, page));
+        assertEquals(1, page.size);
+        assertEquals(START + HOUR, page.unixTimeMillis[0]);
+
+        // Merging again changes nothing.
+        store.increaseByServerChunkStepCounts(server, null);
+        assertEquals(60, store.getSteps(START, START + 2 * HOUR));
+    }
+
+    @Test
+    public void increaseByServerChunkStepCounts_mergesLargeLists() throws Exception {
+        List<ChunkStepCount> server = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            server.add(new ChunkStepCount(START + i * HOUR, 1));
+        }
+        store.addSteps(START + 600 * HOUR, 5);
+        store.increaseByServerChunkStepCounts(server, null);
+
+        assertEquals(1204, store.getSteps(START, START + 1200 * HOUR));
+        assertEquals(5, store.getSteps(START + 600 * HOUR));
+    }
+
+    @Test
+    public void getChangedChunkStepCountPage_returnsChangesInOrder() throws Exception {
+        long token = store.getSyncToken();
+        store.addSteps(START + 2 * HOUR, 1);
+        store.addSteps(START, 2);
+        store.addSteps(START + HOUR, 3);
+        store.addSteps(START + 2 * HOUR, 4);
+
+        ChunkStepCountPage page = new ChunkStepCountPage(2);
+        assertTrue(store.getChangedChunkStepCountPage(token, page));
+        assertEquals(2, page.size);
+        assertEquals(START, page.unixTimeMillis[0]);
+        assertEquals(START + HOUR, page.unixTimeMillis[1]);
+        assertTrue(page.changeSequence[0] < page.changeSequence[1]);
+
+        assertTrue(store.getChangedChunkStepCountPage(page.changeSequence[1], page));
+        assertEquals(1, page.size);
+        assertEquals(START + 2 * HOUR, page.unixTimeMillis[0]);
+        assertEquals(5, page.steps[0]);
+        assertEquals(store.getSyncToken(), page.changeSequence[0]);
+    }
+
+    @Test
+    public void markRecorded_skipsHoursChangedAfterToken() throws Exception {
+        store.addSteps(START, 1);
+        store.addSteps(START + HOUR, 1);
+        long token = store.getSyncToken();
+        store.addSteps(START + HOUR, 1);
+
+        assertEquals(1, store.markRecorded(new long[]{START, START + HOUR, START + 5 * HOUR}, token));
+
+        ChunkStepCountPage page = new ChunkStepCountPage(10);
+        assertTrue(store.getChunkStepCountPage(START, true, page));
+        assertEquals(1, page.size);
+        assertEquals(START + HOUR, page.unixTimeMillis[0]);
+        // Marking does not count as a change.
+        assertEquals(token + 1, store.getSyncToken());
+    }
+
+    @Test
+    public void deleteAll_keepsSyncTokensValid() throws Exception {
+        store.addSteps(START, 1);
+        long token = store.getSyncToken();
+        store.deleteAll();
+
+        assertEquals(0, store.getSteps(START));
+        assertTrue(store.getChunkStepsSince(0).isEmpty());
+        assertEquals(token, store.getSyncToken());
+
+        store.addSteps(START, 2);
+        assertTrue(store.getSyncToken() > token);
+        ChunkStepCountPage page = new ChunkStepCountPage(10);
+        assertTrue(store.getChangedChunkStepCountPage(token, page));
+        assertEquals(1, page.size);
+    }
+
+    @Test
+    public void getDailySteps_sumsHoursOfEachDay() throws Exception {
+        TimeBuckets timeBuckets = TimeBuckets.getDefault();
+        long day = timeBuckets.dayOf(START);
+        long nextDay = timeBuckets.nextDay(day);
+        store.addSteps(day, 1);
+        store.addSteps(day + 5 * HOUR, 2);
+        store.addSteps(nextDay, 4);
+        store.addSteps(timeBuckets.nextDay(nextDay), 8);
+
+        List<ChunkStepCount> daily = store.getDailySteps(day, nextDay);
+        assertEquals(2, daily.size());
+        assertEquals(day, daily.get(0).unixTimeMillis);
+        assertEquals(3, daily.get(0).steps);
+        assertEquals(nextDay, daily.get(1).unixTimeMillis);
+        assertEquals(4, daily.get(1).steps);
+    }
+
+    @Test
+    public void getWeeklySteps_sumsHoursOfEachWeek() throws Exception {
+        TimeBuckets timeBuckets = TimeBuckets.getDefault();
+        long week = timeBuckets.weekOf(START);
+        long nextWeek = timeBuckets.weekOf(week + 8 * TimeBuckets.DAY_IN_MILLIS);
+        store.addSteps(week + HOUR, 2);
+        store.addSteps(timeBuckets.hourOf(week + 2 * TimeBuckets.DAY_IN_MILLIS), 3);
+        store.addSteps(nextWeek, 5);
+
+        List<ChunkStepCount> weekly = store.getWeeklySteps(week, nextWeek);
+        assertEquals(2, weekly.size());
+        assertEquals(week, weekly.get(0).unixTimeMillis);
+        assertEquals(5, weekly.get(0).steps);
+        assertEquals(nextWeek, weekly.get(1).unixTimeMillis);
+        assertEquals(5, weekly.get(1).steps);
+    }
+}
@@ -0,0 +1,44 @@
+package com.sukesan1984.stepsensorlib.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoggerTest {
+    @Test
+    public void dump_formatsArgumentsLazily() throws Exception {
+        Logger.log("plain");
+        Logger.log("latency {}us", 200);
+        Logger.log("{} accuracy changed: {}", "counter", 3);
+        Logger.log("range {}..{}", 1, 2);
+
+        String[] lines = Logger.dump(4).split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0], lines[0].endsWith(": plain"));
+        assertTrue(lines[1], lines[1].endsWith(": latency 200us"));
+        assertTrue(lines[2], lines[2].endsWith(": counter accuracy changed: 3"));
+        assertTrue(lines[3], lines[3].endsWith(": range 1..2"));
+        assertTrue(lines[3], lines[3].contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void dump_keepsOnlyLastRecords() throws Exception {
+        for (int i = 0; i < Logger.CAPACITY * 2; i++) {
+            Logger.log("record {}", i);
+        }
+
+        String[] lines = Logger.dump(Integer.MAX_VALUE).split("\n");
+        assertEquals(Logger.CAPACITY, lines.length);
+        assertTrue(lines[0], lines[0].endsWith("record " + Logger.CAPACITY));
+        assertTrue(lines[lines.length - 1].endsWith("record " + (Logger.CAPACITY * 2 - 1)));
+    }
+
+    @Test
+    public void log_printsStackTraceOfThrowable() throws Exception {
+        Logger.log(new IllegalStateException("broken"));
+
+        String dump = Logger.dump(1);
+        assertTrue(dump, dump.contains("java.lang.IllegalStateException: broken"));
+        assertTrue(dump, dump.contains("log_printsStackTraceOfThrowable"));
+    }
+}
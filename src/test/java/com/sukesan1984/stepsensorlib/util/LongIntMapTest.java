@@ -0,0 +1,39 @@
+package com.sukesan1984.stepsensorlib.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LongIntMapTest {
+    @Test
+    public void putAndGet_growsBeyondExpectedSize() throws Exception {
+        LongIntMap map = new LongIntMap(4);
+        for (long key = 0; key < 1000; key++) {
+            map.put(key * 3600000L, (int) key);
+        }
+        assertEquals(1000, map.size());
+        for (long key = 0; key < 1000; key++) {
+            assertEquals((int) key, map.get(key * 3600000L, -1));
+        }
+        assertEquals(-1, map.get(1, -1));
+        assertFalse(map.containsKey(1));
+    }
+
+    @Test
+    public void put_overwritesExistingKey() throws Exception {
+        LongIntMap map = new LongIntMap(4);
+        map.put(10, 1);
+        map.put(10, 2);
+        assertEquals(1, map.size());
+        assertEquals(2, map.get(10, -1));
+    }
+
+    @Test
+    public void clear_removesAllKeys() throws Exception {
+        LongIntMap map = new LongIntMap(4);
+        map.put(10, 1);
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(map.containsKey(10));
+    }
+}
@@ -0,0 +1,117 @@
+package com.sukesan1984.stepsensorlib.util;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class TimeBucketsTest {
+    private static final long MINUTE = 60 * 1000;
+    // 2017-03-11T00:00:00Z, a few hours before the DST transition in the US.
+    private static final long START = 1489190400000L;
+
+    private static class FakeClock implements Clock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Test
+    public void matchesCalendar_acrossDstTransitions() throws Exception {
+        for (String id : new String[]{"America/New_York", "Asia/Tokyo", "Asia/Kolkata", "Asia/Kathmandu",
+                "Europe/London", "UTC"}) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            FakeClock clock = new FakeClock();
+            TimeBuckets buckets = new TimeBuckets(clock, zone);
+            // Every 7 minutes for about 400 days, covering transitions both ways.
+            for (clock.now = START; clock.now < START + 400 * TimeBuckets.DAY_IN_MILLIS; clock.now += 7 * MINUTE) {
+                assertHour(id, zone, clock.now, buckets.currentHour());
+                assertEquals(id + " " + clock.now, calendarDay(zone, clock.now), buckets.startOfToday());
+            }
+        }
+    }
+
+    @Test
+    public void hourOfAndDayOf_bucketArbitraryTimes() throws Exception {
+        TimeZone zone = TimeZone.getTimeZone("America/New_York");
+        FakeClock clock = new FakeClock();
+        clock.now = START;
+        TimeBuckets buckets = new TimeBuckets(clock, zone);
+        for (long t = START - 30 * TimeBuckets.DAY_IN_MILLIS; t < START + 30 * TimeBuckets.DAY_IN_MILLIS; t += 11 * MINUTE) {
+            assertHour("America/New_York", zone, t, buckets.hourOf(t));
+            assertEquals(calendarDay(zone, t), buckets.dayOf(t));
+        }
+    }
+
+    @Test
+    public void weekOfAndNextDay_matchCalendar() throws Exception {
+        for (String id : new String[]{"America/New_York", "Europe/London", "Asia/Kathmandu"}) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            FakeClock clock = new FakeClock();
+            clock.now = START;
+            TimeBuckets buckets = new TimeBuckets(clock, zone);
+            for (long t = START - 200 * TimeBuckets.DAY_IN_MILLIS; t < START + 200 * TimeBuckets.DAY_IN_MILLIS; t += 97 * MINUTE) {
+                assertEquals(id + " " + t, calendarWeek(zone, t), buckets.weekOf(t));
+                long day = buckets.dayOf(t);
+                assertEquals(id + " " + t, calendarDay(zone, day + 30 * TimeBuckets.HOUR_IN_MILLIS - 1),
+                        buckets.nextDay(day));
+            }
+        }
+    }
+
+    @Test
+    public void clockGoingBack_recomputesBoundaries() throws Exception {
+        TimeZone zone = TimeZone.getTimeZone("Asia/Tokyo");
+        FakeClock clock = new FakeClock();
+        TimeBuckets buckets = new TimeBuckets(clock, zone);
+        clock.now = START;
+        long hour = buckets.currentHour();
+        clock.now = START - TimeBuckets.HOUR_IN_MILLIS;
+        assertEquals(hour - TimeBuckets.HOUR_IN_MILLIS, buckets.currentHour());
+    }
+
+    private static void assertHour(String id, TimeZone zone, long t, long hour) {
+        assertTrue(id + " " + t, hour <= t && t < hour + TimeBuckets.HOUR_IN_MILLIS);
+        long expected = calendarHour(zone, t);
+        // Calendar picks the later hour when the local time is repeated, skip those.
+        if (expected <= t) {
+            assertEquals(id + " " + t, expected, hour);
+        }
+    }
+
+    private static long calendarHour(TimeZone zone, long t) {
+        Calendar c = Calendar.getInstance(zone);
+        c.setTimeInMillis(t);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c.getTimeInMillis();
+    }
+
+    private static long calendarDay(TimeZone zone, long t) {
+        Calendar c = Calendar.getInstance(zone);
+        c.setTimeInMillis(t);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c.getTimeInMillis();
+    }
+
+    private static long calendarWeek(TimeZone zone, long t) {
+        Calendar c = Calendar.getInstance(zone);
+        c.setFirstDayOfWeek(Calendar.MONDAY);
+        c.setTimeInMillis(t);
+        c.set(Calendar.DAY_OF_WEEK, Calendar.MONDAY);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c.getTimeInMillis();
+    }
+}